@@ -0,0 +1,69 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import edu.illinois.ideals.batchpackager.AlphanumComparator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AlphanumComparator on file names like the ones in filegroups, compared one pair at a time and sorted as a list,
+ * both with the comparator and with the sort keys of AlphanumComparator.sort.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class AlphanumComparatorBenchmark {
+
+    private static final String[] PREFIXES = {"page_", "scan ", "IMG_", "thesis-chapter", "Volume 2 Issue "};
+
+    private static final String[] SUFFIXES = {".jpg", ".tif", ".pdf", "b.png", " v2.txt"};
+
+    @Param({"1000"})
+    public int names;
+
+    private AlphanumComparator comparator;
+
+    private String[] fileNames;
+
+    private int next;
+
+    @Setup
+    public void createNames() {
+        comparator = new AlphanumComparator();
+        Random random = new Random(42);
+        fileNames = new String[names];
+        for (int i = 0; i < names; i++) {
+            fileNames[i] = PREFIXES[random.nextInt(PREFIXES.length)] + random.nextInt(2000) + SUFFIXES[random.nextInt(SUFFIXES.length)];
+        }
+    }
+
+    @Benchmark
+    public int compare() {
+        int i = next;
+        next = (i + 1 == fileNames.length) ? 0 : i + 1;
+        return comparator.compare(fileNames[i], fileNames[next]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String[] sort() {
+        String[] sorted = fileNames.clone();
+        Arrays.sort(sorted, comparator);
+        return sorted;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<String> sortWithKeys() {
+        List<String> sorted = new ArrayList<String>(Arrays.asList(fileNames));
+        AlphanumComparator.sort(sorted, AlphanumComparator.Ordering.ASCENDING);
+        return sorted;
+    }
+}
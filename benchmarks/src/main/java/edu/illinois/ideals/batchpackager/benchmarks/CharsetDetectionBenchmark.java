@@ -0,0 +1,52 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import edu.illinois.ideals.batchpackager.CharsetDetector;
+import edu.illinois.ideals.batchpackager.SAFPackage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Charset detection of generated UTF-8 metadata CSVs, the first time a file is seen and again once it is cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CharsetDetectionBenchmark {
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private File batchDir;
+
+    private String csvPath;
+
+    @Setup
+    public void createCsv() throws IOException {
+        batchDir = Files.createTempDirectory("charset-benchmark").toFile();
+        csvPath = SyntheticBatch.generate(batchDir, rows, 1, 1, 42).getCsvFile().getPath();
+    }
+
+    @TearDown
+    public void deleteCsv() throws IOException {
+        BenchmarkFiles.deleteRecursively(batchDir);
+    }
+
+    @Benchmark
+    public Charset detectUncached() throws IOException {
+        return CharsetDetector.detectUncached(new File(csvPath));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Charset detectCharsetOfFile() throws IOException {
+        return SAFPackage.detectCharsetOfFile(csvPath);
+    }
+}
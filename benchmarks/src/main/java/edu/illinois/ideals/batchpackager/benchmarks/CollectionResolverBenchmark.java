@@ -0,0 +1,100 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import edu.illinois.ideals.batchpackager.CollectionResolver;
+import edu.illinois.ideals.batchpackager.StubDSpaceRest;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CollectionResolver against a stub DSpace REST API on localhost, with 2000 listed collections and 100 more that
+ * are only found by looking them up. Checks the handles of a batch that uses 500 collections, 20 of them unlisted
+ * and 10 that don't exist, with no cache file and with a fresh one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CollectionResolverBenchmark {
+
+    private static final int LISTED = 2000;
+
+    private static final int EXISTING = 2100;
+
+    private StubDSpaceRest server;
+
+    private File cacheDir;
+
+    private File warmCacheFile;
+
+    private List<String> handles;
+
+    @Setup
+    public void startServer() throws IOException {
+        server = new StubDSpaceRest(LISTED, EXISTING);
+        cacheDir = Files.createTempDirectory("collection-benchmark").toFile();
+
+        handles = new ArrayList<String>();
+        for (int i = 0; i < 470; i++) {
+            handles.add(StubDSpaceRest.HANDLE_PREFIX + (i * 4));
+        }
+        for (int i = 0; i < 20; i++) {
+            handles.add(StubDSpaceRest.HANDLE_PREFIX + (LISTED + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            handles.add(StubDSpaceRest.HANDLE_PREFIX + (EXISTING + i));
+        }
+
+        warmCacheFile = new File(cacheDir, "warm.json");
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), warmCacheFile, CollectionResolver.DEFAULT_CACHE_TTL_MILLIS);
+        try {
+            checked(resolver.findUnknownHandles(handles));
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @TearDown
+    public void stopServer() throws IOException {
+        server.close();
+        BenchmarkFiles.deleteRecursively(cacheDir);
+    }
+
+    @Benchmark
+    public SortedSet<String> noCacheFile() throws IOException {
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), null, CollectionResolver.DEFAULT_CACHE_TTL_MILLIS);
+        try {
+            return checked(resolver.findUnknownHandles(handles));
+        } finally {
+            resolver.close();
+        }
+    }
+
+    @Benchmark
+    public SortedSet<String> freshCacheFile() throws IOException {
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), warmCacheFile, CollectionResolver.DEFAULT_CACHE_TTL_MILLIS);
+        try {
+            return checked(resolver.findUnknownHandles(handles));
+        } finally {
+            resolver.close();
+        }
+    }
+
+    /**
+     * The 10 handles past EXISTING are the only ones that should be reported.
+     */
+    private static SortedSet<String> checked(SortedSet<String> unknownHandles) {
+        if (unknownHandles.size() != 10) {
+            throw new IllegalStateException("Expected 10 unknown handles, got " + unknownHandles);
+        }
+        return unknownHandles;
+    }
+}
@@ -0,0 +1,86 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import com.csvreader.CsvReader;
+import edu.illinois.ideals.batchpackager.MappedCsvReader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading every record of a generated metadata CSV with javacsv's CsvReader and with MappedCsvReader, and going
+ * back over it with MappedCsvReader once its row index is built.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CsvReaderBenchmark {
+
+    @Param({"100000"})
+    public int rows;
+
+    private File batchDir;
+
+    private File csvFile;
+
+    private MappedCsvReader indexedReader;
+
+    @Setup
+    public void createCsv() throws IOException {
+        batchDir = Files.createTempDirectory("csv-benchmark").toFile();
+        csvFile = SyntheticBatch.generate(batchDir, rows, 1, 1, 42).getCsvFile();
+
+        indexedReader = new MappedCsvReader(csvFile, StandardCharsets.UTF_8);
+        while (indexedReader.readRecord()) {
+            // Builds the index
+        }
+    }
+
+    @TearDown
+    public void deleteCsv() throws IOException {
+        indexedReader.close();
+        BenchmarkFiles.deleteRecursively(batchDir);
+    }
+
+    @Benchmark
+    public void csvReader(Blackhole blackhole) throws IOException {
+        CsvReader reader = new CsvReader(new FileInputStream(csvFile), StandardCharsets.UTF_8);
+        try {
+            reader.readHeaders();
+            while (reader.readRecord()) {
+                blackhole.consume(reader.getValues());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public void mappedCsvReader(Blackhole blackhole) throws IOException {
+        MappedCsvReader reader = new MappedCsvReader(csvFile, StandardCharsets.UTF_8);
+        try {
+            reader.readHeaders();
+            while (reader.readRecord()) {
+                blackhole.consume(reader.getValues());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String[] seekToLastRow() throws IOException {
+        indexedReader.seekToRow(rows);
+        indexedReader.readRecord();
+        return indexedReader.getValues();
+    }
+}
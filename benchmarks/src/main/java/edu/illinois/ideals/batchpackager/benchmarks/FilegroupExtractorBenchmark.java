@@ -0,0 +1,84 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import edu.illinois.ideals.batchpackager.FilegroupExtractor;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Extracting a generated .tar.gz filegroup of 50 scans into an item directory, the first time the archive is seen
+ * and again once its listing is cached, as when many rows refer to the same filegroup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class FilegroupExtractorBenchmark {
+
+    private static final int FILES = 50;
+
+    private static final int FILE_BYTES = 64 * 1024;
+
+    private File workDir;
+
+    private File archive;
+
+    private File itemDirectory;
+
+    private FilegroupExtractor cachedExtractor;
+
+    @Setup
+    public void createArchive() throws IOException {
+        workDir = Files.createTempDirectory("filegroup-benchmark").toFile();
+        archive = new File(workDir, "scans.tar.gz");
+        itemDirectory = new File(workDir, "item_1");
+        Files.createDirectories(itemDirectory.toPath());
+
+        Random random = new Random(42);
+        byte[] content = new byte[FILE_BYTES];
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(archive))));
+        try {
+            for (int i = 1; i <= FILES; i++) {
+                random.nextBytes(content);
+                TarArchiveEntry entry = new TarArchiveEntry("scans/page" + i + ".jpg");
+                entry.setSize(content.length);
+                tar.putArchiveEntry(entry);
+                tar.write(content, 0, content.length);
+                tar.closeArchiveEntry();
+            }
+            tar.finish();
+        } finally {
+            tar.close();
+        }
+
+        cachedExtractor = new FilegroupExtractor();
+        cachedExtractor.extract(archive, itemDirectory);
+    }
+
+    @TearDown
+    public void deleteArchive() throws IOException {
+        BenchmarkFiles.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public List<String> firstReference() throws IOException {
+        return new FilegroupExtractor().extract(archive, itemDirectory);
+    }
+
+    @Benchmark
+    public List<String> repeatedReference() throws IOException {
+        return cachedExtractor.extract(archive, itemDirectory);
+    }
+}
@@ -0,0 +1,87 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import edu.illinois.ideals.batchpackager.BufferedOutputXML;
+import edu.illinois.ideals.batchpackager.ColumnPlan;
+import edu.illinois.ideals.batchpackager.OutputXML;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes one item's dublin_core.xml with the SimpleXmlWriter based OutputXML, and with BufferedOutputXML given
+ * either the header names or the parsed ColumnPlan columns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutputXMLBenchmark {
+
+    private static final String[] HEADERS = {
+            "dc.title", "dc.contributor.author", "dc.date.issued", "dc.description.abstract[en]",
+            "dc.subject", "dc.identifier.uri", "dc.rights", "dc.type"
+    };
+
+    @Param({"8", "64"})
+    public int values;
+
+    private File itemDir;
+
+    private String dcFileName;
+
+    private ColumnPlan columnPlan;
+
+    private String[] fieldValues;
+
+    @Setup
+    public void createItem() throws IOException {
+        itemDir = Files.createTempDirectory("output-xml-benchmark").toFile();
+        dcFileName = itemDir + File.separator + "dublin_core.xml";
+        columnPlan = ColumnPlan.compile(HEADERS);
+
+        fieldValues = new String[values];
+        for (int i = 0; i < values; i++) {
+            fieldValues[i] = "Value " + i + " of a \"typical\" field, with <markup> & an apostrophe's worth of escaping";
+        }
+    }
+
+    @TearDown
+    public void deleteItem() throws IOException {
+        BenchmarkFiles.deleteRecursively(itemDir);
+    }
+
+    @Benchmark
+    public void simpleXmlWriter() {
+        OutputXML xmlWriter = new OutputXML(dcFileName);
+        xmlWriter.start();
+        for (int i = 0; i < values; i++) {
+            xmlWriter.writeOneDC(HEADERS[i % HEADERS.length], fieldValues[i]);
+        }
+        xmlWriter.end();
+    }
+
+    @Benchmark
+    public void bufferedByHeader() {
+        BufferedOutputXML xmlWriter = new BufferedOutputXML(dcFileName);
+        xmlWriter.start();
+        for (int i = 0; i < values; i++) {
+            xmlWriter.writeOneDC(HEADERS[i % HEADERS.length], fieldValues[i]);
+        }
+        xmlWriter.end();
+    }
+
+    @Benchmark
+    public void bufferedByColumn() {
+        BufferedOutputXML xmlWriter = new BufferedOutputXML(dcFileName);
+        xmlWriter.start();
+        for (int i = 0; i < values; i++) {
+            xmlWriter.writeOneDC(columnPlan.getColumn(i % HEADERS.length), fieldValues[i]);
+        }
+        xmlWriter.end();
+    }
+}
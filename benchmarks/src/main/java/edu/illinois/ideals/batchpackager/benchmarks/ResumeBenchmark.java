@@ -0,0 +1,84 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import edu.illinois.ideals.batchpackager.SAFPackage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * processMetaPack run again on an archive directory it has already built, with a few source files touched in between.
+ * Each file of the pool of 1000 is shared by rows / 1000 items, so touching 10 files rebuilds 1% of the items and
+ * the rest are skipped through the journal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ResumeBenchmark {
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    @Param({"0", "10"})
+    public int touchedFiles;
+
+    private File batchDir;
+
+    private SyntheticBatch batch;
+
+    private File archiveDir;
+
+    @Setup(Level.Trial)
+    public void createBatch() throws IOException {
+        batchDir = Files.createTempDirectory("resume-benchmark").toFile();
+        batch = SyntheticBatch.generate(batchDir, rows, Math.min(rows, 1000), 16 * 1024, 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBatch() throws IOException {
+        BenchmarkFiles.deleteRecursively(batchDir);
+    }
+
+    @Setup(Level.Iteration)
+    public void buildArchive() throws IOException {
+        archiveDir = Files.createTempDirectory(batchDir.toPath(), "archive").toFile();
+        SAFPackage safPackage = new SAFPackage();
+        checked(safPackage, safPackage.processMetaPack(batch.getCsvFile().getPath(), batch.getSourceDir().getPath(),
+                archiveDir.getPath(), false));
+
+        File[] sourceFiles = batch.getSourceDir().listFiles();
+        Arrays.sort(sourceFiles);
+        long touched = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        for (int i = 0; i < touchedFiles && i < sourceFiles.length; i++) {
+            if (!sourceFiles[i].setLastModified(touched)) {
+                throw new IOException("Unable to touch " + sourceFiles[i]);
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteArchiveDir() throws IOException {
+        BenchmarkFiles.deleteRecursively(archiveDir);
+    }
+
+    @Benchmark
+    public List<String> resume() {
+        SAFPackage safPackage = new SAFPackage();
+        return checked(safPackage, safPackage.processMetaPack(batch.getCsvFile().getPath(), batch.getSourceDir().getPath(),
+                archiveDir.getPath(), false));
+    }
+
+    private static List<String> checked(SAFPackage safPackage, List<String> report) {
+        if (safPackage.hasCriticalErrors() || safPackage.getItemFailureCount() > 0) {
+            throw new IllegalStateException("Generated batch was not packaged: " + report);
+        }
+        return report;
+    }
+}
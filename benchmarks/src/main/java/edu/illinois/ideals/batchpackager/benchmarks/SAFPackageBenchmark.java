@@ -0,0 +1,104 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import edu.illinois.ideals.batchpackager.ArchiveFormat;
+import edu.illinois.ideals.batchpackager.SAFPackage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * verifyMetaPack and processMetaPack end to end on generated batches.
+ * Every row has one bitstream, shared round robin from a pool of 1000 small files, so the large batches measure
+ * the per-item work rather than copying gigabytes. Each measured process run writes into an empty archive directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SAFPackageBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"1"})
+    public int workerThreads;
+
+    @Param({"1"})
+    public int verifyThreads;
+
+    // Items per part, 0 to build one archive
+    @Param({"0"})
+    public int partItems;
+
+    // Write the small files of items on a dedicated I/O thread
+    @Param({"false"})
+    public boolean itemWriterThread;
+
+    // Format to stream items into, such as zip or tar, none to build item directories
+    @Param({"none"})
+    public String stream;
+
+    private File batchDir;
+
+    private SyntheticBatch batch;
+
+    private File archiveDir;
+
+    @Setup(Level.Trial)
+    public void createBatch() throws IOException {
+        batchDir = Files.createTempDirectory("saf-benchmark").toFile();
+        batch = SyntheticBatch.generate(batchDir, rows, Math.min(rows, 1000), 16 * 1024, 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBatch() throws IOException {
+        BenchmarkFiles.deleteRecursively(batchDir);
+    }
+
+    @Setup(Level.Iteration)
+    public void createArchiveDir() throws IOException {
+        archiveDir = Files.createTempDirectory(batchDir.toPath(), "archive").toFile();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteArchiveDir() throws IOException {
+        BenchmarkFiles.deleteRecursively(archiveDir);
+    }
+
+    @Benchmark
+    public List<String> verifyMetaPack() {
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setVerifyThreads(verifyThreads);
+        return checked(safPackage, safPackage.verifyMetaPack(batch.getCsvFile().getPath(), batch.getSourceDir().getPath()));
+    }
+
+    @Benchmark
+    public List<String> processMetaPack() {
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setWorkerThreads(workerThreads);
+        safPackage.setVerifyThreads(verifyThreads);
+        safPackage.setPartLimits(partItems, 0);
+        safPackage.setItemFileWriterThread(itemWriterThread);
+        if (!"none".equals(stream)) {
+            safPackage.setStreamingFormat(ArchiveFormat.fromName(stream));
+        }
+        return checked(safPackage, safPackage.processMetaPack(batch.getCsvFile().getPath(), batch.getSourceDir().getPath(),
+                archiveDir.getPath(), false));
+    }
+
+    /**
+     * A batch that fails verification would be measured doing almost nothing, so don't let it pass as a result.
+     */
+    private static List<String> checked(SAFPackage safPackage, List<String> report) {
+        if (safPackage.hasCriticalErrors() || safPackage.getItemFailureCount() > 0) {
+            throw new IllegalStateException("Generated batch was not packaged: " + report);
+        }
+        return report;
+    }
+}
@@ -0,0 +1,267 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import edu.illinois.ideals.batchpackager.SAFPackage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * End-to-end scale suite. Runs verifyMetaPack and processMetaPack on generated batches of 10k, 100k and 1M rows,
+ * each in a fresh JVM with a small fixed heap, and compares the run time and peak live heap with the budgets recorded
+ * in scale-budgets.properties. The live heap is what the heap pools hold after a collection, so garbage that hasn't
+ * been collected yet doesn't count. Exits with 1 if a run fails, runs out of memory, or goes over a budget.
+ * <p>
+ * java -cp target/benchmarks.jar edu.illinois.ideals.batchpackager.benchmarks.ScaleSuite [options]
+ * <ul>
+ * <li>--rows 10000,100000,1000000  batch sizes to run</li>
+ * <li>--heap 256m                  heap of each run, -Xms and -Xmx</li>
+ * <li>--budgets file               budgets to check, default scale-budgets.properties</li>
+ * <li>--record                     write the measured values plus headroom to the budgets file instead of checking</li>
+ * <li>--work-dir dir               where batches are generated, default the temp directory</li>
+ * </ul>
+ */
+public class ScaleSuite {
+
+    private static final String RESULT_PREFIX = "SCALE_RESULT ";
+
+    // Recorded budgets leave this much room for noise between runs on the same machine
+    private static final double TIME_HEADROOM = 1.5;
+    private static final double MEMORY_HEADROOM = 1.25;
+
+    private static final String[] OPERATIONS = {"verify", "process"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--child".equals(args[0])) {
+            runChild(args);
+            return;
+        }
+
+        String rowsOption = "10000,100000,1000000";
+        String heap = "256m";
+        File budgetsFile = new File("scale-budgets.properties");
+        boolean record = false;
+        File workDir = new File(System.getProperty("java.io.tmpdir"));
+        for (int i = 0; i < args.length; i++) {
+            if ("--rows".equals(args[i])) {
+                rowsOption = args[++i];
+            } else if ("--heap".equals(args[i])) {
+                heap = args[++i];
+            } else if ("--budgets".equals(args[i])) {
+                budgetsFile = new File(args[++i]);
+            } else if ("--record".equals(args[i])) {
+                record = true;
+            } else if ("--work-dir".equals(args[i])) {
+                workDir = new File(args[++i]);
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(64);
+            }
+        }
+
+        Properties budgets = new Properties();
+        if (budgetsFile.isFile()) {
+            InputStream in = new FileInputStream(budgetsFile);
+            try {
+                budgets.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        if (!record && budgets.isEmpty()) {
+            System.out.println("No budgets in " + budgetsFile.getAbsolutePath() + ", only checking that every run completes."
+                    + " Run with --record on the reference machine to record them.");
+        }
+
+        boolean failed = false;
+        List<String> summary = new ArrayList<String>();
+        for (String rowsValue : rowsOption.split(",")) {
+            int rows = Integer.parseInt(rowsValue.trim());
+            File batchDir = Files.createTempDirectory(workDir.toPath(), "scale-" + rows + "-").toFile();
+            try {
+                System.out.println("Generating batch of " + rows + " rows in " + batchDir);
+                SyntheticBatch batch = SyntheticBatch.generate(batchDir, rows, Math.min(rows, 1000), 4 * 1024, 42);
+
+                for (String operation : OPERATIONS) {
+                    String key = operation + "." + rows;
+                    File logFile = new File(workDir, "scale-" + key + ".log");
+                    File archiveDir = new File(batchDir, "archive");
+                    long[] result = runInChildJvm(heap, operation, batch, archiveDir, logFile);
+                    BenchmarkFiles.deleteRecursively(archiveDir);
+
+                    if (result == null) {
+                        failed = true;
+                        summary.add(String.format("%-16s FAILED, see %s", key, logFile));
+                        continue;
+                    }
+
+                    long millis = result[0];
+                    long peakHeapMb = result[1] / (1024 * 1024);
+                    String line = String.format("%-16s %8d ms %6d MB peak live heap", key, millis, peakHeapMb);
+                    if (record) {
+                        budgets.setProperty(key + ".millis", Long.toString((long) Math.ceil(millis * TIME_HEADROOM)));
+                        budgets.setProperty(key + ".peakHeapMb", Long.toString((long) Math.ceil(peakHeapMb * MEMORY_HEADROOM)));
+                    } else {
+                        String overBudget = overBudget(budgets, key + ".millis", millis, "ms")
+                                + overBudget(budgets, key + ".peakHeapMb", peakHeapMb, "MB");
+                        if (!overBudget.isEmpty()) {
+                            failed = true;
+                            line += "  OVER BUDGET:" + overBudget;
+                        }
+                    }
+                    summary.add(line);
+                }
+            } finally {
+                BenchmarkFiles.deleteRecursively(batchDir);
+            }
+        }
+
+        System.out.println("\nScale suite with -Xmx" + heap + ":");
+        for (String line : summary) {
+            System.out.println(line);
+        }
+
+        if (record) {
+            OutputStream out = new FileOutputStream(budgetsFile);
+            try {
+                budgets.store(out, "ScaleSuite budgets for -Xmx" + heap + ", measured values plus headroom");
+            } finally {
+                out.close();
+            }
+            System.out.println("Recorded budgets in " + budgetsFile.getAbsolutePath());
+        }
+
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * @return " name value > budget" if there is a budget and the value is over it, otherwise ""
+     */
+    private static String overBudget(Properties budgets, String name, long value, String unit) {
+        String budget = budgets.getProperty(name);
+        if (budget == null) {
+            return "";
+        }
+        long limit = Long.parseLong(budget.trim());
+        return (value > limit) ? " " + name + " " + value + " " + unit + " > " + limit + " " + unit : "";
+    }
+
+    /**
+     * @return { run time in ms, peak live heap in bytes }, or null if the run failed or ran out of memory
+     */
+    private static long[] runInChildJvm(String heap, String operation, SyntheticBatch batch, File archiveDir, File logFile) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(java, "-Xms" + heap, "-Xmx" + heap,
+                "-XX:+ExitOnOutOfMemoryError", "-cp", System.getProperty("java.class.path"), ScaleSuite.class.getName(),
+                "--child", operation, batch.getCsvFile().getPath(), batch.getSourceDir().getPath(), archiveDir.getPath());
+        processBuilder.redirectError(logFile);
+
+        System.out.println("Running " + operation + " of " + batch.getRows() + " rows, progress in " + logFile);
+        Process process = processBuilder.start();
+        long[] result = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    String[] values = line.substring(RESULT_PREFIX.length()).trim().split(" ");
+                    result = new long[]{Long.parseLong(values[0]), Long.parseLong(values[1])};
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return (process.waitFor() == 0) ? result : null;
+    }
+
+    /**
+     * Runs one operation in this JVM and prints its run time and peak live heap on standard output.
+     * Everything else the packager prints goes to standard error.
+     */
+    private static void runChild(String[] args) throws IOException {
+        String operation = args[1];
+        String csv = args[2];
+        String source = args[3];
+        String archive = args[4];
+
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+
+        System.gc();
+        final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool);
+            }
+        }
+        // The usage after each collection, rather than the peak usage, which mostly measures when the collector ran
+        final AtomicLong peakLiveHeap = new AtomicLong();
+        NotificationListener collectionListener = (notification, handback) -> recordLiveHeap(heapPools, peakLiveHeap);
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(collectionListener, null, null);
+            }
+        }
+
+        long start = System.nanoTime();
+        SAFPackage safPackage = new SAFPackage();
+        List<String> report;
+        if ("verify".equals(operation)) {
+            report = safPackage.verifyMetaPack(csv, source);
+        } else {
+            Files.createDirectories(new File(archive).toPath());
+            report = safPackage.processMetaPack(csv, source, archive, false);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        recordLiveHeap(heapPools, peakLiveHeap);
+
+        for (String line : report) {
+            System.err.println(line);
+        }
+        if (safPackage.hasCriticalErrors() || safPackage.getItemFailureCount() > 0) {
+            System.err.println("Generated batch was not packaged cleanly");
+            System.exit(1);
+        }
+
+        stdout.println(RESULT_PREFIX + millis + " " + peakLiveHeap.get());
+        stdout.flush();
+    }
+
+    /**
+     * Adds up what the heap pools held after their last collection, keeping the largest total seen.
+     */
+    private static void recordLiveHeap(List<MemoryPoolMXBean> heapPools, AtomicLong peakLiveHeap) {
+        long liveHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null) {
+                liveHeap += usage.getUsed();
+            }
+        }
+        long peak;
+        do {
+            peak = peakLiveHeap.get();
+        } while (liveHeap > peak && !peakLiveHeap.compareAndSet(peak, liveHeap));
+    }
+}
@@ -0,0 +1,180 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import com.csvreader.CsvWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * A generated batch: a metadata CSV that passes verification, and a content source directory with the files it
+ * refers to. The CSV looks like the ones we get from depositors: dc, thesis and mods columns, and || separated
+ * multiple values, including a second file on some rows. Only headers verifyMetaPack accepts are used.
+ * The same arguments always give the same files, so runs can be compared.
+ * <p>
+ * Run as a program to generate a batch to try by hand: SyntheticBatch &lt;dir&gt; &lt;rows&gt; [distinctFiles] [bitstreamBytes]
+ */
+public final class SyntheticBatch {
+
+    private static final String[] HEADERS = {
+            "filename", "dc.title", "dc.title.alternative", "dc.contributor.author",
+            "dc.contributor.advisor", "dc.date.issued", "dc.type", "dc.subject", "dc.description.abstract",
+            "dc.language.iso", "dc.identifier.uri", "thesis.degree.name", "thesis.degree.level",
+            "thesis.degree.discipline", "thesis.degree.grantor", "mods.part.typeVolume", "mods.part.typeIssue"
+    };
+
+    private static final String[] WORDS = {
+            "soil", "nitrogen", "corn", "yield", "Illinois", "prairie", "river", "sediment", "climate", "model",
+            "analysis", "données", "Größe", "archive", "digital", "library", "survey", "history", "Champaign", "Urbana",
+            "O'Brien", "\"quoted\"", "R&D", "<em>", "a, b"
+    };
+
+    private static final String[] TYPES = {"Text", "Thesis", "Article", "Dataset", "Image"};
+
+    private static final String[] DEGREES = {"Ph.D.", "M.S.", "M.A.", "B.S."};
+
+    private static final String[] LEVELS = {"Doctoral", "Masters", "Bachelors"};
+
+    private static final String[] LANGUAGES = {"en", "en", "en", "fr", "de"};
+
+    private final File csvFile;
+
+    private final File sourceDir;
+
+    private final int rows;
+
+    private SyntheticBatch(File csvFile, File sourceDir, int rows) {
+        this.csvFile = csvFile;
+        this.sourceDir = sourceDir;
+        this.rows = rows;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticBatch <dir> <rows> [distinctFiles] [bitstreamBytes]");
+            System.exit(64);
+        }
+        int rows = Integer.parseInt(args[1]);
+        int distinctFiles = (args.length > 2) ? Integer.parseInt(args[2]) : Math.min(rows, 1000);
+        int bitstreamBytes = (args.length > 3) ? Integer.parseInt(args[3]) : 16 * 1024;
+        SyntheticBatch batch = generate(new File(args[0]), rows, distinctFiles, bitstreamBytes, 42);
+        System.out.println("csv: " + batch.getCsvFile() + "\nsource: " + batch.getSourceDir());
+    }
+
+    /**
+     * Writes metadata.csv and a files directory into dir.
+     *
+     * @param dir            Directory to generate the batch in
+     * @param rows           Rows in the CSV, one item each
+     * @param distinctFiles  Files in the source directory. Rows refer to them round robin, so with fewer files than
+     *                       rows the same files are shared by many items.
+     * @param bitstreamBytes Size of each file
+     * @param seed           Seed for the generated text and file contents
+     * @return The batch
+     * @throws IOException If the batch can't be written
+     */
+    public static SyntheticBatch generate(File dir, int rows, int distinctFiles, int bitstreamBytes, long seed) throws IOException {
+        Random random = new Random(seed);
+
+        File sourceDir = new File(dir, "files");
+        if (!sourceDir.mkdirs() && !sourceDir.isDirectory()) {
+            throw new IOException("Unable to create " + sourceDir);
+        }
+        byte[] bytes = new byte[bitstreamBytes];
+        for (int i = 0; i < distinctFiles; i++) {
+            random.nextBytes(bytes);
+            OutputStream out = new FileOutputStream(new File(sourceDir, fileName(i)));
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        }
+
+        File csvFile = new File(dir, "metadata.csv");
+        CsvWriter csvWriter = new CsvWriter(csvFile.getPath(), ',', StandardCharsets.UTF_8);
+        try {
+            csvWriter.writeRecord(HEADERS);
+            String[] record = new String[HEADERS.length];
+            for (int row = 0; row < rows; row++) {
+                boolean thesis = random.nextInt(3) == 0;
+
+                record[0] = fileName(row % distinctFiles)
+                        + ((random.nextInt(5) == 0) ? "||" + supplementaryFiles(random, row, distinctFiles) : "");
+                record[1] = words(random, 4 + random.nextInt(8)) + " " + (row + 1);
+                record[2] = (random.nextInt(4) == 0) ? words(random, 3 + random.nextInt(4)) : "";
+                record[3] = multiple(random, 1 + random.nextInt(3), "Author");
+                record[4] = thesis ? multiple(random, 1 + random.nextInt(2), "Advisor") : "";
+                record[5] = Integer.toString(1950 + random.nextInt(70)) + "-" + String.format("%02d", 1 + random.nextInt(12));
+                record[6] = thesis ? "Thesis" : TYPES[random.nextInt(TYPES.length)];
+                record[7] = words(random, 1) + "||" + words(random, 1) + "||" + words(random, 2) + ((random.nextInt(10) == 0) ? "||" : "");
+                record[8] = words(random, 20 + random.nextInt(120)) + ".";
+                record[9] = LANGUAGES[random.nextInt(LANGUAGES.length)];
+                record[10] = "http://hdl.handle.net/2142/" + (10000 + row);
+                record[11] = thesis ? DEGREES[random.nextInt(DEGREES.length)] : "";
+                record[12] = thesis ? LEVELS[random.nextInt(LEVELS.length)] : "";
+                record[13] = thesis ? words(random, 2) : "";
+                record[14] = thesis ? "University of Illinois at Urbana-Champaign" : "";
+                record[15] = thesis ? "" : Integer.toString(1 + random.nextInt(80));
+                record[16] = thesis ? "" : Integer.toString(1 + random.nextInt(12));
+                csvWriter.writeRecord(record);
+            }
+        } finally {
+            csvWriter.close();
+        }
+
+        return new SyntheticBatch(csvFile, sourceDir, rows);
+    }
+
+    public File getCsvFile() {
+        return csvFile;
+    }
+
+    public File getSourceDir() {
+        return sourceDir;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    private static String fileName(int index) {
+        return "bitstream_" + index + ".pdf";
+    }
+
+    /**
+     * One or two other files of the pool.
+     */
+    private static String supplementaryFiles(Random random, int row, int distinctFiles) {
+        StringBuilder files = new StringBuilder(fileName((row + 1 + random.nextInt(distinctFiles)) % distinctFiles));
+        if (random.nextInt(3) == 0) {
+            files.append("||").append(fileName((row + 2) % distinctFiles));
+        }
+        return files.toString();
+    }
+
+    private static String multiple(Random random, int count, String prefix) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                values.append("||");
+            }
+            values.append(prefix).append(random.nextInt(5000)).append(", ").append(words(random, 1));
+        }
+        return values.toString();
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+}
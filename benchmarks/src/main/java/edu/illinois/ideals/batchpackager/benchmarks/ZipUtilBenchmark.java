@@ -0,0 +1,126 @@
+package edu.illinois.ideals.batchpackager.benchmarks;
+
+import edu.illinois.ideals.batchpackager.TarUtil;
+import edu.illinois.ideals.batchpackager.ZipUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single threaded zip (threads = 1) with the parallel scatter/gather zip on a generated SAF tree, with
+ * and without storing already compressed bitstreams.
+ * Each item has the small metadata files the packager writes plus one bitstream, half of them compressible text and
+ * half random bytes named as JPEGs. Every largeEvery'th item has a large uncompressed TIFF-sized bitstream instead,
+ * so the archive mixes many small files with a few large ones. threads = 1 with the default settings is what the
+ * static ZipUtil.createZip does. createTarGz gzips a tar of the same tree on the same number of threads, for which
+ * storeCompressedFiles makes no difference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipUtilBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"200"})
+    public int items;
+
+    @Param({"1048576"})
+    public int bitstreamBytes;
+
+    @Param({"25"})
+    public int largeEvery;
+
+    @Param({"33554432"})
+    public int largeBitstreamBytes;
+
+    @Param({"true", "false"})
+    public boolean storeCompressedFiles;
+
+    private File safDir;
+
+    private File zipFile;
+
+    private File tarFile;
+
+    @Setup
+    public void createSafTree() throws IOException {
+        safDir = Files.createTempDirectory("zip-benchmark").toFile();
+        zipFile = File.createTempFile("zip-benchmark", ".zip");
+        tarFile = File.createTempFile("zip-benchmark", ".tar.gz");
+
+        Random random = new Random(42);
+        byte[] randomBytes = new byte[bitstreamBytes];
+        byte[] textBytes = new byte[bitstreamBytes];
+        for (int i = 0; i < bitstreamBytes; i++) {
+            textBytes[i] = (byte) ('a' + (i * 7 + i / 13) % 26);
+        }
+
+        for (int item = 1; item <= items; item++) {
+            File itemDir = new File(safDir, "item_" + item);
+            itemDir.mkdir();
+            writeString(new File(itemDir, "dublin_core.xml"), "<?xml version=\"1.0\" encoding=\"UTF-8\"?><dublin_core>"
+                    + "<dcvalue element=\"title\">Item " + item + "</dcvalue></dublin_core>");
+            writeString(new File(itemDir, "contents"), "file_" + item + "\nlicense.txt\tBUNDLE:LICENSE\n");
+            writeString(new File(itemDir, "license.txt"), "License text for item " + item);
+
+            byte[] bitstream = textBytes;
+            String bitstreamName = "file_" + item + ".txt";
+            if (item % largeEvery == 0) {
+                bitstream = new byte[largeBitstreamBytes];
+                for (int i = 0; i < largeBitstreamBytes; i++) {
+                    // smooth gradient, like an uncompressed scan
+                    bitstream[i] = (byte) ((i / 4096 + random.nextInt(4)) & 0xff);
+                }
+                bitstreamName = "scan_" + item + ".tif";
+            } else if (item % 2 == 0) {
+                random.nextBytes(randomBytes);
+                bitstream = randomBytes;
+                bitstreamName = "file_" + item + ".jpg";
+            }
+            OutputStream out = new FileOutputStream(new File(itemDir, bitstreamName));
+            try {
+                out.write(bitstream);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    @TearDown
+    public void deleteSafTree() throws IOException {
+        BenchmarkFiles.deleteRecursively(safDir);
+        zipFile.delete();
+        tarFile.delete();
+    }
+
+    @Benchmark
+    public long createZip() throws IOException {
+        ZipUtil zipUtil = new ZipUtil(threads);
+        zipUtil.setStoreCompressedFiles(storeCompressedFiles);
+        zipUtil.zipDirectory(safDir.getPath(), zipFile.getPath());
+        return zipFile.length();
+    }
+
+    @Benchmark
+    public long createTarGz() throws IOException {
+        TarUtil tarUtil = new TarUtil(true, threads);
+        tarUtil.tarDirectory(safDir.getPath(), tarFile.getPath());
+        return tarFile.length();
+    }
+
+    private static void writeString(File file, String text) throws IOException {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+}
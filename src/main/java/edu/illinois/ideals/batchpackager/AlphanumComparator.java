@@ -24,96 +24,173 @@ package edu.illinois.ideals.batchpackager;
  *
  */
 
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * This is an updated version with enhancements made by Daniel Migowski,
  * Andre Bogus, and David Koelle
  * <p/>
- * To convert to use Templates (Java 1.5+):
- * - Change "implements Comparator" to "implements Comparator<String>"
- * - Change "compare(Object o1, Object o2)" to "compare(String s1, String s2)"
- * - Remove the type checking and casting in compare().
+ * Strings are split into chunks of digits and of everything else. Chunks of digits are compared as numbers, by
+ * length and then digit by digit, and other chunks as strings. Chunks are compared where they are in the strings,
+ * so a comparison allocates nothing.
  * <p/>
  * To use this class:
- * Use the static "sort" method from the java.util.Collections class:
+ * Use the static "sort" method of this class, which works out the chunks of each string once:
+ * AlphanumComparator.sort(your list, AlphanumComparator.Ordering.ASCENDING);
+ * or sort with an instance:
  * Collections.sort(your list, new AlphanumComparator());
  */
-public class AlphanumComparator implements Comparator {
-    private final boolean isDigit(char ch) {
-        return ch >= 48 && ch <= 57;
+public class AlphanumComparator implements Comparator<String> {
+
+    /**
+     * Order to put a list of names in.
+     */
+    public enum Ordering {
+        // Alphanumeric order, page2 before page10
+        ASCENDING,
+        // Reverse alphanumeric order, page10 before page2
+        DESCENDING,
+        // The order they came in, such as the order of the files in a filegroup archive
+        NATURAL
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
     }
 
     /**
-     * Length of string is passed in for improved efficiency (only need to calculate it once) *
+     * @return Offset just past the chunk starting at marker
      */
-    private final String getChunk(String s, int slength, int marker) {
-        StringBuilder chunk = new StringBuilder();
-        char c = s.charAt(marker);
-        chunk.append(c);
+    private static int chunkEnd(String s, int slength, int marker) {
+        boolean digits = isDigit(s.charAt(marker));
         marker++;
-        if (isDigit(c)) {
-            while (marker < slength) {
-                c = s.charAt(marker);
-                if (!isDigit(c))
-                    break;
-                chunk.append(c);
-                marker++;
-            }
-        } else {
-            while (marker < slength) {
-                c = s.charAt(marker);
-                if (isDigit(c))
-                    break;
-                chunk.append(c);
-                marker++;
-            }
+        while (marker < slength && isDigit(s.charAt(marker)) == digits) {
+            marker++;
         }
-        return chunk.toString();
+        return marker;
     }
 
-    public int compare(Object o1, Object o2) {
-        if (!(o1 instanceof String) || !(o2 instanceof String)) {
+    /**
+     * Compares the chunk s1[start1, end1) with s2[start2, end2).
+     */
+    private static int compareChunks(String s1, int start1, int end1, String s2, int start2, int end2) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+
+        // If both chunks contain numeric characters, sort them numerically
+        if (isDigit(s1.charAt(start1)) && isDigit(s2.charAt(start2))) {
+            // Simple chunk comparison by length.
+            if (length1 != length2) {
+                return length1 - length2;
+            }
+            // If equal, the first different number counts
+            for (int i = 0; i < length1; i++) {
+                int result = s1.charAt(start1 + i) - s2.charAt(start2 + i);
+                if (result != 0) {
+                    return result;
+                }
+            }
             return 0;
         }
-        String s1 = (String) o1;
-        String s2 = (String) o2;
 
+        // Same as String.compareTo on the two chunks
+        int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            int result = s1.charAt(start1 + i) - s2.charAt(start2 + i);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return length1 - length2;
+    }
+
+    @Override
+    public int compare(String s1, String s2) {
         int thisMarker = 0;
         int thatMarker = 0;
         int s1Length = s1.length();
         int s2Length = s2.length();
 
         while (thisMarker < s1Length && thatMarker < s2Length) {
-            String thisChunk = getChunk(s1, s1Length, thisMarker);
-            thisMarker += thisChunk.length();
-
-            String thatChunk = getChunk(s2, s2Length, thatMarker);
-            thatMarker += thatChunk.length();
-
-            // If both chunks contain numeric characters, sort them numerically
-            int result = 0;
-            if (isDigit(thisChunk.charAt(0)) && isDigit(thatChunk.charAt(0))) {
-                // Simple chunk comparison by length.
-                int thisChunkLength = thisChunk.length();
-                result = thisChunkLength - thatChunk.length();
-                // If equal, the first different number counts
-                if (result == 0) {
-                    for (int i = 0; i < thisChunkLength; i++) {
-                        result = thisChunk.charAt(i) - thatChunk.charAt(i);
-                        if (result != 0) {
-                            return result;
-                        }
-                    }
-                }
-            } else {
-                result = thisChunk.compareTo(thatChunk);
-            }
+            int thisEnd = chunkEnd(s1, s1Length, thisMarker);
+            int thatEnd = chunkEnd(s2, s2Length, thatMarker);
 
-            if (result != 0)
+            int result = compareChunks(s1, thisMarker, thisEnd, s2, thatMarker, thatEnd);
+            if (result != 0) {
                 return result;
+            }
+            thisMarker = thisEnd;
+            thatMarker = thatEnd;
         }
 
         return s1Length - s2Length;
     }
+
+    /**
+     * A string with its chunks worked out once, for sorting a large list without finding the chunks of each string
+     * again in every comparison. Orders the same way as AlphanumComparator.
+     */
+    public static final class SortKey implements Comparable<SortKey> {
+        private final String value;
+
+        // Offset just past each chunk
+        private final int[] chunkEnds;
+
+        public SortKey(String value) {
+            this.value = value;
+            int length = value.length();
+            int chunks = 0;
+            int[] ends = new int[Math.min(length, 8)];
+            for (int marker = 0; marker < length; ) {
+                marker = chunkEnd(value, length, marker);
+                if (chunks == ends.length) {
+                    ends = Arrays.copyOf(ends, chunks * 2);
+                }
+                ends[chunks++] = marker;
+            }
+            this.chunkEnds = (chunks == ends.length) ? ends : Arrays.copyOf(ends, chunks);
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            int chunks = Math.min(chunkEnds.length, other.chunkEnds.length);
+            int thisMarker = 0;
+            int thatMarker = 0;
+            for (int i = 0; i < chunks; i++) {
+                int result = compareChunks(value, thisMarker, chunkEnds[i], other.value, thatMarker, other.chunkEnds[i]);
+                if (result != 0) {
+                    return result;
+                }
+                thisMarker = chunkEnds[i];
+                thatMarker = other.chunkEnds[i];
+            }
+            return value.length() - other.value.length();
+        }
+    }
+
+    /**
+     * Puts a list of strings in order, working out the chunks of each string once.
+     *
+     * @param values   Strings to sort, sorted in place
+     * @param ordering ASCENDING or DESCENDING alphanumeric order, or NATURAL to leave the list as it is
+     */
+    public static void sort(List<String> values, Ordering ordering) {
+        if (ordering == Ordering.NATURAL || values.size() < 2) {
+            return;
+        }
+        SortKey[] keys = new SortKey[values.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new SortKey(values.get(i));
+        }
+        Arrays.sort(keys, (ordering == Ordering.DESCENDING) ? Comparator.<SortKey>reverseOrder() : Comparator.<SortKey>naturalOrder());
+        for (int i = 0; i < keys.length; i++) {
+            values.set(i, keys[i].getValue());
+        }
+    }
 }
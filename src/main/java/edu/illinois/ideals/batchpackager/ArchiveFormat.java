@@ -0,0 +1,69 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Kinds of archive a SAF batch can be packaged in.
+ */
+public enum ArchiveFormat {
+
+    /**
+     * Zip, with already compressed files stored as they are. What DSpace's import --zip takes.
+     */
+    ZIP(".zip"),
+
+    /**
+     * Uncompressed POSIX tar, for moving a batch to the DSpace server before unpacking it there.
+     */
+    TAR(".tar"),
+
+    /**
+     * Gzipped POSIX tar, compressed on several threads with ParallelGzipOutputStream.
+     */
+    TAR_GZ(".tar.gz");
+
+    private final String extension;
+
+    ArchiveFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return File name extension, such as .zip
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Starts writing an archive of this format.
+     *
+     * @param file                 File to write the archive to, replacing it
+     * @param zipLevel             Deflate level for compressed zip entries and gzip, 0-9 or -1 for the default
+     * @param storeCompressedFiles true to store already compressed files in a zip instead of deflating them
+     * @param threads              Number of threads gzipping a .tar.gz
+     * @return The archive stream
+     * @throws IOException If the file can't be created
+     */
+    public ArchiveStream open(File file, int zipLevel, boolean storeCompressedFiles, int threads) throws IOException {
+        switch (this) {
+            case TAR:
+                return new ArchiveStream.Tar(file);
+            case TAR_GZ:
+                return new ArchiveStream.Tar(new ParallelGzipOutputStream(new FileOutputStream(file), threads, zipLevel));
+            default:
+                return new ArchiveStream.Zip(file, zipLevel, storeCompressedFiles);
+        }
+    }
+
+    /**
+     * @param name Name of a format, such as zip, TAR or tar.gz
+     * @return The format
+     * @throws IllegalArgumentException If there is no such format
+     */
+    public static ArchiveFormat fromName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('.', '_'));
+    }
+}
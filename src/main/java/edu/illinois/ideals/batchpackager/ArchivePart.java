@@ -0,0 +1,107 @@
+package edu.illinois.ideals.batchpackager;
+
+/**
+ * One part of a batch split into several SAF archives, each small enough for DSpace to import in one go.
+ * A part holds a run of consecutive rows of the csv, and its items keep the item_N names of their rows, so every
+ * item has the same name whichever part it ends up in. Only the thread reading the csv adds rows to a part.
+ */
+public class ArchivePart {
+
+    public static final String DIRECTORY_PREFIX = "part_";
+
+    private final int number;
+
+    private final int firstRow;
+
+    private volatile int lastRow;
+
+    private volatile int itemCount;
+
+    // Estimated from the sizes of the source files
+    private volatile long bytes;
+
+    /**
+     * @param number   Number of the part, from 1
+     * @param firstRow Row of the first item in it
+     */
+    public ArchivePart(int number, int firstRow) {
+        this.number = number;
+        this.firstRow = firstRow;
+        this.lastRow = firstRow - 1;
+    }
+
+    /**
+     * @param rowBytes Estimated size of the next item
+     * @param maxItems Most items a part may hold, 0 for no limit
+     * @param maxBytes Most bytes a part may hold, 0 for no limit. A single item larger than this gets a part of its own.
+     * @return true if the item has to go in a new part
+     */
+    public boolean isFull(long rowBytes, int maxItems, long maxBytes) {
+        if (maxItems > 0 && itemCount >= maxItems) {
+            return true;
+        }
+        return maxBytes > 0 && itemCount > 0 && bytes + rowBytes > maxBytes;
+    }
+
+    /**
+     * Adds the item of the next row.
+     *
+     * @param rowNumber Row in the CSV
+     * @param rowBytes  Estimated size of its bitstreams
+     */
+    public void add(int rowNumber, long rowBytes) {
+        lastRow = rowNumber;
+        itemCount++;
+        bytes += rowBytes;
+    }
+
+    /**
+     * @param rowNumber Row in the CSV
+     * @return true if the row's item is in this part
+     */
+    public boolean contains(int rowNumber) {
+        return rowNumber >= firstRow && rowNumber <= lastRow;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public int getFirstRow() {
+        return firstRow;
+    }
+
+    public int getLastRow() {
+        return lastRow;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Name of the directory of the part in the archive directory
+     */
+    public String getDirectoryName() {
+        return DIRECTORY_PREFIX + number;
+    }
+
+    /**
+     * @return Name of the zip of the part in the archive directory
+     */
+    public String getZipName() {
+        return getArchiveName(ArchiveFormat.ZIP);
+    }
+
+    /**
+     * @param format Format of the archive
+     * @return Name of the archive of the part in the archive directory, such as part_2.tar
+     */
+    public String getArchiveName(ArchiveFormat format) {
+        return getDirectoryName() + format.getExtension();
+    }
+}
@@ -0,0 +1,170 @@
+package edu.illinois.ideals.batchpackager;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.zip.ZipEntry;
+
+/**
+ * An archive being written one entry at a time, from files, bytes or streams, so a batch can be packaged without
+ * its files being on disk first. Entry names use / and directory names end with /. Not safe for concurrent use.
+ */
+public abstract class ArchiveStream implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Adds a directory entry.
+     *
+     * @param name         Name of the directory, ending with /
+     * @param lastModified Modification time in milliseconds
+     * @throws IOException If the entry can't be written
+     */
+    public abstract void putDirectory(String name, long lastModified) throws IOException;
+
+    /**
+     * Adds a file entry with the content read from a stream.
+     *
+     * @param name         Name of the file
+     * @param size         Number of bytes in the stream, which a tar needs up front
+     * @param lastModified Modification time in milliseconds
+     * @param in           Content, read to its end but not closed
+     * @throws IOException If the content can't be read or the entry can't be written
+     */
+    public abstract void putFile(String name, long size, long lastModified, InputStream in) throws IOException;
+
+    /**
+     * Adds a file entry with the given content.
+     */
+    public void putFile(String name, byte[] bytes, long lastModified) throws IOException {
+        putFile(name, bytes.length, lastModified, new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Adds a file entry with the content of a file on disk, read once.
+     */
+    public void putFile(String name, File source) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            putFile(name, source.length(), source.lastModified(), in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the end of the archive. Nothing can be added afterwards.
+     *
+     * @throws IOException If the archive can't be written
+     */
+    public abstract void finish() throws IOException;
+
+    /**
+     * Zip archive written to a file, which lets stored entries get their size and crc after their content.
+     */
+    static final class Zip extends ArchiveStream {
+        private final ZipArchiveOutputStream out;
+
+        private final boolean storeCompressedFiles;
+
+        Zip(File file, int level, boolean storeCompressedFiles) throws IOException {
+            this.out = new ZipArchiveOutputStream(file);
+            this.out.setLevel(level);
+            this.storeCompressedFiles = storeCompressedFiles;
+        }
+
+        @Override
+        public void putDirectory(String name, long lastModified) throws IOException {
+            ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setTime(lastModified);
+            entry.setMethod(ZipEntry.STORED);
+            out.putArchiveEntry(entry);
+            out.closeArchiveEntry();
+        }
+
+        @Override
+        public void putFile(String name, long size, long lastModified, InputStream in) throws IOException {
+            ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setTime(lastModified);
+            entry.setMethod((storeCompressedFiles && CompressedFormats.isCompressedExtension(name)) ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            out.putArchiveEntry(entry);
+            IOUtils.copy(in, out);
+            out.closeArchiveEntry();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.finish();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * POSIX tar, so long names and files over 8GB are kept as they are.
+     */
+    static final class Tar extends ArchiveStream {
+        private final TarArchiveOutputStream out;
+
+        /**
+         * @param file File to write the tar to
+         */
+        Tar(File file) throws IOException {
+            this(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * @param stream Stream to write the tar to, such as a gzip stream, closed with the archive
+         */
+        Tar(OutputStream stream) {
+            this.out = new TarArchiveOutputStream(stream, "UTF-8");
+            this.out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            this.out.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            this.out.setAddPaxHeadersForNonAsciiNames(true);
+        }
+
+        @Override
+        public void putDirectory(String name, long lastModified) throws IOException {
+            TarArchiveEntry entry = new TarArchiveEntry(name);
+            entry.setModTime(new Date(lastModified));
+            out.putArchiveEntry(entry);
+            out.closeArchiveEntry();
+        }
+
+        @Override
+        public void putFile(String name, long size, long lastModified, InputStream in) throws IOException {
+            TarArchiveEntry entry = new TarArchiveEntry(name);
+            entry.setSize(size);
+            entry.setModTime(new Date(lastModified));
+            out.putArchiveEntry(entry);
+            IOUtils.copy(in, out);
+            out.closeArchiveEntry();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.finish();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package edu.illinois.ideals.batchpackager;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless entry point for scripted batch runs. Only uses SAFPackage, never the JavaFX classes of Main and Controller.
+ * <p>
+ * The report goes to standard output, or to the --report file. Progress messages go to standard error, so the
+ * report can be piped or parsed. The exit code says how the run went, see the EXIT_ constants.
+ */
+public class BatchPackagerCli {
+
+    // The command did everything it was asked to
+    public static final int EXIT_OK = 0;
+
+    // Critical errors in the CSV or source directory. The batch was not (or would not be) created.
+    public static final int EXIT_CRITICAL_ERRORS = 1;
+
+    // The batch was created, but some of its items could not be
+    public static final int EXIT_ITEMS_FAILED = 2;
+
+    // A file could not be read or written, or the zip could not be created
+    public static final int EXIT_IO_ERROR = 3;
+
+    // Unknown command, missing or bad options
+    public static final int EXIT_USAGE = 64;
+
+    private static final String USAGE = "BatchPackagerCli verify|process|zip|manifest [options]";
+
+    private static final String COMMANDS = "Commands:\n"
+            + " verify    check the metadata csv and source directory, without creating anything (--csv, --source)\n"
+            + " process   create the SAF archive (--csv, --source, --archive)\n"
+            + " zip       zip an existing SAF archive directory, or tar it with --format (--archive)\n"
+            + " manifest  write a starting metadata csv listing the files next to it (--csv)\n"
+            + "Exit codes: 0 ok, 1 critical errors, 2 some items failed, 3 file access error, 64 usage error\n\n";
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs one command.
+     *
+     * @param args Command followed by its options
+     * @return Exit code
+     */
+    public static int run(String[] args) {
+        Options options = buildOptions();
+
+        CommandLine line;
+        try {
+            CommandLineParser parser = new GnuParser();
+            line = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            printHelp(options);
+            return EXIT_USAGE;
+        }
+
+        String[] commands = line.getArgs();
+        if (line.hasOption("help")) {
+            printHelp(options);
+            return EXIT_OK;
+        }
+        if (commands.length != 1) {
+            System.err.println("ERROR: Expected exactly one command");
+            printHelp(options);
+            return EXIT_USAGE;
+        }
+
+        // SAFPackage prints progress to standard output. Keep that free for the report.
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+        CollectionResolver collectionResolver = null;
+        try {
+            if (line.hasOption("collections-rest-url")) {
+                String restUrl = line.getOptionValue("collections-rest-url");
+                collectionResolver = new CollectionResolver(restUrl, CollectionResolver.defaultCacheFile(restUrl),
+                        TimeUnit.HOURS.toMillis(intOption(line, "collections-cache-hours", 24)));
+            }
+            return runCommand(commands[0], line, stdout, collectionResolver);
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            printHelp(options);
+            return EXIT_USAGE;
+        } finally {
+            if (collectionResolver != null) {
+                try {
+                    collectionResolver.close();
+                } catch (IOException e) {
+                    System.err.println("Unable to save the collection cache: " + e.getMessage());
+                }
+            }
+            System.setOut(stdout);
+        }
+    }
+
+    private static int runCommand(String command, CommandLine line, PrintStream stdout, CollectionResolver collectionResolver) {
+        if ("verify".equals(command)) {
+            SAFPackage safPackage = createPackage(line, collectionResolver);
+            List<String> report = safPackage.verifyMetaPack(requiredOption(line, "csv"), requiredOption(line, "source"));
+            return writeReport(line, stdout, report, exitCode(safPackage));
+        } else if ("process".equals(command)) {
+            SAFPackage safPackage = createPackage(line, collectionResolver);
+            List<String> report = safPackage.processMetaPack(requiredOption(line, "csv"), requiredOption(line, "source"),
+                    requiredOption(line, "archive"), false);
+            int exitCode = exitCode(safPackage);
+            // A streamed batch is already in its archive
+            if (line.hasOption("zip") && !line.hasOption("stream") && exitCode != EXIT_CRITICAL_ERRORS && exitCode != EXIT_IO_ERROR) {
+                if (!safPackage.exportToZip()) {
+                    report.add("Error creating zip of " + line.getOptionValue("archive"));
+                    exitCode = EXIT_IO_ERROR;
+                }
+            }
+            return writeReport(line, stdout, report, exitCode);
+        } else if ("zip".equals(command)) {
+            SAFPackage safPackage = createPackage(line, collectionResolver);
+            String archiveDir = requiredOption(line, "archive");
+            List<String> report = new ArrayList<String>();
+            int exitCode = EXIT_OK;
+            if (safPackage.exportToZip(archiveDir)) {
+                report.add("[OK] Zipped " + archiveDir);
+            } else {
+                report.add("Error creating zip of " + archiveDir);
+                exitCode = EXIT_IO_ERROR;
+            }
+            return writeReport(line, stdout, report, exitCode);
+        } else if ("manifest".equals(command)) {
+            SAFPackage safPackage = createPackage(line, collectionResolver);
+            String csv = requiredOption(line, "csv");
+            List<String> report = new ArrayList<String>();
+            int exitCode = EXIT_OK;
+            if (safPackage.generateManifest(csv)) {
+                report.add("[OK] Created manifest " + csv);
+            } else {
+                report.add("Error creating manifest " + csv);
+                exitCode = EXIT_IO_ERROR;
+            }
+            return writeReport(line, stdout, report, exitCode);
+        }
+        throw new IllegalArgumentException("Unknown command " + command);
+    }
+
+    private static Options buildOptions() {
+        Options options = new Options();
+        options.addOption(option("c", "csv", "file", "metadata csv"));
+        options.addOption(option("s", "source", "dir", "content source directory"));
+        options.addOption(option("a", "archive", "dir", "SAF archive directory to create or zip"));
+        options.addOption(option("r", "report", "file", "write the report to this file instead of standard output"));
+        options.addOption(option("t", "threads", "n", "threads building items (default 1)"));
+        options.addOption(option(null, "verify-threads", "n", "threads verifying the rows of the csv (default 1)"));
+        options.addOption(option("m", "transfer", "strategy",
+                "how bitstreams are put in items: copy, channel_copy, hard_link, symbolic_link or auto (default copy)"));
+        options.addOption(new Option(null, "item-writer-thread", false,
+                "write the small files of items (contents, metadata, license) on a dedicated I/O thread"));
+        options.addOption(new Option(null, "dedup", false,
+                "copy a bitstream shared by several rows once and hard link the other rows' items to it"));
+        options.addOption(new Option(null, "single-pass", false, "verify and create items in one read of the csv"));
+        options.addOption(option(null, "part-items", "n", "split the batch into parts of at most n items"));
+        options.addOption(option(null, "part-mb", "n", "split the batch into parts of at most n megabytes of bitstreams"));
+        options.addOption(option(null, "license", "file", "license put in every item, instead of the bundled license"));
+        options.addOption(option(null, "collection-license", "handle=file",
+                "license for the items of a collection, can be given for several collections"));
+        options.addOption(option(null, "filegroup-order", "order",
+                "order of the files of a filegroup in its item: ascending, descending or natural (default descending)"));
+        options.addOption(new Option(null, "rebuild", false,
+                "build every item again, instead of skipping the ones the archive's journal says are unchanged"));
+        options.addOption(option(null, "collections-rest-url", "url",
+                "check the collections column against this DSpace REST API, such as http://localhost:8080/rest"));
+        options.addOption(option(null, "collections-cache-hours", "n", "hours the list of collections is cached (default 24)"));
+        options.addOption(new Option("z", "zip", false, "zip the archive after process"));
+        options.addOption(option(null, "format", "format",
+                "archive the zip command and --zip write: zip, tar or tar.gz, gzipped on --zip-threads (default zip)"));
+        options.addOption(option(null, "stream", "format",
+                "write items straight into SimpleArchiveFormat.zip (part_N.zip when split), instead of item directories: zip, tar or tar.gz"));
+        options.addOption(option(null, "zip-threads", "n", "threads compressing zip entries (default 1)"));
+        options.addOption(option(null, "zip-level", "0-9", "deflate level of compressed zip entries"));
+        options.addOption(new Option(null, "zip-deflate-all", false,
+                "deflate every file, instead of storing already compressed ones as they are"));
+        options.addOption(new Option("h", "help", false, "show this help"));
+        return options;
+    }
+
+    private static Option option(String opt, String longOpt, String argName, String description) {
+        Option option = new Option(opt, longOpt, true, description);
+        option.setArgName(argName);
+        return option;
+    }
+
+    private static void printHelp(Options options) {
+        new HelpFormatter().printHelp(new PrintWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8), true),
+                HelpFormatter.DEFAULT_WIDTH, USAGE, COMMANDS, options, HelpFormatter.DEFAULT_LEFT_PAD,
+                HelpFormatter.DEFAULT_DESC_PAD, null);
+    }
+
+    private static SAFPackage createPackage(CommandLine line, CollectionResolver collectionResolver) {
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setCollectionResolver(collectionResolver);
+        safPackage.setWorkerThreads(intOption(line, "threads", 1));
+        safPackage.setVerifyThreads(intOption(line, "verify-threads", 1));
+        safPackage.setZipThreads(intOption(line, "zip-threads", 1));
+        if (line.hasOption("zip-level")) {
+            safPackage.setZipLevel(intOption(line, "zip-level", 0));
+        }
+        safPackage.setZipStoreCompressedFiles(!line.hasOption("zip-deflate-all"));
+        safPackage.setItemFileWriterThread(line.hasOption("item-writer-thread"));
+        safPackage.setDeduplicateBitstreams(line.hasOption("dedup"));
+        safPackage.setSinglePass(line.hasOption("single-pass"));
+        safPackage.setResume(!line.hasOption("rebuild"));
+        safPackage.setPartLimits(intOption(line, "part-items", 0), intOption(line, "part-mb", 0) * 1024L * 1024L);
+        if (line.hasOption("license")) {
+            safPackage.setLicenseFile(existingFile(line.getOptionValue("license")));
+        }
+        String[] collectionLicenses = line.getOptionValues("collection-license");
+        if (collectionLicenses != null) {
+            for (String collectionLicense : collectionLicenses) {
+                int separator = collectionLicense.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("--collection-license needs handle=file, not " + collectionLicense);
+                }
+                safPackage.setCollectionLicense(collectionLicense.substring(0, separator),
+                        existingFile(collectionLicense.substring(separator + 1)));
+            }
+        }
+        if (line.hasOption("filegroup-order")) {
+            String ordering = line.getOptionValue("filegroup-order");
+            try {
+                safPackage.setFilegroupOrdering(AlphanumComparator.Ordering.valueOf(ordering.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown filegroup order " + ordering);
+            }
+        }
+        if (line.hasOption("format")) {
+            safPackage.setExportFormat(archiveFormat(line.getOptionValue("format")));
+        }
+        if (line.hasOption("stream")) {
+            safPackage.setStreamingFormat(archiveFormat(line.getOptionValue("stream")));
+        }
+        if (line.hasOption("transfer")) {
+            String strategy = line.getOptionValue("transfer");
+            try {
+                safPackage.setTransferStrategy(TransferStrategy.valueOf(strategy.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown transfer strategy " + strategy);
+            }
+        }
+        return safPackage;
+    }
+
+    private static ArchiveFormat archiveFormat(String name) {
+        try {
+            return ArchiveFormat.fromName(name);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown archive format " + name);
+        }
+    }
+
+    private static String requiredOption(CommandLine line, String name) {
+        String value = line.getOptionValue(name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing required option --" + name);
+        }
+        return value;
+    }
+
+    private static File existingFile(String path) {
+        File file = new File(path.trim());
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("There is no file " + path);
+        }
+        return file;
+    }
+
+    private static int intOption(CommandLine line, String name, int defaultValue) {
+        String value = line.getOptionValue(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number, not " + value);
+        }
+    }
+
+    private static int exitCode(SAFPackage safPackage) {
+        if (safPackage.hasCriticalErrors()) {
+            return safPackage.hasFileAccessError() ? EXIT_IO_ERROR : EXIT_CRITICAL_ERRORS;
+        }
+        if (safPackage.getItemFailureCount() > 0) {
+            return EXIT_ITEMS_FAILED;
+        }
+        return EXIT_OK;
+    }
+
+    private static int writeReport(CommandLine line, PrintStream stdout, List<String> report, int exitCode) {
+        String reportFile = line.getOptionValue("report");
+        if (reportFile == null) {
+            for (String reportLine : report) {
+                stdout.println(reportLine);
+            }
+            stdout.flush();
+            return exitCode;
+        }
+
+        try {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8));
+            try {
+                for (String reportLine : report) {
+                    writer.println(reportLine);
+                }
+            } finally {
+                writer.close();
+            }
+            if (writer.checkError()) {
+                throw new IOException("Unable to write " + reportFile);
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Unable to write report " + reportFile + ": " + e.getMessage());
+            return EXIT_IO_ERROR;
+        }
+        return exitCode;
+    }
+}
@@ -0,0 +1,113 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies each source bitstream into the archive only once. Later references to the same source file, such as a
+ * cover image shared by thousands of rows, are hard linked to that first copy, and copied again only when a link
+ * can't be made. Safe to use from several item workers at once.
+ */
+public class BitstreamDeduplicator {
+
+    private final TransferStrategy transferStrategy;
+
+    // Absolute source file -> the copy made for its first reference
+    private final ConcurrentMap<File, FutureTask<File>> firstCopies = new ConcurrentHashMap<File, FutureTask<File>>();
+
+    // Cleared the first time the file system refuses hard links altogether
+    private volatile boolean linksSupported = true;
+
+    private final AtomicLong linkedReferences = new AtomicLong();
+
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * @param transferStrategy Resolved strategy used for the first copy of each file. Link strategies are used for
+     *                         every reference as they are, since they don't copy anything anyway.
+     */
+    public BitstreamDeduplicator(TransferStrategy transferStrategy) {
+        this.transferStrategy = transferStrategy;
+    }
+
+    /**
+     * Puts the source file in place at the target path, linking to an earlier copy of it when there is one.
+     *
+     * @param source Bitstream in the content source directory
+     * @param target Path of the bitstream in the item directory
+     * @throws IOException If the file can't be copied or linked
+     */
+    public void transfer(final File source, final File target) throws IOException {
+        if (transferStrategy == TransferStrategy.HARD_LINK || transferStrategy == TransferStrategy.SYMBOLIC_LINK) {
+            transferStrategy.transfer(source, target);
+            return;
+        }
+
+        FutureTask<File> copy = new FutureTask<File>(() -> {
+            transferStrategy.transfer(source, target);
+            return target;
+        });
+        FutureTask<File> firstCopy = firstCopies.putIfAbsent(source.getAbsoluteFile(), copy);
+        if (firstCopy == null) {
+            copy.run();
+            awaitCopy(copy);
+            return;
+        }
+
+        File firstCopyFile;
+        try {
+            firstCopyFile = awaitCopy(firstCopy);
+        } catch (IOException e) {
+            // The first copy failed for its own item, this reference gets a copy of its own
+            transferStrategy.transfer(source, target);
+            return;
+        }
+
+        if (linksSupported && !firstCopyFile.equals(target)) {
+            try {
+                Files.deleteIfExists(target.toPath());
+                Files.createLink(target.toPath(), firstCopyFile.toPath());
+                linkedReferences.incrementAndGet();
+                bytesSaved.addAndGet(firstCopyFile.length());
+                return;
+            } catch (UnsupportedOperationException e) {
+                linksSupported = false;
+            } catch (IOException e) {
+                // Too many links, or the first copy has gone away. Copy this one.
+            }
+        }
+        transferStrategy.transfer(source, target);
+    }
+
+    /**
+     * @return Number of references that were hard linked to an earlier copy instead of copied
+     */
+    public long getLinkedReferences() {
+        return linkedReferences.get();
+    }
+
+    /**
+     * @return Bytes that did not have to be copied because a reference was hard linked
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    private static File awaitCopy(FutureTask<File> copy) throws IOException {
+        try {
+            return copy.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a bitstream copy", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drop-in replacement for OutputXML that writes exactly the same dublin_core.xml and metadata_[schema].xml.
+ * The document is escaped straight into a buffer borrowed from the current thread and written to disk in one go
+ * by end(), instead of going through a stream, writer and SimpleXmlWriter per file. endToBytes() hands the document
+ * back instead, for writing with the other files of an item.
+ * Fields can be given as ColumnPlan columns, so the element, qualifier and language are not parsed again for
+ * every value.
+ */
+public class BufferedOutputXML {
+
+    // Buffers that grew beyond this are left for the garbage collector instead of being kept for the next file
+    private static final int MAX_RETAINED_CHARS = 1024 * 1024;
+
+    private static final Pattern languagePattern = Pattern.compile("\\[(.*?)\\]");
+
+    private static final ThreadLocal<ThreadBuffers> threadBuffers = new ThreadLocal<ThreadBuffers>() {
+        @Override
+        protected ThreadBuffers initialValue() {
+            return new ThreadBuffers();
+        }
+    };
+
+    private final String outputFile;
+    private String schema;
+    private StringBuilder document;
+    private boolean hasValues;
+
+    public BufferedOutputXML(String outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    public BufferedOutputXML(String outputFile, String schema) {
+        this(outputFile);
+        this.schema = schema;
+    }
+
+    public void start() {
+        document = threadBuffers.get().borrowText();
+        document.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><dublin_core");
+        if (schema != null && !"dc".contentEquals(schema)) {
+            appendAttribute(document, "schema", schema);
+        }
+    }
+
+    /**
+     * Accepts only one dublin core value
+     * dc.description dc.description.abstract
+     *
+     * @param dcField   Full dublin core field name -- ex: dc.description OR dc.description.abstract
+     * @param metaValue value of the metadata. Should not be blank.
+     */
+    public void writeOneDC(String dcField, String metaValue) {
+        String element = "";
+        String qualifier = "";
+
+        int languageStart = dcField.indexOf('[');
+        String dcFieldMinusLanguage = (languageStart >= 0) ? dcField.substring(0, languageStart) : dcField;
+        String[] dublinPieces = dcFieldMinusLanguage.split("\\.");
+        if (dublinPieces.length > 1) {
+            element = dublinPieces[1];
+        }
+        if (dublinPieces.length > 2) {
+            qualifier = dublinPieces[2];
+        }
+
+        //See if this has a language dc.description[fr]
+        String language = null;
+        if (languageStart >= 0) {
+            Matcher languageMatcher = languagePattern.matcher(dcField);
+            if (languageMatcher.find()) {
+                language = languageMatcher.group(1);
+            }
+        }
+
+        writeValue(dcValueStartTag(element, qualifier, language), metaValue);
+    }
+
+    /**
+     * Accepts only one value for a metadata column that has already been parsed.
+     *
+     * @param column    METADATA column of the CSV
+     * @param metaValue value of the metadata. Should not be blank.
+     */
+    public void writeOneDC(ColumnPlan.Column column, String metaValue) {
+        writeValue(column.getDcValueStartTag(), metaValue);
+    }
+
+    private void writeValue(String dcValueStartTag, String metaValue) {
+        if (!hasValues) {
+            // first value closes the dublin_core start tag
+            document.append('>');
+            hasValues = true;
+        }
+        document.append(dcValueStartTag);
+        appendEscaped(document, metaValue);
+        document.append("</dcvalue>");
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    public void end() {
+        if (document == null) {
+            return;
+        }
+        closeDocument();
+
+        ThreadBuffers buffers = threadBuffers.get();
+        try {
+            ByteBuffer bytes = buffers.encode(document);
+            FileOutputStream out = new FileOutputStream(outputFile);
+            try {
+                out.write(bytes.array(), 0, bytes.limit());
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.out.println(e.getMessage());
+        } finally {
+            buffers.returnText(document);
+            document = null;
+        }
+    }
+
+    /**
+     * Ends the document the same way as end(), but returns it instead of writing it to the output file.
+     *
+     * @return The document encoded as UTF-8, null if it wasn't started or has already ended
+     * @throws IOException If the document can't be encoded
+     */
+    public byte[] endToBytes() throws IOException {
+        if (document == null) {
+            return null;
+        }
+        closeDocument();
+
+        ThreadBuffers buffers = threadBuffers.get();
+        try {
+            ByteBuffer bytes = buffers.encode(document);
+            return Arrays.copyOf(bytes.array(), bytes.limit());
+        } finally {
+            buffers.returnText(document);
+            document = null;
+        }
+    }
+
+    private void closeDocument() {
+        if (hasValues) {
+            document.append("</dublin_core>");
+        } else {
+            document.append("/>");
+        }
+    }
+
+    /**
+     * The dcvalue start tag for a field, with its attributes escaped, as SimpleXmlWriter would write it.
+     *
+     * @param element   Metadata element, left out if empty
+     * @param qualifier Metadata qualifier, left out if empty
+     * @param language  Language, left out if null
+     * @return Start tag, such as &lt;dcvalue element="description" qualifier="abstract"&gt;
+     */
+    static String dcValueStartTag(String element, String qualifier, String language) {
+        StringBuilder tag = new StringBuilder("<dcvalue");
+        if (element.length() > 0) {
+            appendAttribute(tag, "element", element);
+        }
+        if (qualifier.length() > 0) {
+            appendAttribute(tag, "qualifier", qualifier);
+        }
+        if (language != null) {
+            appendAttribute(tag, "language", language);
+        }
+        return tag.append('>').toString();
+    }
+
+    private static void appendAttribute(StringBuilder out, String name, String value) {
+        out.append(' ').append(name).append("=\"");
+        appendEscaped(out, value);
+        out.append('"');
+    }
+
+    /**
+     * Escapes the same five characters as SimpleXmlWriter.
+     */
+    private static void appendEscaped(StringBuilder out, String text) {
+        int length = text.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            String entity;
+            switch (text.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                case '\'':
+                    entity = "&apos;";
+                    break;
+                default:
+                    continue;
+            }
+            out.append(text, start, i).append(entity);
+            start = i + 1;
+        }
+        out.append(text, start, length);
+    }
+
+    /**
+     * Text buffers and the UTF-8 encoder of one thread. A row has its dublin_core.xml and any other schema files
+     * open at the same time, so text buffers are handed out from a small free list.
+     */
+    private static final class ThreadBuffers {
+        private final ArrayDeque<StringBuilder> freeText = new ArrayDeque<StringBuilder>();
+
+        // Unpaired surrogates become ?, the same as the OutputStreamWriter OutputXML uses
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private ByteBuffer bytes = ByteBuffer.allocate(8192);
+
+        StringBuilder borrowText() {
+            StringBuilder text = freeText.poll();
+            return (text != null) ? text : new StringBuilder(1024);
+        }
+
+        void returnText(StringBuilder text) {
+            if (text.capacity() <= MAX_RETAINED_CHARS) {
+                text.setLength(0);
+                freeText.push(text);
+            }
+        }
+
+        ByteBuffer encode(CharSequence text) throws IOException {
+            int maxBytes = (int) Math.ceil(text.length() * (double) encoder.maxBytesPerChar());
+            if (bytes.capacity() < maxBytes) {
+                bytes = ByteBuffer.allocate(maxBytes);
+            }
+
+            bytes.clear();
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(text), bytes, true);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            result = encoder.flush(bytes);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            bytes.flip();
+
+            if (bytes.capacity() > MAX_RETAINED_CHARS * 3) {
+                ByteBuffer encoded = bytes;
+                bytes = ByteBuffer.allocate(8192);
+                return encoded;
+            }
+            return bytes;
+        }
+    }
+}
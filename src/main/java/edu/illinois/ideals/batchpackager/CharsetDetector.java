@@ -0,0 +1,258 @@
+package edu.illinois.ideals.batchpackager;
+
+import org.mozilla.universalchardet.UniversalDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Works out the charset of a metadata CSV from a bounded sample of it, so detection costs the same for a 10 KB and
+ * a 10 GB file. In order:
+ * <ul>
+ * <li>a byte order mark decides it</li>
+ * <li>ISO-2022 escape sequences give that ISO-2022 charset, which is 7 bit and so would otherwise pass for ASCII</li>
+ * <li>a sample that is pure ASCII or valid UTF-8 is UTF-8, without running the detector</li>
+ * <li>otherwise the sample goes through juniversalchardet's UniversalDetector, falling back to UTF-8</li>
+ * </ul>
+ * The sample is the start of the file plus windows spread evenly through the rest, so a stray ISO-8859-1 byte deep
+ * in an otherwise ASCII file is still likely to be seen.
+ * <p>
+ * Results are cached by path, size and modification time, so verifying an unchanged CSV again doesn't read it again.
+ */
+public final class CharsetDetector {
+
+    // Bytes read per sample window
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    // At most this many windows, the first at the start of the file
+    private static final int MAX_WINDOWS = 8;
+
+    private static final int CACHE_SIZE = 16;
+
+    private static final Map<FileVersion, Charset> cache = new LinkedHashMap<FileVersion, Charset>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FileVersion, Charset> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private CharsetDetector() {
+    }
+
+    /**
+     * @param file Metadata CSV
+     * @return Its charset, from the cache if the file hasn't changed since it was last detected
+     * @throws IOException If the file can't be read
+     */
+    public static Charset detect(File file) throws IOException {
+        FileVersion version = FileVersion.of(file);
+        synchronized (cache) {
+            Charset charset = cache.get(version);
+            if (charset != null) {
+                return charset;
+            }
+        }
+
+        Charset charset = detectUncached(file);
+        synchronized (cache) {
+            cache.put(version, charset);
+        }
+        return charset;
+    }
+
+    /**
+     * Same as detect, without looking in or adding to the cache.
+     *
+     * @param file Metadata CSV
+     * @return Its charset
+     * @throws IOException If the file can't be read
+     */
+    public static Charset detectUncached(File file) throws IOException {
+        byte[][] windows = readSample(file);
+
+        Charset bomCharset = byteOrderMarkCharset(windows[0], windows[0].length);
+        if (bomCharset != null) {
+            return bomCharset;
+        }
+
+        Charset iso2022Charset = iso2022Charset(windows);
+        if (iso2022Charset != null) {
+            return iso2022Charset;
+        }
+
+        boolean validUtf8 = true;
+        for (int i = 0; i < windows.length && validUtf8; i++) {
+            // The last window ends at the end of the file, so only the others can end in the middle of a character
+            validUtf8 = isUtf8(windows[i], i > 0, i < windows.length - 1);
+        }
+        if (validUtf8) {
+            return StandardCharsets.UTF_8;
+        }
+
+        UniversalDetector detector = new UniversalDetector(null);
+        for (int i = 0; i < windows.length && !detector.isDone(); i++) {
+            detector.handleData(windows[i], 0, windows[i].length);
+        }
+        detector.dataEnd();
+
+        String charset = detector.getDetectedCharset();
+        if (charset == null) {
+            System.out.println("Didn't properly detect the charset of file. Setting to UTF-8 as a fallback");
+            return StandardCharsets.UTF_8;
+        }
+        return Charset.forName(charset);
+    }
+
+    /**
+     * @param windows Sample of a file
+     * @return ISO-2022-JP, -KR or -CN if the sample switches to one of their character sets, otherwise null
+     */
+    private static Charset iso2022Charset(byte[][] windows) {
+        for (byte[] window : windows) {
+            for (int i = 0; i + 2 < window.length; i++) {
+                if (window[i] != 0x1B || window[i + 1] != '$') {
+                    continue;
+                }
+                byte designation = window[i + 2];
+                if (designation == 'B' || designation == '@') {
+                    return Charset.forName("ISO-2022-JP");
+                }
+                if (i + 3 < window.length && (designation == ')' || designation == '*')) {
+                    byte set = window[i + 3];
+                    if (set == 'C') {
+                        return Charset.forName("ISO-2022-KR");
+                    }
+                    if (set == 'A' || set == 'G' || set == 'H') {
+                        return Charset.forName("ISO-2022-CN");
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param bytes  Start of a file
+     * @param length Bytes of it that were read
+     * @return The charset given by a byte order mark at the start, or null if there is none
+     */
+    public static Charset byteOrderMarkCharset(byte[] bytes, int length) {
+        if (length >= 3 && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB && (bytes[2] & 0xFF) == 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        if (length >= 2 && (bytes[0] & 0xFF) == 0xFE && (bytes[1] & 0xFF) == 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (length >= 2 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+        return null;
+    }
+
+    /**
+     * @param bytes  Start of a file
+     * @param length Bytes of it that were read
+     * @return Length of the byte order mark at the start, 0 if there is none
+     */
+    public static int byteOrderMarkLength(byte[] bytes, int length) {
+        Charset charset = byteOrderMarkCharset(bytes, length);
+        if (charset == null) {
+            return 0;
+        }
+        return StandardCharsets.UTF_8.equals(charset) ? 3 : 2;
+    }
+
+    /**
+     * Reads the start of the file, and up to MAX_WINDOWS - 1 more windows evenly spaced through the rest of it.
+     */
+    private static byte[][] readSample(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            long size = in.length();
+            int windowCount = (int) Math.min(MAX_WINDOWS, Math.max(1, (size + WINDOW_SIZE - 1) / WINDOW_SIZE));
+            byte[][] windows = new byte[windowCount][];
+            for (int i = 0; i < windowCount; i++) {
+                // The last window ends at the end of the file, the others are spread evenly before it
+                long offset = (windowCount == 1) ? 0 : (size - WINDOW_SIZE) / (windowCount - 1) * i;
+                int length = (int) Math.min(WINDOW_SIZE, size - offset);
+                byte[] window = new byte[length];
+                in.seek(offset);
+                in.readFully(window);
+                windows[i] = window;
+            }
+            return windows;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param bytes          Sample window
+     * @param startsMidFile  The window may start in the middle of a character, so leading continuation bytes are skipped
+     * @param mayBeTruncated The window may end in the middle of a character, so an incomplete last character is fine
+     * @return true if the window is well formed UTF-8, which includes pure ASCII
+     */
+    static boolean isUtf8(byte[] bytes, boolean startsMidFile, boolean mayBeTruncated) {
+        int i = 0;
+        if (startsMidFile) {
+            while (i < bytes.length && i < 3 && (bytes[i] & 0xC0) == 0x80) {
+                i++;
+            }
+        }
+
+        while (i < bytes.length) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+
+            int continuationBytes;
+            int minimum;
+            if (b >= 0xC2 && b <= 0xDF) {
+                continuationBytes = 1;
+                minimum = 0x80;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuationBytes = 2;
+                minimum = 0x800;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuationBytes = 3;
+                minimum = 0x10000;
+            } else {
+                return false;
+            }
+
+            if (i + continuationBytes >= bytes.length) {
+                if (!mayBeTruncated) {
+                    return false;
+                }
+                for (int j = i + 1; j < bytes.length; j++) {
+                    if ((bytes[j] & 0xC0) != 0x80) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            int codePoint = b & (0x3F >> continuationBytes);
+            for (int j = 1; j <= continuationBytes; j++) {
+                int continuation = bytes[i + j] & 0xFF;
+                if ((continuation & 0xC0) != 0x80) {
+                    return false;
+                }
+                codePoint = (codePoint << 6) | (continuation & 0x3F);
+            }
+            // Overlong encodings, UTF-16 surrogates and code points past U+10FFFF aren't UTF-8
+            if (codePoint < minimum || (codePoint >= 0xD800 && codePoint <= 0xDFFF) || codePoint > 0x10FFFF) {
+                return false;
+            }
+            i += continuationBytes + 1;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,320 @@
+package edu.illinois.ideals.batchpackager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks collection handles from the metadata CSV against the DSpace REST API.
+ * <ul>
+ * <li>prefetch() lists every collection in the background, a page at a time, while the CSV is being read</li>
+ * <li>the handles are kept in a cache file for a while, so the next batches don't list them again</li>
+ * <li>handles that aren't in the list, such as collections created since it was fetched, are looked up together
+ * through /handle on a few pooled connections</li>
+ * </ul>
+ * Requests time out instead of hanging a run on an unresponsive server. The REST URL is a parameter, so the
+ * resolver can be pointed at a stub server.
+ */
+public class CollectionResolver implements Closeable {
+
+    public static final long DEFAULT_CACHE_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    // Collections per page of the listing. DSpace's REST API returns at most 100 without a limit.
+    private static final int PAGE_SIZE = 100;
+
+    // Concurrent lookups, and pooled connections to the REST API
+    private static final int LOOKUP_THREADS = 4;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final int SOCKET_TIMEOUT_MILLIS = 30000;
+
+    private final String restUrl;
+
+    // null for no cache file
+    private final File cacheFile;
+
+    private final long cacheTtlMillis;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient httpClient;
+
+    private final ExecutorService executor;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    // Handles of collections known to exist
+    private final Set<String> knownHandles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // When knownHandles was listed from the REST API, 0 if it hasn't been
+    private volatile long listedAt;
+
+    // Set when handles are found that aren't in the cache file yet
+    private volatile boolean cacheChanged;
+
+    private Future<Void> prefetch;
+
+    /**
+     * @param restUrl        Base URL of the DSpace REST API, such as http://localhost:8080/rest
+     * @param cacheFile      File to keep the handles in between runs, null to list them every time
+     * @param cacheTtlMillis How long the handles in the cache file are used before they are listed again
+     */
+    public CollectionResolver(String restUrl, File cacheFile, long cacheTtlMillis) {
+        this.restUrl = restUrl.endsWith("/") ? restUrl.substring(0, restUrl.length() - 1) : restUrl;
+        this.cacheFile = cacheFile;
+        this.cacheTtlMillis = cacheTtlMillis;
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(LOOKUP_THREADS + 1);
+        connectionManager.setDefaultMaxPerRoute(LOOKUP_THREADS + 1);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(SOCKET_TIMEOUT_MILLIS)
+                .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+                .build();
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(LOOKUP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "collection-resolver-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param restUrl Base URL of the DSpace REST API
+     * @return Cache file for the REST API in the user's home directory
+     */
+    public static File defaultCacheFile(String restUrl) {
+        return new File(System.getProperty("user.home"), ".batchpackager" + File.separator + "collections-"
+                + Integer.toHexString(restUrl.hashCode()) + ".json");
+    }
+
+    /**
+     * Starts getting the collection handles, from the cache file if it is fresh enough, otherwise from the REST API
+     * in the background. Does nothing if they are already being fetched.
+     */
+    public synchronized void prefetch() {
+        if (prefetch == null) {
+            prefetch = executor.submit(() -> {
+                if (!loadCacheFile()) {
+                    listCollections();
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Finds the handles that are not DSpace collections. Waits for the prefetch, starting it if need be, then looks
+     * up the handles that aren't in the list.
+     *
+     * @param handles Collection handles from the CSV
+     * @return The ones that don't exist or aren't collections, sorted
+     * @throws IOException If the REST API can't be reached, or answers with an error
+     */
+    public SortedSet<String> findUnknownHandles(Collection<String> handles) throws IOException {
+        Future<Void> listing;
+        synchronized (this) {
+            prefetch();
+            listing = prefetch;
+        }
+        try {
+            await(listing);
+        } catch (IOException e) {
+            // Try again next time, the server may be back
+            synchronized (this) {
+                if (prefetch == listing) {
+                    prefetch = null;
+                }
+            }
+            throw e;
+        }
+
+        List<String> unlisted = new ArrayList<String>();
+        List<Future<Boolean>> lookups = new ArrayList<Future<Boolean>>();
+        for (String handle : handles) {
+            if (!knownHandles.contains(handle)) {
+                unlisted.add(handle);
+                lookups.add(executor.submit(() -> isCollection(handle)));
+            }
+        }
+
+        SortedSet<String> unknownHandles = new TreeSet<String>();
+        for (int i = 0; i < unlisted.size(); i++) {
+            if (await(lookups.get(i))) {
+                knownHandles.add(unlisted.get(i));
+                cacheChanged = true;
+            } else {
+                unknownHandles.add(unlisted.get(i));
+            }
+        }
+        return unknownHandles;
+    }
+
+    /**
+     * Saves any newly found handles to the cache file, and releases the connections and threads.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            if (cacheChanged && listedAt > 0) {
+                saveCacheFile();
+            }
+        } finally {
+            httpClient.close();
+            connectionManager.shutdown();
+        }
+    }
+
+    /**
+     * @return true if the cache file was fresh and its handles have been loaded
+     */
+    private boolean loadCacheFile() {
+        if (cacheFile == null || !cacheFile.isFile()) {
+            return false;
+        }
+        try {
+            JsonNode cache = mapper.readValue(cacheFile, JsonNode.class);
+            long fetched = cache.path("fetched").asLong();
+            if (!restUrl.equals(cache.path("restUrl").asText())
+                    || System.currentTimeMillis() - fetched > cacheTtlMillis) {
+                return false;
+            }
+            for (JsonNode handle : cache.path("handles")) {
+                knownHandles.add(handle.asText());
+            }
+            listedAt = fetched;
+            return true;
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable collection cache " + cacheFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void saveCacheFile() throws IOException {
+        if (cacheFile == null) {
+            return;
+        }
+        ObjectNode cache = mapper.createObjectNode();
+        cache.put("restUrl", restUrl);
+        cache.put("fetched", listedAt);
+        ArrayNode handles = cache.putArray("handles");
+        for (String handle : new TreeSet<String>(knownHandles)) {
+            handles.add(handle);
+        }
+
+        File directory = cacheFile.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+        File temporaryFile = File.createTempFile(cacheFile.getName(), ".tmp", directory);
+        try {
+            mapper.writeValue(temporaryFile, cache);
+            Files.move(temporaryFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporaryFile.toPath());
+        }
+    }
+
+    /**
+     * Lists every collection, a page at a time.
+     */
+    private void listCollections() throws IOException {
+        long started = System.currentTimeMillis();
+        for (int offset = 0; ; offset += PAGE_SIZE) {
+            JsonNode page = getJson("/collections?limit=" + PAGE_SIZE + "&offset=" + offset);
+            if (page == null) {
+                throw new IOException("Collections not found at " + restUrl);
+            }
+            for (JsonNode collection : page) {
+                knownHandles.add(collection.path("handle").asText());
+            }
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+        }
+        listedAt = started;
+        cacheChanged = true;
+    }
+
+    /**
+     * @return true if the handle is a collection
+     */
+    private boolean isCollection(String handle) throws IOException {
+        JsonNode object = getJson("/handle/" + handle);
+        return object != null && "collection".equals(object.path("type").asText());
+    }
+
+    /**
+     * @param path Path below the REST URL
+     * @return The JSON response, or null if the server answered 404
+     * @throws IOException If the request failed or the server answered with another error
+     */
+    private JsonNode getJson(String path) throws IOException {
+        HttpGet request = new HttpGet(restUrl + path);
+        request.setHeader("Accept", "application/json");
+        CloseableHttpResponse response = httpClient.execute(request);
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 404) {
+                EntityUtils.consume(response.getEntity());
+                return null;
+            }
+            if (status != 200) {
+                EntityUtils.consume(response.getEntity());
+                throw new IOException("REST API answered " + status + " for " + restUrl + path);
+            }
+            return mapper.readValue(response.getEntity().getContent(), JsonNode.class);
+        } finally {
+            response.close();
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while validating collections");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to validate collections: " + cause, cause);
+        }
+    }
+}
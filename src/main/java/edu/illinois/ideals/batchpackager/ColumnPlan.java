@@ -0,0 +1,206 @@
+package edu.illinois.ideals.batchpackager;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What to do with each column of the metadata CSV, worked out once from the header row.
+ * Processing a row is then a loop over the columns with no further parsing of the header names.
+ */
+public final class ColumnPlan {
+
+    public enum Kind {
+        // filename, bitstream, bitstreams, BUNDLE:ORIGINAL
+        FILENAME,
+        // filename__bundle:SOMETHING and friends, with parameters for every file in the column
+        FILENAME_WITH_PARAMETERS,
+        // .tar.gz holding the files for the row
+        FILEGROUP,
+        // collection handles
+        COLLECTION,
+        // license file in the content source directory, for the license.txt of the item
+        LICENSE,
+        // schema.element[.qualifier][[language]]
+        METADATA,
+        // anything else, such as a header without a schema
+        IGNORED
+    }
+
+    /**
+     * One column of the CSV, classified.
+     */
+    public static final class Column {
+        private final String header;
+        private final Kind kind;
+        private final String schema;
+        private final String element;
+        private final String qualifier;
+        private final String language;
+        private final String fileParameters;
+        private final String dcValueStartTag;
+
+        private Column(String header, Kind kind, String schema, String element, String qualifier, String language, String fileParameters) {
+            this.header = header;
+            this.kind = kind;
+            this.schema = schema;
+            this.element = element;
+            this.qualifier = qualifier;
+            this.language = language;
+            this.fileParameters = fileParameters;
+            this.dcValueStartTag = (kind == Kind.METADATA) ? BufferedOutputXML.dcValueStartTag(element, qualifier, language) : null;
+        }
+
+        public String getHeader() {
+            return header;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return Metadata schema, such as dc or thesis. null unless METADATA.
+         */
+        public String getSchema() {
+            return schema;
+        }
+
+        public boolean isDublinCore() {
+            return "dc".equals(schema);
+        }
+
+        /**
+         * @return Metadata element, "" if the header has none. null unless METADATA.
+         */
+        public String getElement() {
+            return element;
+        }
+
+        /**
+         * @return Metadata qualifier, "" if the header has none. null unless METADATA.
+         */
+        public String getQualifier() {
+            return qualifier;
+        }
+
+        /**
+         * @return Language from a header such as dc.description[fr], null if the header has none
+         */
+        public String getLanguage() {
+            return language;
+        }
+
+        /**
+         * @return Parameters from the header for every file in a file or filegroup column, "" if there are none
+         */
+        public String getFileParameters() {
+            return fileParameters;
+        }
+
+        /**
+         * @return The escaped dcvalue start tag for values of this column. null unless METADATA.
+         */
+        String getDcValueStartTag() {
+            return dcValueStartTag;
+        }
+    }
+
+    //Specify multiple alternatives for filename, to accept wider input.
+    private static final List<String> filenameColumns = Arrays.asList("filename", "bitstream", "bitstreams", "BUNDLE:ORIGINAL");
+    private static final String[] filenameWithPartsColumns = {"filename__", "bitstream__", "bitstreams__"};
+
+    private static final String licenseColumn = "license";
+
+    private static final Pattern languagePattern = Pattern.compile("\\[(.*?)\\]");
+
+    private final Column[] columns;
+
+    private ColumnPlan(Column[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * Classifies each header of the CSV the same way processing a row always has, in the same order of precedence.
+     *
+     * @param headers Header row of the CSV
+     * @return The plan for every column
+     */
+    public static ColumnPlan compile(String[] headers) {
+        Column[] columns = new Column[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            columns[i] = compileColumn(headers[i]);
+        }
+        return new ColumnPlan(columns);
+    }
+
+    private static Column compileColumn(String header) {
+        if (filenameColumns.contains(header)) {
+            return new Column(header, Kind.FILENAME, null, null, null, null, "");
+        }
+        if (StringUtils.indexOfAny(header, filenameWithPartsColumns) >= 0) {
+            //This file has extra parameters, such as being destined for a bundle, or specifying primary
+            return new Column(header, Kind.FILENAME_WITH_PARAMETERS, null, null, null, null, parametersAfterName(header));
+        }
+        if (header.contains("filegroup")) {
+            return new Column(header, Kind.FILEGROUP, null, null, null, null, parametersAfterName(header));
+        }
+        if (header.contains("collection")) {
+            return new Column(header, Kind.COLLECTION, null, null, null, null, "");
+        }
+        if (header.equals(licenseColumn)) {
+            return new Column(header, Kind.LICENSE, null, null, null, null, "");
+        }
+
+        String[] dublinPieces = header.split("\\.");
+        if (dublinPieces.length < 2) {
+            // strange field, skip
+            return new Column(header, Kind.IGNORED, null, null, null, null, "");
+        }
+        String schema = dublinPieces[0];
+
+        int languageStart = header.indexOf('[');
+        String headerMinusLanguage = (languageStart >= 0) ? header.substring(0, languageStart) : header;
+        String[] fieldPieces = headerMinusLanguage.split("\\.");
+        String element = (fieldPieces.length > 1) ? fieldPieces[1] : "";
+        String qualifier = (fieldPieces.length > 2) ? fieldPieces[2] : "";
+
+        //See if this has a language dc.description[fr]
+        Matcher languageMatcher = languagePattern.matcher(header);
+        String language = languageMatcher.find() ? languageMatcher.group(1) : null;
+
+        return new Column(header, Kind.METADATA, schema, element, qualifier, language, "");
+    }
+
+    /**
+     * @return Everything after the first __ in the header, "" if there isn't one
+     */
+    private static String parametersAfterName(String header) {
+        int separator = header.indexOf(ValueSplitter.PARAMETER_SEPARATOR);
+        return (separator < 0) ? "" : header.substring(separator + ValueSplitter.PARAMETER_SEPARATOR.length());
+    }
+
+    public int size() {
+        return columns.length;
+    }
+
+    public Column getColumn(int index) {
+        return columns[index];
+    }
+
+    /**
+     * @param kind Kind of column
+     * @return Index of the first column of that kind, -1 if there is none
+     */
+    public int indexOf(Kind kind) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].kind == kind) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,112 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Recognizes bitstreams that are already compressed, such as PDFs, images, audio, video and archives, which deflate
+ * can't shrink any further. Known extensions are trusted, anything else is recognized by its leading magic bytes.
+ */
+public final class CompressedFormats {
+
+    private static final Set<String> compressedExtensions = new HashSet<String>(Arrays.asList(
+            // documents
+            "pdf", "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub",
+            // images
+            "jpg", "jpeg", "jpe", "jp2", "jpx", "png", "gif", "webp", "heic",
+            // audio and video
+            "mp3", "m4a", "aac", "ogg", "oga", "ogv", "opus", "flac", "wma", "mp4", "m4v", "mov", "avi", "mkv",
+            "webm", "wmv", "mpg", "mpeg",
+            // archives
+            "zip", "gz", "tgz", "bz2", "tbz2", "xz", "txz", "7z", "rar", "jar", "war", "z", "lz", "lzma", "zst"));
+
+    // Enough of the file to see every signature below
+    private static final int magicLength = 12;
+
+    private CompressedFormats() {
+    }
+
+    /**
+     * @param file A file about to be archived
+     * @return true if the file is known to be compressed already and should be stored rather than deflated
+     */
+    public static boolean isCompressed(File file) {
+        if (isCompressedExtension(file.getName())) {
+            return true;
+        }
+
+        byte[] magic = new byte[magicLength];
+        int length = 0;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                int read;
+                while (length < magic.length && (read = in.read(magic, length, magic.length - length)) > 0) {
+                    length += read;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return isCompressedMagic(magic, length);
+    }
+
+    /**
+     * @param filename Name of a file, with or without a path
+     * @return true if the extension is one of the known compressed formats
+     */
+    public static boolean isCompressedExtension(String filename) {
+        int dot = filename.lastIndexOf('.');
+        if (dot < 0 || dot == filename.length() - 1) {
+            return false;
+        }
+        return compressedExtensions.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @param magic  First bytes of a file
+     * @param length Number of bytes of magic that were read
+     * @return true if the bytes start with the signature of a compressed format
+     */
+    public static boolean isCompressedMagic(byte[] magic, int length) {
+        return startsWith(magic, length, 0, 0x25, 0x50, 0x44, 0x46)                   // %PDF
+                || startsWith(magic, length, 0, 0xFF, 0xD8, 0xFF)                     // JPEG
+                || startsWith(magic, length, 0, 0x89, 0x50, 0x4E, 0x47)               // PNG
+                || startsWith(magic, length, 0, 0x47, 0x49, 0x46, 0x38)               // GIF8
+                || startsWith(magic, length, 0, 0x50, 0x4B, 0x03, 0x04)               // zip, docx, epub, jar
+                || startsWith(magic, length, 0, 0x1F, 0x8B)                           // gzip
+                || startsWith(magic, length, 0, 0x42, 0x5A, 0x68)                     // bzip2
+                || startsWith(magic, length, 0, 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00)   // xz
+                || startsWith(magic, length, 0, 0x37, 0x7A, 0xBC, 0xAF, 0x27, 0x1C)   // 7z
+                || startsWith(magic, length, 0, 0x52, 0x61, 0x72, 0x21)               // Rar!
+                || startsWith(magic, length, 0, 0x28, 0xB5, 0x2F, 0xFD)               // zstd
+                || startsWith(magic, length, 0, 0x4F, 0x67, 0x67, 0x53)               // Ogg
+                || startsWith(magic, length, 0, 0x66, 0x4C, 0x61, 0x43)               // FLAC
+                || startsWith(magic, length, 0, 0x49, 0x44, 0x33)                     // MP3 with ID3 tag
+                || startsWith(magic, length, 0, 0x1A, 0x45, 0xDF, 0xA3)               // Matroska, WebM
+                || startsWith(magic, length, 4, 0x66, 0x74, 0x79, 0x70)               // ftyp: MP4, MOV, M4A, HEIC
+                || (startsWith(magic, length, 0, 0x52, 0x49, 0x46, 0x46)              // RIFF....WEBP
+                    && startsWith(magic, length, 8, 0x57, 0x45, 0x42, 0x50))
+                || startsWith(magic, length, 0, 0x00, 0x00, 0x00, 0x0C, 0x6A, 0x50);  // JPEG 2000
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, int offset, int... signature) {
+        if (length < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((bytes[offset + i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,14 +1,17 @@
 package edu.illinois.ideals.batchpackager;
 
 import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.TextArea;
 import javafx.scene.text.Text;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
+import org.apache.commons.io.FileUtils;
 
 
 import java.io.File;
@@ -16,6 +19,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Controller {
     @FXML
@@ -34,9 +39,19 @@ public class Controller {
     private Button chooseSourceDirectory;
     @FXML
     private Button chooseDestinationDirectory;
+    @FXML
+    private Button verifyButton;
+    @FXML
+    private Button packageButton;
+    @FXML
+    private Button cancelButton;
+    @FXML
+    private ProgressBar progressBar;
 
     private PrintStream printStream;
-    private SAFPackage safPackageInstance;
+
+    // Verify or package run in the background, null when idle
+    private PackagerTask runningTask;
 
     @FXML
     protected void handleVerifyButtonAction(ActionEvent event) {
@@ -57,15 +72,23 @@ public class Controller {
 
         if (requiredSelectionsMade) {
 
-            messages.setText("Creating archive...");
+            messages.setText("Verifying...");
 
-            List<String> report = safPackageInstance.verifyMetaPack(csvFilename.getText(), sourceDirname.getText());
+            final String csv = csvFilename.getText();
+            final String source = sourceDirname.getText();
+            final PackagerTask task = new PackagerTask(safPackage -> safPackage.verifyMetaPack(csv, source));
 
-            messages.setText("Verification Report Below:");
+            startTask(task, report -> {
+                if (task.isPackageCancelled()) {
+                    messages.setText("Verification cancelled. Report of the rows checked below:");
+                } else {
+                    messages.setText("Verification Report Below:");
+                }
 
-            for(String reportLine : report){
-                console.appendText("\n" + reportLine);
-            }
+                for(String reportLine : report){
+                    console.appendText("\n" + reportLine);
+                }
+            });
 
         }
         return;
@@ -97,23 +120,88 @@ public class Controller {
 
             messages.setText("Creating archive...");
 
-            List<String> report = safPackageInstance.processMetaPack(csvFilename.getText(), sourceDirname.getText(), archiveDirname.getText(), false);
+            final String csv = csvFilename.getText();
+            final String source = sourceDirname.getText();
+            final String archive = archiveDirname.getText();
+            final PackagerTask task = new PackagerTask(safPackage -> safPackage.processMetaPack(csv, source, archive, false));
 
-            if(report.get(0).toLowerCase().contains("error")){
-                messages.setText("Critial Error: PACKAGE NOT CREATED. See below for details.");
-            } else {
-                messages.setText("Archive created in " + archiveDirname.getText() + ". See below for details.");
-            }
+            startTask(task, report -> {
+                if (task.isPackageCancelled()) {
+                    messages.setText("Cancelled: PACKAGE INCOMPLETE. See below for details.");
+                } else if(report.get(0).toLowerCase().contains("error")){
+                    messages.setText("Critial Error: PACKAGE NOT CREATED. See below for details.");
+                } else {
+                    messages.setText("Archive created in " + archive + ". See below for details.");
+                }
 
-            for(String reportLine : report){
+                for(String reportLine : report){
 
-                console.appendText("\n" + reportLine);
-            }
+                    console.appendText("\n" + reportLine);
+                }
+            });
 
         }
         return;
     }
 
+    @FXML
+    protected void handleCancelButtonAction(ActionEvent event) {
+        if (runningTask != null) {
+            messages.setText("Cancelling, finishing the items in progress...");
+            cancelButton.setDisable(true);
+            runningTask.cancelPackage();
+        }
+    }
+
+    /**
+     * Runs a verify or package task on a background thread, so the window stays responsive, with the progress bar
+     * and cancel button hooked up to it.
+     *
+     * @param task     The run
+     * @param onReport Shows the report, on the FX application thread, once the run has finished
+     */
+    private void startTask(final PackagerTask task, final Consumer<List<String>> onReport) {
+        runningTask = task;
+        setRunning(true);
+
+        progressBar.progressProperty().bind(task.progressProperty());
+        task.messageProperty().addListener((observable, oldMessage, newMessage) -> {
+            if (runningTask == task && !task.isPackageCancelled() && newMessage != null && !newMessage.isEmpty()) {
+                messages.setText(newMessage);
+            }
+        });
+
+        task.setOnSucceeded(event -> {
+            finishTask();
+            onReport.accept(task.getValue());
+        });
+        task.setOnFailed(event -> {
+            finishTask();
+            Throwable exception = task.getException();
+            messages.setText("ERROR: " + ((exception != null) ? exception.getMessage() : "Unknown error"));
+        });
+
+        Thread thread = new Thread(task, "batch-packager");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void finishTask() {
+        runningTask = null;
+        progressBar.progressProperty().unbind();
+        progressBar.setProgress(0);
+        setRunning(false);
+    }
+
+    private void setRunning(boolean running) {
+        chooseCsvButton.setDisable(running);
+        chooseSourceDirectory.setDisable(running);
+        chooseDestinationDirectory.setDisable(running);
+        verifyButton.setDisable(running);
+        packageButton.setDisable(running);
+        cancelButton.setDisable(!running);
+    }
+
     @FXML
     protected void locateMetadataCsvFile(ActionEvent event) {
 
@@ -166,7 +254,53 @@ public class Controller {
         this.printStream = new PrintStream(new Console(console));
         //System.setOut(printStream);
         //System.setErr(printStream);
-        safPackageInstance = new SAFPackage();
+        cancelButton.setDisable(true);
+    }
+
+    /**
+     * Runs SAFPackage off the FX application thread, passing its progress to the progress bar and its report lines
+     * to the console as they happen. Each run gets a SAFPackage of its own.
+     */
+    private class PackagerTask extends Task<List<String>> implements PackageProgressListener {
+        private final SAFPackage safPackage = new SAFPackage();
+        private final Function<SAFPackage, List<String>> run;
+
+        PackagerTask(Function<SAFPackage, List<String>> run) {
+            this.run = run;
+            safPackage.setProgressListener(this);
+        }
+
+        @Override
+        protected List<String> call() throws Exception {
+            return run.apply(safPackage);
+        }
+
+        void cancelPackage() {
+            safPackage.cancel();
+        }
+
+        boolean isPackageCancelled() {
+            return safPackage.isCancelled();
+        }
+
+        @Override
+        public void progress(int itemsDone, int itemsTotal, long bytesDone, long bytesTotal) {
+            if (bytesTotal > 0) {
+                updateProgress(Math.min(bytesDone, bytesTotal), bytesTotal);
+            } else if (itemsTotal > 0) {
+                updateProgress(Math.min(itemsDone, itemsTotal), itemsTotal);
+            }
+
+            if (itemsDone > 0 || bytesDone > 0) {
+                updateMessage("Created " + itemsDone + ((itemsTotal > 0) ? " of " + itemsTotal : "") + " items, "
+                        + FileUtils.byteCountToDisplaySize(bytesDone) + " of bitstreams");
+            }
+        }
+
+        @Override
+        public void reportLine(String line) {
+            Platform.runLater(() -> console.appendText("\n" + line));
+        }
     }
 
     public class Console extends OutputStream {
@@ -0,0 +1,104 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Byte offset of the start of every record of a CSV, so a reader can jump straight to any row or split the rows
+ * into chunks without parsing what comes before. Row 0 is the header row. Blank lines are not records, and a quoted
+ * value can span lines, so rows are not lines.
+ * <p>
+ * Offsets are stored as a long per block of 1024 rows plus an int per row relative to its block, about 4 bytes a
+ * row. An index is built by one reader during its first pass, and only read once it is complete.
+ */
+public final class CsvRowIndex {
+
+    private static final int BLOCK_SHIFT = 10;
+
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    // Offset of the first row of each block
+    private long[] blockOffsets = new long[16];
+
+    // Offset of each row from the start of its block, unsigned
+    private int[] rowOffsets = new int[BLOCK_SIZE];
+
+    private int rowCount;
+
+    // Offset of the end of the data, past the last record, -1 until the reader has reached the end of the file
+    private long endOffset = -1;
+
+    CsvRowIndex() {
+    }
+
+    /**
+     * @return Number of rows indexed so far, including the header row
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return true once every row of the file is indexed
+     */
+    public boolean isComplete() {
+        return endOffset >= 0;
+    }
+
+    /**
+     * @param row Row number, 0 for the header row. getRowCount() gives the end of the data of a complete index.
+     * @return Byte offset of the start of the row
+     */
+    public long getOffset(int row) {
+        if (row == rowCount && isComplete()) {
+            return endOffset;
+        }
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount + " indexed rows");
+        }
+        return blockOffsets[row >>> BLOCK_SHIFT] + (rowOffsets[row] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return Offset of the end of the data, past the last record, -1 if the index is not complete
+     */
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * Adds the next row.
+     *
+     * @param offset Byte offset of its start
+     * @throws IOException If the rows of a block span more than 4 GB, so the row can't be indexed
+     */
+    void add(long offset) throws IOException {
+        int block = rowCount >>> BLOCK_SHIFT;
+        if ((rowCount & (BLOCK_SIZE - 1)) == 0) {
+            if (block == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, block * 2);
+            }
+            blockOffsets[block] = offset;
+        }
+
+        long relative = offset - blockOffsets[block];
+        if (relative > 0xFFFFFFFFL) {
+            throw new IOException("Rows " + (block << BLOCK_SHIFT) + " to " + rowCount + " of the CSV are too long to index");
+        }
+        if (rowCount == rowOffsets.length) {
+            rowOffsets = Arrays.copyOf(rowOffsets, rowOffsets.length * 2);
+        }
+        rowOffsets[rowCount++] = (int) relative;
+    }
+
+    /**
+     * Marks the index complete.
+     *
+     * @param offset Offset of the end of the data, past the last record
+     */
+    void complete(long offset) {
+        endOffset = offset;
+        rowOffsets = Arrays.copyOf(rowOffsets, rowCount);
+        blockOffsets = Arrays.copyOf(blockOffsets, (rowCount + BLOCK_SIZE - 1) >>> BLOCK_SHIFT);
+    }
+}
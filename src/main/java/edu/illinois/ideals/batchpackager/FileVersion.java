@@ -0,0 +1,68 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.File;
+
+/**
+ * Identifies one version of a file by its absolute path, size and last modified time, for caching what was worked
+ * out from it. Saving the file again gives a different version, unless it is saved within the file system's
+ * timestamp resolution without changing size.
+ */
+public final class FileVersion {
+
+    private final String path;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private FileVersion(String path, long size, long lastModified) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param file File as it is on disk now
+     * @return Its current version
+     */
+    public static FileVersion of(File file) {
+        return new FileVersion(file.getAbsolutePath(), file.length(), file.lastModified());
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FileVersion)) {
+            return false;
+        }
+        FileVersion other = (FileVersion) o;
+        return size == other.size && lastModified == other.lastModified && path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path.hashCode();
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return path + " (" + size + " bytes, modified " + lastModified + ")";
+    }
+}
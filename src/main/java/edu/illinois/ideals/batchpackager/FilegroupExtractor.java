@@ -0,0 +1,252 @@
+package edu.illinois.ideals.batchpackager;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extracts the files of a filegroup archive into an item directory in one streaming pass, with commons-compress.
+ * .zip archives are read through their central directory, .tar archives as they are, and anything else as .tar.gz.
+ * <p>
+ * The files of a filegroup are the regular files one directory down from the top of the archive, such as
+ * scans/page1.jpg, apart from .htaccess. Each is written straight into the item directory under its base name, and
+ * they are listed in the order given to the extractor, by default reverse alphanumeric order of their base names
+ * (see DS-749).
+ * <p>
+ * Files can also be handed to a Target one at a time instead, such as an archive being streamed.
+ * <p>
+ * The listing of each archive is cached by FileVersion, so when several rows refer to the same archive it isn't
+ * worked out again, and a tar stops being read as soon as its last file is written. Safe to use from several item
+ * workers at once.
+ */
+public class FilegroupExtractor {
+
+    // Archives whose listing is kept
+    private static final int CACHE_SIZE = 64;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Where the files of a filegroup go.
+     */
+    public interface Target {
+        /**
+         * @param name Base name of the file
+         * @param size Number of bytes in it
+         * @param in   Content of the file, to be read but not closed
+         * @throws IOException If the file can't be written
+         */
+        void write(String name, long size, InputStream in) throws IOException;
+    }
+
+    /**
+     * Files of a filegroup, found by the first extraction of an archive.
+     */
+    private static final class Listing {
+        // Names of the file entries in the archive
+        final Set<String> entryNames;
+
+        // Base names of the files, in the order they are listed in the contents file
+        final List<String> orderedNames;
+
+        // Last file entry in the archive, after which a tar can stop being read. null if there are no files.
+        final String lastEntryName;
+
+        Listing(Set<String> entryNames, List<String> orderedNames, String lastEntryName) {
+            this.entryNames = entryNames;
+            this.orderedNames = orderedNames;
+            this.lastEntryName = lastEntryName;
+        }
+    }
+
+    private final Map<FileVersion, Listing> listings = new LinkedHashMap<FileVersion, Listing>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FileVersion, Listing> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // Order of the files in the contents file
+    private final AlphanumComparator.Ordering ordering;
+
+    /**
+     * Lists the files of a filegroup in reverse alphanumeric order.
+     */
+    public FilegroupExtractor() {
+        this(AlphanumComparator.Ordering.DESCENDING);
+    }
+
+    /**
+     * @param ordering Order to list the files of a filegroup in, NATURAL for the order they are in the archive
+     */
+    public FilegroupExtractor(AlphanumComparator.Ordering ordering) {
+        this.ordering = ordering;
+    }
+
+    /**
+     * Writes the files of a filegroup into an item directory. Files already there with the same names are replaced.
+     *
+     * @param archive       Filegroup archive in the content source directory
+     * @param itemDirectory Directory of the item
+     * @return Base names of the files, in the order they go in the contents file
+     * @throws IOException If the archive can't be read or a file can't be written
+     */
+    public List<String> extract(File archive, File itemDirectory) throws IOException {
+        return extract(archive, (name, size, in) ->
+                Files.copy(in, new File(itemDirectory, name).toPath(), StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    /**
+     * Hands the files of a filegroup to a target, in the order they are in the archive.
+     *
+     * @param archive Filegroup archive in the content source directory
+     * @param target  Where the files go
+     * @return Base names of the files, in the order they go in the contents file
+     * @throws IOException If the archive can't be read or the target fails
+     */
+    public List<String> extract(File archive, Target target) throws IOException {
+        if (!archive.isFile()) {
+            throw new IOException("There is no filegroup archive " + archive.getPath());
+        }
+        FileVersion version = FileVersion.of(archive);
+        Listing listing;
+        synchronized (listings) {
+            listing = listings.get(version);
+        }
+
+        String name = archive.getName().toLowerCase();
+        if (name.endsWith(".zip")) {
+            listing = extractZip(archive, target, listing);
+        } else {
+            listing = extractTar(archive, !name.endsWith(".tar"), target, listing);
+        }
+
+        synchronized (listings) {
+            listings.put(version, listing);
+        }
+        return listing.orderedNames;
+    }
+
+    private Listing extractTar(File archive, boolean gzipped, Target target, Listing listing) throws IOException {
+        if (listing != null && listing.lastEntryName == null) {
+            return listing;
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE);
+        try {
+            if (gzipped) {
+                in = new GzipCompressorInputStream(in, true);
+            }
+            TarArchiveInputStream tar = new TarArchiveInputStream(in);
+            List<String> entryNames = new ArrayList<String>();
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                String entryName = entry.getName();
+                boolean wanted = (listing != null) ? listing.entryNames.contains(entryName)
+                        : entry.isFile() && isFilegroupFile(entryName);
+                if (!wanted) {
+                    continue;
+                }
+                target.write(baseName(entryName), entry.getSize(), tar);
+                if (listing == null) {
+                    entryNames.add(entryName);
+                } else if (entryName.equals(listing.lastEntryName)) {
+                    break;
+                }
+            }
+            return (listing != null) ? listing : buildListing(entryNames);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Listing extractZip(File archive, Target target, Listing listing) throws IOException {
+        ZipFile zipFile = new ZipFile(archive);
+        try {
+            List<String> entryNames = new ArrayList<String>();
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                String entryName = entry.getName();
+                boolean wanted = (listing != null) ? listing.entryNames.contains(entryName)
+                        : !entry.isDirectory() && isFilegroupFile(entryName);
+                if (!wanted) {
+                    continue;
+                }
+                InputStream in = zipFile.getInputStream(entry);
+                try {
+                    target.write(baseName(entryName), entry.getSize(), in);
+                } finally {
+                    in.close();
+                }
+                entryNames.add(entryName);
+            }
+            return (listing != null) ? listing : buildListing(entryNames);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private Listing buildListing(List<String> entryNames) {
+        List<String> orderedNames = new ArrayList<String>(entryNames.size());
+        for (String entryName : entryNames) {
+            orderedNames.add(baseName(entryName));
+        }
+        // Reverse alphanumeric by default, which order to sort bitstreams in depends on your stance on DS-749
+        AlphanumComparator.sort(orderedNames, ordering);
+
+        String lastEntryName = entryNames.isEmpty() ? null : entryNames.get(entryNames.size() - 1);
+        return new Listing(new HashSet<String>(entryNames), Collections.unmodifiableList(orderedNames), lastEntryName);
+    }
+
+    /**
+     * @param entryName Name of a file entry in the archive
+     * @return true if it is one directory down from the top of the archive, and not .htaccess
+     */
+    static boolean isFilegroupFile(String entryName) {
+        String path = normalize(entryName);
+        int separator = path.indexOf('/');
+        if (separator <= 0 || path.indexOf('/', separator + 1) >= 0) {
+            return false;
+        }
+        String baseName = path.substring(separator + 1);
+        return !baseName.isEmpty() && !baseName.equals(".htaccess") && !baseName.equals(".") && !baseName.equals("..");
+    }
+
+    private static String baseName(String entryName) {
+        String path = normalize(entryName);
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return The entry name with forward slashes and without a leading ./ or /
+     */
+    private static String normalize(String entryName) {
+        String path = entryName.replace('\\', '/');
+        while (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+}
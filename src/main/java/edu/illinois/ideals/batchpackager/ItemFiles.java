@@ -0,0 +1,216 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The small files of one item -- contents, collections, dublin_core.xml, metadata_[schema].xml and license.txt --
+ * built in memory while its row is processed, then written by write() with one open and one write per file.
+ * The bitstreams go straight into the item directory.
+ * <p>
+ * When the item is streamed into an archive instead, by writeTo(), its bitstreams and filegroups are only noted
+ * here, and read from the content source directory as the item is written.
+ */
+public class ItemFiles {
+
+    private final File itemDirectory;
+
+    // Lines of the contents file
+    private final StringBuilder contents = new StringBuilder();
+
+    // Lines of the collections file, which is only written if there are any
+    private final StringBuilder collections = new StringBuilder();
+
+    // Other files, in the order they were added
+    private final Map<File, byte[]> files = new LinkedHashMap<File, byte[]>();
+
+    /**
+     * A bitstream to be streamed from the content source directory.
+     */
+    private static final class Bitstream {
+        final String name;
+        final File source;
+
+        Bitstream(String name, File source) {
+            this.name = name;
+            this.source = source;
+        }
+    }
+
+    /**
+     * A filegroup archive to be streamed, and where its files are listed in the contents file.
+     */
+    private static final class Filegroup {
+        final File archive;
+        final List<String> parameters;
+        final int contentsOffset;
+
+        Filegroup(File archive, List<String> parameters, int contentsOffset) {
+            this.archive = archive;
+            this.parameters = parameters;
+            this.contentsOffset = contentsOffset;
+        }
+    }
+
+    private final List<Bitstream> bitstreams = new ArrayList<Bitstream>();
+
+    private final List<Filegroup> filegroups = new ArrayList<Filegroup>();
+
+    /**
+     * @param itemDirectory Directory of the item, which must exist by the time the files are written
+     */
+    public ItemFiles(File itemDirectory) {
+        this.itemDirectory = itemDirectory;
+    }
+
+    public File getItemDirectory() {
+        return itemDirectory;
+    }
+
+    /**
+     * @return The contents file, to append lines to
+     */
+    public StringBuilder getContents() {
+        return contents;
+    }
+
+    /**
+     * @return The collections file, to append lines to
+     */
+    public StringBuilder getCollections() {
+        return collections;
+    }
+
+    /**
+     * @param file  File in the item directory
+     * @param bytes Everything in it. Must not be modified afterwards.
+     */
+    public void put(File file, byte[] bytes) {
+        files.put(file, bytes);
+    }
+
+    /**
+     * Notes a bitstream to stream into the archive with writeTo.
+     *
+     * @param name   Name of the bitstream in the item
+     * @param source File in the content source directory
+     */
+    public void addBitstream(String name, File source) {
+        bitstreams.add(new Bitstream(name, source));
+    }
+
+    /**
+     * Notes a filegroup to stream into the archive with writeTo. Its files are listed in the contents file where
+     * it has got to now, once the archive has been read.
+     *
+     * @param archive    Filegroup archive in the content source directory
+     * @param parameters Parameters for every file in it, such as BUNDLE:SOMETHING
+     */
+    public void addFilegroup(File archive, List<String> parameters) {
+        filegroups.add(new Filegroup(archive, parameters, contents.length()));
+    }
+
+    /**
+     * @return Size of the bitstreams noted with addBitstream
+     */
+    public long getBitstreamBytes() {
+        long bytes = 0;
+        for (Bitstream bitstream : bitstreams) {
+            bytes += bitstream.source.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Lists the files of a filegroup in a contents file, each with the parameters of the filegroup.
+     *
+     * @param contents   Contents file
+     * @param names      Base names of the files, in order
+     * @param parameters Parameters for every file, such as BUNDLE:SOMETHING
+     */
+    public static void appendFilegroupContents(StringBuilder contents, List<String> names, List<String> parameters) {
+        for (String name : names) {
+            contents.append(name);
+            for (String parameter : parameters) {
+                contents.append('\t').append(parameter.trim());
+            }
+            contents.append(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Writes every file, replacing any that are there.
+     *
+     * @throws IOException If a file can't be written
+     */
+    public void write() throws IOException {
+        writeFile(new File(itemDirectory, "contents"), contents.toString().getBytes(StandardCharsets.UTF_8));
+        if (collections.length() > 0) {
+            writeFile(new File(itemDirectory, "collections"), collections.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        for (Map.Entry<File, byte[]> file : files.entrySet()) {
+            writeFile(file.getKey(), file.getValue());
+        }
+    }
+
+    /**
+     * Streams the item into an archive: its bitstreams and the files of its filegroups, each read once from the
+     * content source directory, then its small files. A name already written for the item isn't written again.
+     *
+     * @param out       Archive being written
+     * @param prefix    Entry name of the item directory, ending with /
+     * @param extractor Reads the filegroups
+     * @throws IOException If a source file can't be read or the archive can't be written
+     */
+    public void writeTo(ArchiveStream out, String prefix, FilegroupExtractor extractor) throws IOException {
+        long now = System.currentTimeMillis();
+        Set<String> written = new HashSet<String>();
+        for (Bitstream bitstream : bitstreams) {
+            if (written.add(bitstream.name)) {
+                out.putFile(prefix + bitstream.name, bitstream.source);
+            }
+        }
+
+        StringBuilder itemContents = contents;
+        if (!filegroups.isEmpty()) {
+            itemContents = new StringBuilder(contents);
+            // From the last filegroup back, so the offsets of the earlier ones still hold
+            for (int i = filegroups.size() - 1; i >= 0; i--) {
+                Filegroup filegroup = filegroups.get(i);
+                List<String> names = extractor.extract(filegroup.archive, (name, size, in) -> {
+                    if (written.add(name)) {
+                        out.putFile(prefix + name, size, now, in);
+                    }
+                });
+                StringBuilder lines = new StringBuilder();
+                appendFilegroupContents(lines, names, filegroup.parameters);
+                itemContents.insert(filegroup.contentsOffset, lines);
+            }
+        }
+
+        out.putFile(prefix + "contents", itemContents.toString().getBytes(StandardCharsets.UTF_8), now);
+        if (collections.length() > 0) {
+            out.putFile(prefix + "collections", collections.toString().getBytes(StandardCharsets.UTF_8), now);
+        }
+        for (Map.Entry<File, byte[]> file : files.entrySet()) {
+            out.putFile(prefix + file.getKey().getName(), file.getValue(), now);
+        }
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Journal of the items built in an archive directory, so a run after a crash, a cancel or a fix to a few rows of the
+ * csv only builds the items whose inputs have changed.
+ * <p>
+ * The journal is a text file in the archive directory. Its first line fingerprints what every item depends on, such
+ * as the header row and the license, and a journal with a different first line is started over. Each later line is
+ * an item that was built completely: its row number, a hash of the values of the row and a hash of the names, sizes
+ * and modification times of its source files. A row number followed by nothing forgets the row, before its item is
+ * rebuilt. Lines are flushed as they are written, so a JVM that dies only loses the items it was building. A later
+ * line for a row replaces an earlier one.
+ */
+public class ItemJournal implements Closeable {
+
+    public static final String FILE_NAME = ".batchpackager-journal";
+
+    private static final String VERSION = "batchpackager-journal 1";
+
+    // Bytes of each hash that are kept
+    private static final int HASH_BYTES = 16;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Inputs of one item.
+     */
+    public static final class Entry {
+        private final String valuesHash;
+        private final String sourcesHash;
+
+        Entry(String valuesHash, String sourcesHash) {
+            this.valuesHash = valuesHash;
+            this.sourcesHash = sourcesHash;
+        }
+
+        /**
+         * @param values      Values of the row
+         * @param sourceFiles Files in the source directory the item is built from, missing ones included
+         * @return The inputs of the item as they are now
+         */
+        public static Entry of(String[] values, List<File> sourceFiles) {
+            MessageDigest digest = sha256();
+            for (String value : values) {
+                update(digest, value);
+            }
+            String valuesHash = hex(digest.digest());
+
+            for (File sourceFile : sourceFiles) {
+                update(digest, sourceFile.getPath());
+                update(digest, Long.toString(sourceFile.length()));
+                update(digest, Long.toString(sourceFile.lastModified()));
+            }
+            return new Entry(valuesHash, hex(digest.digest()));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return valuesHash.equals(other.valuesHash) && sourcesHash.equals(other.sourcesHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * valuesHash.hashCode() + sourcesHash.hashCode();
+        }
+    }
+
+    private final File journalFile;
+
+    private final String header;
+
+    // Row number -> inputs its item was built from, as found in the journal when it was opened
+    private final Map<Integer, Entry> entries;
+
+    // Whether the journal file holds entries for this header, so new lines can be appended to it
+    private final boolean appendable;
+
+    private Writer writer;
+
+    private ItemJournal(File journalFile, String header, Map<Integer, Entry> entries, boolean appendable) {
+        this.journalFile = journalFile;
+        this.header = header;
+        this.entries = entries;
+        this.appendable = appendable;
+    }
+
+    /**
+     * Reads the journal of an archive directory. Nothing is written until the first item is recorded.
+     *
+     * @param archiveDir  Archive directory
+     * @param fingerprint What every item of the batch depends on. A journal written for other inputs is ignored.
+     * @return The journal, empty if there was none or it was for other inputs
+     * @throws IOException If the journal can't be read
+     */
+    public static ItemJournal open(File archiveDir, String fingerprint) throws IOException {
+        File journalFile = new File(archiveDir, FILE_NAME);
+        String header = VERSION + "\t" + fingerprint;
+        Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+        if (!journalFile.isFile()) {
+            return new ItemJournal(journalFile, header, entries, false);
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8));
+        try {
+            if (!header.equals(reader.readLine())) {
+                return new ItemJournal(journalFile, header, entries, false);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                try {
+                    int rowNumber = Integer.parseInt(fields[0]);
+                    if (fields.length == 3) {
+                        entries.put(rowNumber, new Entry(fields[1], fields[2]));
+                    } else {
+                        entries.remove(rowNumber);
+                    }
+                } catch (NumberFormatException e) {
+                    // A line cut short by a crash
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new ItemJournal(journalFile, header, entries, true);
+    }
+
+    /**
+     * Starts a new journal for an archive directory, ignoring any it has. The old journal is replaced when the first
+     * item is recorded.
+     *
+     * @param archiveDir  Archive directory
+     * @param fingerprint What every item of the batch depends on
+     * @return An empty journal
+     */
+    public static ItemJournal create(File archiveDir, String fingerprint) {
+        return new ItemJournal(new File(archiveDir, FILE_NAME), VERSION + "\t" + fingerprint, new HashMap<Integer, Entry>(), false);
+    }
+
+    /**
+     * @param rowNumber Row in the CSV
+     * @param entry     Inputs of the item now
+     * @return true if the journal says the item was built from these inputs
+     */
+    public boolean isBuilt(int rowNumber, Entry entry) {
+        return entry.equals(entries.get(rowNumber));
+    }
+
+    /**
+     * @param rowNumber Row in the CSV
+     * @return true if the journal has an entry for the row
+     */
+    public boolean contains(int rowNumber) {
+        return entries.containsKey(rowNumber);
+    }
+
+    /**
+     * @return Number of items in the journal when it was opened
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Records that the item for a row has been built completely.
+     *
+     * @param rowNumber Row in the CSV
+     * @param entry     Inputs it was built from
+     * @throws IOException If the journal can't be written
+     */
+    public synchronized void record(int rowNumber, Entry entry) throws IOException {
+        write(rowNumber + "\t" + entry.valuesHash + "\t" + entry.sourcesHash);
+    }
+
+    /**
+     * Forgets the item for a row, before it is rebuilt, so a rebuild that doesn't finish is never taken for the item
+     * the journal had.
+     *
+     * @param rowNumber Row in the CSV
+     * @throws IOException If the journal can't be written
+     */
+    public synchronized void forget(int rowNumber) throws IOException {
+        write(Integer.toString(rowNumber));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private void write(String line) throws IOException {
+        if (writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, appendable), StandardCharsets.UTF_8));
+            if (appendable) {
+                // Ends a line left unfinished by a crash, so it isn't joined to this one
+                writer.write('\n');
+            } else {
+                writer.write(header);
+                writer.write('\n');
+            }
+        }
+        writer.write(line);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * @param parts Things the items of a batch depend on
+     * @return Fingerprint of them for open()
+     */
+    public static String fingerprint(String... parts) {
+        MessageDigest digest = sha256();
+        for (String part : parts) {
+            update(digest, part);
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Adds a string with its length, so that "ab","c" and "a","bc" hash differently.
+     */
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        int length = bytes.length;
+        digest.update(new byte[]{(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        digest.update(bytes);
+    }
+
+    private static String hex(byte[] hash) {
+        char[] chars = new char[HASH_BYTES * 2];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            chars[i * 2] = HEX[(hash[i] >>> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
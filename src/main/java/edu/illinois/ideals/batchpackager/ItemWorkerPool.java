@@ -0,0 +1,148 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.util.SortedMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Builds items from metadata CSV rows on a fixed number of worker threads.
+ * The thread reading the CSV hands each parsed row to submit(), which blocks while the queue is full, so only a
+ * bounded number of rows are held in memory no matter how large the CSV is.
+ * With a single thread the rows are processed directly on the calling thread, exactly as before.
+ * <p>
+ * A pool can also be given the work for a row as a task, which is how the small files of items are handed to a
+ * dedicated writer thread.
+ */
+public class ItemWorkerPool {
+
+    /**
+     * Work done for one row of the metadata CSV.
+     */
+    public interface RowHandler {
+        void processRow(int rowNumber, String[] values) throws Exception;
+    }
+
+    /**
+     * Work done for one row, with whatever it needs already at hand.
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private static class Row {
+        final int rowNumber;
+        final Task task;
+
+        Row(int rowNumber, Task task) {
+            this.rowNumber = rowNumber;
+            this.task = task;
+        }
+    }
+
+    // Tells a worker there are no more rows
+    private static final Row END_OF_ROWS = new Row(-1, null);
+
+    private final RowHandler rowHandler;
+
+    private final BlockingQueue<Row> queue;
+
+    private final Thread[] workers;
+
+    // Row number -> reason the item for that row could not be built
+    private final SortedMap<Integer, String> failures = new ConcurrentSkipListMap<Integer, String>();
+
+    /**
+     * @param threads    Number of worker threads. 1 or less processes rows on the submitting thread.
+     * @param rowHandler Work to do for each row
+     */
+    public ItemWorkerPool(int threads, RowHandler rowHandler) {
+        this(threads > 1 ? threads : 0, threads * 4, "item-worker", rowHandler);
+    }
+
+    /**
+     * @param threads    Number of worker threads, 0 to process rows on the submitting thread
+     * @param capacity   Most rows waiting for a worker
+     * @param threadName Name of the worker threads, which are numbered from 1
+     * @param rowHandler Work to do for each row submitted with its values, null if only tasks are submitted
+     */
+    public ItemWorkerPool(int threads, int capacity, String threadName, RowHandler rowHandler) {
+        this.rowHandler = rowHandler;
+
+        if (threads <= 0) {
+            queue = null;
+            workers = new Thread[0];
+            return;
+        }
+
+        queue = new ArrayBlockingQueue<Row>(Math.max(1, capacity));
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, threadName + "-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Hands a row over to be built. Blocks while all workers are busy and the queue is full.
+     *
+     * @param rowNumber Row in the CSV, 1..n
+     * @param values    Values of the row. Must not be modified afterwards.
+     * @throws InterruptedException If interrupted while waiting for room in the queue
+     */
+    public void submit(int rowNumber, String[] values) throws InterruptedException {
+        submit(rowNumber, () -> rowHandler.processRow(rowNumber, values));
+    }
+
+    /**
+     * Hands the work for a row over to the workers. Blocks while all workers are busy and the queue is full.
+     *
+     * @param rowNumber Row in the CSV, 1..n, which a failure of the task is reported for
+     * @param task      Work to do for the row
+     * @throws InterruptedException If interrupted while waiting for room in the queue
+     */
+    public void submit(int rowNumber, Task task) throws InterruptedException {
+        if (queue == null) {
+            processRow(new Row(rowNumber, task));
+        } else {
+            queue.put(new Row(rowNumber, task));
+        }
+    }
+
+    /**
+     * Waits for all submitted rows to be built and stops the workers.
+     *
+     * @return Failures keyed and ordered by row number. Empty if every item was built.
+     * @throws InterruptedException If interrupted while waiting for the workers
+     */
+    public SortedMap<Integer, String> finish() throws InterruptedException {
+        for (int i = 0; i < workers.length; i++) {
+            queue.put(END_OF_ROWS);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return failures;
+    }
+
+    private void work() {
+        try {
+            Row row;
+            while ((row = queue.take()) != END_OF_ROWS) {
+                processRow(row);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void processRow(Row row) {
+        try {
+            row.task.run();
+        } catch (Throwable t) {
+            String message = (t.getMessage() != null) ? t.getMessage() : t.toString();
+            failures.put(row.rowNumber, message);
+        }
+    }
+}
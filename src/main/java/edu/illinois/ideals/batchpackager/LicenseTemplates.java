@@ -0,0 +1,184 @@
+package edu.illinois.ideals.batchpackager;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes the license.txt of each item for a run. An item gets the license named in its license column, otherwise the
+ * license of its owning collection (the first handle in its collections column), otherwise the license of the batch.
+ * <p>
+ * Each license is read once per run and its bytes go into every item that uses it, as they are in the file.
+ * When bitstreams are hard linked, items are hard linked to one copy of each license instead, which is kept in a
+ * directory of the item root until the run is closed.
+ * Safe to use from several item workers at once.
+ */
+public class LicenseTemplates {
+
+    public static final String FILE_NAME = "license.txt";
+
+    // Directory in the item root holding the copies items are linked to, removed by close
+    public static final String LINK_DIRECTORY = ".batchpackager-licenses";
+
+    /**
+     * One license, as it is written into items.
+     */
+    private static final class Template {
+        final byte[] bytes;
+
+        // Copy in the link directory, created by the first item linked to it
+        private File linkTarget;
+
+        Template(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        synchronized File getLinkTarget(File linkDirectory) throws IOException {
+            if (linkTarget == null) {
+                Files.createDirectories(linkDirectory.toPath());
+                File copy = File.createTempFile("license", ".txt", linkDirectory);
+                Files.write(copy.toPath(), bytes);
+                linkTarget = copy;
+            }
+            return linkTarget;
+        }
+    }
+
+    private final Template batchLicense;
+
+    // File the license of the batch is read from instead, null to use batchLicense
+    private final File batchLicenseFile;
+
+    // License file of each collection handle
+    private final Map<String, File> collectionLicenses;
+
+    // Content source directory, where the files named in a license column are
+    private final File sourceDir;
+
+    // Each license file loaded so far
+    private final ConcurrentHashMap<File, Template> templates = new ConcurrentHashMap<File, Template>();
+
+    // Where the copies items are linked to go, null when not linking
+    private final File linkRoot;
+
+    // linkRoot until linking fails, then null and every license is written
+    private volatile File linkDirectory;
+
+    /**
+     * Nothing is read or written until the first item's license is.
+     *
+     * @param batchLicense       License of items with no other license
+     * @param batchLicenseFile   File to read the license of the batch from instead, null to use batchLicense
+     * @param collectionLicenses License file for the items of each collection handle
+     * @param sourceDir          Content source directory
+     * @param itemRootDir        Directory the items are created in, to link items to one copy of each license.
+     *                           null to write the license into every item.
+     */
+    public LicenseTemplates(byte[] batchLicense, File batchLicenseFile, Map<String, File> collectionLicenses, File sourceDir, File itemRootDir) {
+        this.batchLicense = new Template(batchLicense);
+        this.batchLicenseFile = batchLicenseFile;
+        this.collectionLicenses = collectionLicenses;
+        this.sourceDir = sourceDir;
+        this.linkRoot = (itemRootDir != null) ? new File(itemRootDir, LINK_DIRECTORY) : null;
+        if (linkRoot != null) {
+            // Left behind by a run that didn't finish
+            FileUtils.deleteQuietly(linkRoot);
+        }
+        this.linkDirectory = linkRoot;
+    }
+
+    /**
+     * Links the license.txt of an item into its directory, replacing any that is there, or adds it to the files of
+     * the item to be written with them.
+     *
+     * @param itemFiles        Files of the item
+     * @param licenseValue     Value of the row's license column, null or "" if it has none
+     * @param collectionsValue Value of the row's collections column, null or "" if it has none
+     * @throws IOException If a license file can't be read or the license can't be written
+     */
+    public void write(ItemFiles itemFiles, String licenseValue, String collectionsValue) throws IOException {
+        Template template = select(licenseValue, collectionsValue);
+        File target = new File(itemFiles.getItemDirectory(), FILE_NAME);
+
+        File directory = linkDirectory;
+        if (directory != null) {
+            try {
+                File linkTarget = template.getLinkTarget(directory);
+                Files.deleteIfExists(target.toPath());
+                Files.createLink(target.toPath(), linkTarget.toPath());
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                linkDirectory = null;
+                System.out.println("Unable to link licenses, writing them instead: " + e.getMessage());
+            }
+        }
+        itemFiles.put(target, template.bytes);
+    }
+
+    private Template select(String licenseValue, String collectionsValue) throws IOException {
+        if (StringUtils.isNotBlank(licenseValue)) {
+            return load(new File(sourceDir, licenseValue.trim()));
+        }
+        if (StringUtils.isNotBlank(collectionsValue) && !collectionLicenses.isEmpty()) {
+            File licenseFile = collectionLicenses.get(getOwningCollection(collectionsValue));
+            if (licenseFile != null) {
+                return load(licenseFile);
+            }
+        }
+        return (batchLicenseFile != null) ? load(batchLicenseFile) : batchLicense;
+    }
+
+    private Template load(File licenseFile) throws IOException {
+        try {
+            return templates.computeIfAbsent(licenseFile.getAbsoluteFile(), file -> {
+                try {
+                    return new Template(Files.readAllBytes(file.toPath()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw new IOException("Unable to read license " + licenseFile.getPath() + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * @param collectionsValue Value of a row's collections column
+     * @return The first collection handle in it, which DSpace makes the owning collection of the item
+     */
+    public static String getOwningCollection(String collectionsValue) {
+        List<String> collections = new ArrayList<String>();
+        ValueSplitter.splitValues(collectionsValue.trim(), collections);
+        for (String collection : collections) {
+            if (!StringUtils.isEmpty(collection)) {
+                return collection.trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Number of license files loaded
+     */
+    public int getTemplatesLoaded() {
+        return templates.size();
+    }
+
+    /**
+     * Removes the copies items are linked to. The items keep their licenses.
+     */
+    public void close() {
+        linkDirectory = null;
+        if (linkRoot != null) {
+            FileUtils.deleteQuietly(linkRoot);
+        }
+    }
+}
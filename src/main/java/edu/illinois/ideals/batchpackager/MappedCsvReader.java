@@ -0,0 +1,554 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads a metadata CSV from a memory mapped file, building a {@link CsvRowIndex} of where each record starts as it
+ * goes. Once a row has been indexed the reader can go straight back to it, so a second pass over the rows doesn't
+ * have to reopen the file, and a complete index is kept for the file version so the next reader of an unchanged
+ * file starts with it.
+ * <p>
+ * Parses the same way javacsv's CsvReader does with its defaults: comma delimited, values optionally quoted with "
+ * and "" for a quote inside them, unquoted values trimmed, anything between a closing quote and the next comma
+ * dropped, CR, LF or CRLF ending a record and blank lines skipped. A UTF-8 or UTF-16 byte order mark is skipped.
+ * Unlike CsvReader, a value that isn't valid in the charset is an error rather than decoded with replacement
+ * characters, since the charset is detected from a sample of the file.
+ * <p>
+ * Records are found by looking at the bytes, which works for UTF-8, UTF-16 and every charset in which the bytes of
+ * , " CR and LF only ever stand for those characters. The ISO-2022 family and other charsets where they don't are
+ * not supported.
+ */
+public class MappedCsvReader implements Closeable {
+
+    private static final int DELIMITER = ',';
+
+    private static final int QUALIFIER = '"';
+
+    // Files are mapped in segments of at most 1 GB. Records can span segments.
+    private static final int SEGMENT_SHIFT = 30;
+
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private static final int INDEX_CACHE_SIZE = 4;
+
+    private static final Map<FileVersion, CsvRowIndex> indexCache = new LinkedHashMap<FileVersion, CsvRowIndex>(INDEX_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<FileVersion, CsvRowIndex> eldest) {
+            return size() > INDEX_CACHE_SIZE;
+        }
+    };
+
+    private final FileVersion version;
+
+    // Charset the values are decoded with. For UTF-16 this has the byte order, since the byte order mark is skipped.
+    private final Charset charset;
+
+    // Decodes the values of this reader, reporting bytes that aren't valid in the charset
+    private final CharsetDecoder decoder;
+
+    // Bytes per character for finding delimiters, 1 or 2 for UTF-16
+    private final int unitWidth;
+
+    private final boolean bigEndian;
+
+    // Offset of the first record, past any byte order mark
+    private final long dataStart;
+
+    private ByteBuffer[] segments;
+
+    // false for readers made by duplicate(), which share the mapping and leave releasing it to the original
+    private final boolean mappingOwner;
+
+    // Segment being read
+    private ByteBuffer buffer;
+
+    private int segment;
+
+    private final CsvRowIndex rowIndex;
+
+    // Row number of the record the next readRecord() reads, 0 for the header row
+    private int nextRow;
+
+    private String[] headers = new String[0];
+
+    private String[] values;
+
+    private final List<String> valueList = new ArrayList<String>();
+
+    // Bytes of the value being read
+    private byte[] field = new byte[256];
+
+    private int fieldLength;
+
+    // Characters of the value being decoded
+    private CharBuffer fieldChars = CharBuffer.allocate(256);
+
+    /**
+     * @param file    CSV file
+     * @param charset Its charset, see {@link CharsetDetector}
+     * @throws IOException If the file can't be mapped, or the charset isn't supported
+     */
+    public MappedCsvReader(File file, Charset charset) throws IOException {
+        version = FileVersion.of(file);
+        mappingOwner = true;
+
+        String name = charset.name().toUpperCase(Locale.ROOT);
+        boolean utf16 = name.startsWith("UTF-16") || name.startsWith("X-UTF-16");
+        if (!utf16 && !isAsciiCompatible(charset)) {
+            throw new IOException("CSV charset " + charset.name() + " is not supported, save the CSV as UTF-8");
+        }
+        unitWidth = utf16 ? 2 : 1;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            int segmentCount = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+            segments = new ByteBuffer[Math.max(1, segmentCount)];
+            segments[0] = ByteBuffer.allocate(0);
+            for (int i = 0; i < segmentCount; i++) {
+                long offset = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_SIZE, size - offset));
+            }
+        } finally {
+            // The mapping stays valid after the channel is closed
+            randomAccessFile.close();
+        }
+        buffer = segments[0];
+
+        byte[] head = new byte[Math.min(3, buffer.limit())];
+        buffer.get(head);
+        Charset byteOrderMarkCharset = CharsetDetector.byteOrderMarkCharset(head, head.length);
+        if (utf16) {
+            bigEndian = !(StandardCharsets.UTF_16LE.equals(byteOrderMarkCharset) || name.contains("LE"));
+            this.charset = bigEndian ? StandardCharsets.UTF_16BE : StandardCharsets.UTF_16LE;
+            dataStart = (byteOrderMarkCharset != null && !StandardCharsets.UTF_8.equals(byteOrderMarkCharset)) ? 2 : 0;
+        } else {
+            bigEndian = true;
+            this.charset = charset;
+            dataStart = StandardCharsets.UTF_8.equals(byteOrderMarkCharset) ? 3 : 0;
+        }
+        decoder = newDecoder(this.charset);
+        seek(dataStart);
+
+        CsvRowIndex cachedIndex;
+        synchronized (indexCache) {
+            cachedIndex = indexCache.get(version);
+        }
+        rowIndex = (cachedIndex != null) ? cachedIndex : new CsvRowIndex();
+    }
+
+    private MappedCsvReader(MappedCsvReader original) {
+        version = original.version;
+        mappingOwner = false;
+        charset = original.charset;
+        decoder = newDecoder(charset);
+        unitWidth = original.unitWidth;
+        bigEndian = original.bigEndian;
+        dataStart = original.dataStart;
+        segments = new ByteBuffer[original.segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = original.segments[i].duplicate();
+        }
+        rowIndex = original.rowIndex;
+        headers = original.headers;
+        seek(dataStart);
+    }
+
+    /**
+     * Reads the next record as the header row.
+     *
+     * @return false if there are no more records
+     * @throws IOException If the rows can't be indexed
+     */
+    public boolean readHeaders() throws IOException {
+        if (!readRecord()) {
+            headers = new String[0];
+            return false;
+        }
+        headers = values;
+        return true;
+    }
+
+    /**
+     * @return Values of the header row, empty if it hasn't been read
+     */
+    public String[] getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return false if there are no more records
+     * @throws IOException If the rows can't be indexed
+     */
+    public boolean readRecord() throws IOException {
+        return nextRecord(true);
+    }
+
+    /**
+     * Moves past the next record, indexing it, without decoding its values.
+     *
+     * @return false if there are no more records
+     * @throws IOException If the rows can't be indexed
+     */
+    private boolean skipRecord() throws IOException {
+        return nextRecord(false);
+    }
+
+    private boolean nextRecord(boolean keepValues) throws IOException {
+        long start = skipBlankLines();
+        if (start < 0) {
+            values = null;
+            if (!rowIndex.isComplete() && nextRow == rowIndex.getRowCount()) {
+                rowIndex.complete(position());
+                synchronized (indexCache) {
+                    indexCache.put(version, rowIndex);
+                }
+            }
+            return false;
+        }
+
+        if (nextRow == rowIndex.getRowCount() && !rowIndex.isComplete()) {
+            rowIndex.add(start);
+        }
+        readValues(keepValues);
+        nextRow++;
+        return true;
+    }
+
+    /**
+     * @return Values of the record last read. A new array for each record, so it can be handed to another thread.
+     */
+    public String[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return Row number of the record last read, 0 for the header row
+     */
+    public int getCurrentRow() {
+        return nextRow - 1;
+    }
+
+    /**
+     * Positions the reader so the next readRecord() reads the given row. Rows up to the furthest one read so far are
+     * found through the index; beyond it, records are read until the row is reached.
+     *
+     * @param row Row number, 0 for the header row
+     * @throws IOException If the rows can't be indexed
+     */
+    public void seekToRow(int row) throws IOException {
+        int indexedRows = rowIndex.getRowCount();
+        if (row < indexedRows) {
+            seek(rowIndex.getOffset(row));
+            nextRow = row;
+            return;
+        }
+        if (rowIndex.isComplete()) {
+            seek(rowIndex.getEndOffset());
+            nextRow = indexedRows;
+            return;
+        }
+
+        if (indexedRows == 0) {
+            seek(dataStart);
+            nextRow = 0;
+        } else {
+            seek(rowIndex.getOffset(indexedRows - 1));
+            nextRow = indexedRows - 1;
+        }
+        while (nextRow < row && skipRecord()) {
+            // Indexes the rows on the way
+        }
+    }
+
+    /**
+     * Indexes every row, reading through the rest of the file if the index isn't complete yet. Only looks for where
+     * records start, so it costs a fraction of reading the values. The reader is left where it was.
+     *
+     * @return The complete index
+     * @throws IOException If the rows can't be indexed
+     */
+    public CsvRowIndex indexAllRows() throws IOException {
+        if (!rowIndex.isComplete()) {
+            int row = nextRow;
+            seekToRow(Integer.MAX_VALUE);
+            seekToRow(row);
+        }
+        return rowIndex;
+    }
+
+    /**
+     * Makes another reader of the same file, sharing this one's mapping and complete row index, for reading a range
+     * of rows on another thread. It has this reader's headers and starts at the header row. Close it before this
+     * reader is closed; closing it leaves the mapping to this reader.
+     *
+     * @return The new reader
+     * @throws IllegalStateException If the row index isn't complete, see indexAllRows()
+     */
+    public MappedCsvReader duplicate() {
+        if (!rowIndex.isComplete()) {
+            throw new IllegalStateException("Rows must all be indexed before the reader is duplicated");
+        }
+        return new MappedCsvReader(this);
+    }
+
+    /**
+     * @return Offsets of the rows read so far, or of every row once the reader has reached the end of the file
+     */
+    public CsvRowIndex getRowIndex() {
+        return rowIndex;
+    }
+
+    /**
+     * @return Charset the values are decoded with
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Releases the mapping, so the file can be replaced straight away on Windows. The reader can't be used after.
+     */
+    @Override
+    public void close() {
+        ByteBuffer[] mapped = segments;
+        segments = new ByteBuffer[]{ByteBuffer.allocate(0)};
+        buffer = segments[0];
+        segment = 0;
+        if (!mappingOwner) {
+            return;
+        }
+        for (ByteBuffer segmentBuffer : mapped) {
+            if (segmentBuffer.isDirect()) {
+                unmap(segmentBuffer);
+            }
+        }
+    }
+
+    /**
+     * Skips the line breaks before the next record.
+     *
+     * @return Offset of the start of the next record, -1 at the end of the file
+     */
+    private long skipBlankLines() {
+        while (true) {
+            long start = position();
+            int c = read();
+            if (c < 0) {
+                return -1;
+            }
+            if (c != '\r' && c != '\n') {
+                seek(start);
+                return start;
+            }
+        }
+    }
+
+    /**
+     * Reads the values of a record, up to and including its line break.
+     *
+     * @param keepValues false to only move past the record
+     * @throws IOException If a value isn't valid in the charset
+     */
+    private void readValues(boolean keepValues) throws IOException {
+        valueList.clear();
+        while (true) {
+            int c = read();
+            while (c == ' ' || c == '\t') {
+                c = read();
+            }
+
+            fieldLength = 0;
+            if (c == QUALIFIER) {
+                while ((c = read()) >= 0) {
+                    if (c == QUALIFIER) {
+                        c = read();
+                        if (c != QUALIFIER) {
+                            break;
+                        }
+                    }
+                    if (keepValues) {
+                        append(c);
+                    }
+                }
+                // Anything after the closing quote is dropped
+                while (c >= 0 && c != DELIMITER && c != '\r' && c != '\n') {
+                    c = read();
+                }
+                if (keepValues) {
+                    valueList.add(fieldString(fieldLength));
+                }
+            } else if (keepValues) {
+                int trimmedLength = 0;
+                while (c >= 0 && c != DELIMITER && c != '\r' && c != '\n') {
+                    append(c);
+                    if (c != ' ' && c != '\t') {
+                        trimmedLength = fieldLength;
+                    }
+                    c = read();
+                }
+                valueList.add(fieldString(trimmedLength));
+            } else {
+                while (c >= 0 && c != DELIMITER && c != '\r' && c != '\n') {
+                    c = read();
+                }
+            }
+
+            if (c == DELIMITER) {
+                continue;
+            }
+            if (c == '\r') {
+                long afterCarriageReturn = position();
+                if (read() != '\n') {
+                    seek(afterCarriageReturn);
+                }
+            }
+            break;
+        }
+        values = keepValues ? valueList.toArray(new String[valueList.size()]) : null;
+    }
+
+    /**
+     * Adds a character to the value being read, as the bytes it was read from.
+     */
+    private void append(int c) {
+        if (fieldLength + 2 > field.length) {
+            field = Arrays.copyOf(field, field.length * 2);
+        }
+        if (unitWidth == 1) {
+            field[fieldLength++] = (byte) c;
+        } else if (bigEndian) {
+            field[fieldLength++] = (byte) (c >>> 8);
+            field[fieldLength++] = (byte) c;
+        } else {
+            field[fieldLength++] = (byte) c;
+            field[fieldLength++] = (byte) (c >>> 8);
+        }
+    }
+
+    private String fieldString(int length) throws IOException {
+        if (length == 0) {
+            return "";
+        }
+        int maxChars = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+        if (fieldChars.capacity() < maxChars) {
+            fieldChars = CharBuffer.allocate(Math.max(maxChars, fieldChars.capacity() * 2));
+        }
+        fieldChars.clear();
+        decoder.reset();
+        CoderResult result = decoder.decode(ByteBuffer.wrap(field, 0, length), fieldChars, true);
+        if (result.isUnderflow()) {
+            result = decoder.flush(fieldChars);
+        }
+        if (!result.isUnderflow()) {
+            String row = (nextRow == 0) ? "The header row" : "Row " + nextRow;
+            throw new IOException(row + " of the CSV isn't valid " + charset.name() + ", save the CSV as UTF-8");
+        }
+        fieldChars.flip();
+        return fieldChars.toString();
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+    }
+
+    /**
+     * @return Next byte, or for UTF-16 the next UTF-16 unit, -1 at the end of the file
+     */
+    private int read() {
+        int b = readByte();
+        if (unitWidth == 1 || b < 0) {
+            return b;
+        }
+        int b2 = readByte();
+        if (b2 < 0) {
+            return -1;
+        }
+        return bigEndian ? (b << 8) | b2 : (b2 << 8) | b;
+    }
+
+    private int readByte() {
+        if (!buffer.hasRemaining()) {
+            if (segment + 1 >= segments.length) {
+                return -1;
+            }
+            buffer = segments[++segment];
+            buffer.position(0);
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    private long position() {
+        return ((long) segment << SEGMENT_SHIFT) + buffer.position();
+    }
+
+    private void seek(long offset) {
+        segment = (int) Math.min(offset >>> SEGMENT_SHIFT, segments.length - 1);
+        buffer = segments[segment];
+        buffer.position((int) (offset - ((long) segment << SEGMENT_SHIFT)));
+    }
+
+    /**
+     * @return true if , " CR and LF are single bytes of the same value in the charset, and those bytes can't be part
+     * of another character
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        String name = charset.name().toUpperCase(Locale.ROOT);
+        if (name.startsWith("ISO-2022") || name.startsWith("UTF-7") || name.contains("UTF-32") || !charset.canEncode()) {
+            return false;
+        }
+        return Arrays.equals(",\"\r\n".getBytes(charset), new byte[]{',', '"', '\r', '\n'});
+    }
+
+    /**
+     * Unmaps a mapped buffer straight away instead of when it is garbage collected, through the JDK internals
+     * that allow it. If they aren't accessible the mapping is left to the garbage collector.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            // Left to the garbage collector
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package edu.illinois.ideals.batchpackager;
+
+import org.apache.commons.io.FileUtils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings of one verify or process run of SAFPackage. Safe to update from several item workers and
+ * to read from any thread while the run is going, through SAFPackage.getMetrics(), a PackageProgressListener or JMX.
+ */
+public class PackageMetrics implements PackageMetricsMBean {
+
+    /**
+     * Parts of a run that are timed. Per-item phases are summed over all items and threads.
+     */
+    public enum Phase {
+        CHARSET_DETECTION("Charset detection"),
+        SOURCE_SCAN("Source directory scan"),
+        HEADER_VERIFICATION("Header verification"),
+        BODY_VERIFICATION("Body verification"),
+        COLLECTION_VALIDATION("Collection validation"),
+        BITSTREAM_TRANSFER("Bitstream transfer"),
+        XML_WRITING("Metadata XML writing"),
+        LICENSE_WRITING("License writing"),
+        ITEM_FILE_WRITING("Item file writing"),
+        ZIP("Zip");
+
+        private final String description;
+
+        Phase(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private static final String OBJECT_NAME = "edu.illinois.ideals.batchpackager:type=PackageMetrics";
+
+    // Numbers the MBeans of runs that overlap in one JVM
+    private static final AtomicInteger overlappingRuns = new AtomicInteger();
+
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+    private final LongAdder[] phaseCalls = new LongAdder[Phase.values().length];
+
+    private final LongAdder itemsBuilt = new LongAdder();
+
+    private final LongAdder itemsFailed = new LongAdder();
+
+    private final LongAdder itemsSkipped = new LongAdder();
+
+    private final LongAdder bytesTransferred = new LongAdder();
+
+    private final LatencyHistogram itemBuildTimes = new LatencyHistogram();
+
+    // Wall clock of building items, for the rates. 0 until building starts.
+    private volatile long buildingStartNanos;
+
+    private volatile long buildingEndNanos;
+
+    private ObjectName registeredName;
+
+    public PackageMetrics() {
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+            phaseCalls[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Adds the time since startNanos to a phase.
+     *
+     * @param phase      The phase
+     * @param startNanos System.nanoTime() when the phase started
+     */
+    public void record(Phase phase, long startNanos) {
+        phaseNanos[phase.ordinal()].add(System.nanoTime() - startNanos);
+        phaseCalls[phase.ordinal()].increment();
+    }
+
+    public void buildingStarted() {
+        buildingStartNanos = System.nanoTime();
+        buildingEndNanos = 0;
+    }
+
+    public void buildingFinished() {
+        buildingEndNanos = System.nanoTime();
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when building the item started
+     */
+    public void itemBuilt(long startNanos) {
+        itemBuildTimes.recordNanos(System.nanoTime() - startNanos);
+        itemsBuilt.increment();
+    }
+
+    public void itemFailed() {
+        itemsFailed.increment();
+    }
+
+    /**
+     * Counts an item that was already built from the same inputs, so it wasn't built again.
+     */
+    public void itemSkipped() {
+        itemsSkipped.increment();
+    }
+
+    public void bytesTransferred(long bytes) {
+        bytesTransferred.add(bytes);
+    }
+
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    public long getPhaseCalls(Phase phase) {
+        return phaseCalls[phase.ordinal()].sum();
+    }
+
+    @Override
+    public long getItemsBuilt() {
+        return itemsBuilt.sum();
+    }
+
+    @Override
+    public long getItemsFailed() {
+        return itemsFailed.sum();
+    }
+
+    @Override
+    public long getItemsSkipped() {
+        return itemsSkipped.sum();
+    }
+
+    @Override
+    public long getBytesTransferred() {
+        return bytesTransferred.sum();
+    }
+
+    @Override
+    public double getItemsPerSecond() {
+        return perSecond(getItemsBuilt());
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return perSecond(getBytesTransferred());
+    }
+
+    @Override
+    public double getItemBuildTimeP50Millis() {
+        return itemBuildTimes.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getItemBuildTimeP99Millis() {
+        return itemBuildTimes.getPercentileMillis(99);
+    }
+
+    @Override
+    public long getCharsetDetectionMillis() {
+        return phaseMillis(Phase.CHARSET_DETECTION);
+    }
+
+    @Override
+    public long getSourceScanMillis() {
+        return phaseMillis(Phase.SOURCE_SCAN);
+    }
+
+    @Override
+    public long getHeaderVerificationMillis() {
+        return phaseMillis(Phase.HEADER_VERIFICATION);
+    }
+
+    @Override
+    public long getBodyVerificationMillis() {
+        return phaseMillis(Phase.BODY_VERIFICATION);
+    }
+
+    @Override
+    public long getCollectionValidationMillis() {
+        return phaseMillis(Phase.COLLECTION_VALIDATION);
+    }
+
+    @Override
+    public long getBitstreamTransferMillis() {
+        return phaseMillis(Phase.BITSTREAM_TRANSFER);
+    }
+
+    @Override
+    public long getXmlWritingMillis() {
+        return phaseMillis(Phase.XML_WRITING);
+    }
+
+    @Override
+    public long getLicenseWritingMillis() {
+        return phaseMillis(Phase.LICENSE_WRITING);
+    }
+
+    @Override
+    public long getItemFileWritingMillis() {
+        return phaseMillis(Phase.ITEM_FILE_WRITING);
+    }
+
+    @Override
+    public long getZipMillis() {
+        return phaseMillis(Phase.ZIP);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server. Failing to register only disables JMX for the run.
+     */
+    public synchronized void register() {
+        if (registeredName != null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                name = new ObjectName(OBJECT_NAME + ",run=" + overlappingRuns.incrementAndGet());
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException | SecurityException e) {
+            System.out.println("Unable to register package metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException | SecurityException e) {
+            System.out.println("Unable to unregister package metrics from JMX: " + e.getMessage());
+        }
+        registeredName = null;
+    }
+
+    /**
+     * @return Report lines summarising the run
+     */
+    public List<String> getReport() {
+        List<String> report = new ArrayList<String>();
+        report.add("\n#######\n# Metrics\n#######");
+
+        for (Phase phase : Phase.values()) {
+            long calls = getPhaseCalls(phase);
+            if (calls > 0) {
+                report.add("[INFO] " + phase.getDescription() + ": " + phaseMillis(phase) + " ms"
+                        + ((calls > 1) ? " over " + calls + " calls" : ""));
+            }
+        }
+
+        long items = getItemsBuilt();
+        if (items > 0 || getItemsFailed() > 0 || getItemsSkipped() > 0) {
+            report.add("[INFO] Items: " + items + " built, " + getItemsSkipped() + " unchanged, " + getItemsFailed() + " failed, "
+                    + String.format("%.1f", getItemsPerSecond()) + " items/s");
+            report.add("[INFO] Bitstreams: " + FileUtils.byteCountToDisplaySize(getBytesTransferred()) + ", "
+                    + FileUtils.byteCountToDisplaySize((long) getBytesPerSecond()) + "/s");
+            report.add("[INFO] Item build time: p50 " + String.format("%.1f", getItemBuildTimeP50Millis()) + " ms, p99 "
+                    + String.format("%.1f", getItemBuildTimeP99Millis()) + " ms");
+        }
+        return report;
+    }
+
+    private long phaseMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(getPhaseNanos(phase));
+    }
+
+    private double perSecond(long count) {
+        long start = buildingStartNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = (buildingEndNanos != 0) ? buildingEndNanos : System.nanoTime();
+        long elapsed = Math.max(1, end - start);
+        return count * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
@@ -0,0 +1,44 @@
+package edu.illinois.ideals.batchpackager;
+
+/**
+ * JMX view of the metrics of a packaging run, registered while the run is going.
+ * Times are in milliseconds, summed over all item worker threads.
+ */
+public interface PackageMetricsMBean {
+
+    long getItemsBuilt();
+
+    long getItemsFailed();
+
+    long getItemsSkipped();
+
+    long getBytesTransferred();
+
+    double getItemsPerSecond();
+
+    double getBytesPerSecond();
+
+    double getItemBuildTimeP50Millis();
+
+    double getItemBuildTimeP99Millis();
+
+    long getCharsetDetectionMillis();
+
+    long getSourceScanMillis();
+
+    long getHeaderVerificationMillis();
+
+    long getBodyVerificationMillis();
+
+    long getCollectionValidationMillis();
+
+    long getBitstreamTransferMillis();
+
+    long getXmlWritingMillis();
+
+    long getLicenseWritingMillis();
+
+    long getItemFileWritingMillis();
+
+    long getZipMillis();
+}
@@ -0,0 +1,32 @@
+package edu.illinois.ideals.batchpackager;
+
+/**
+ * Told about the progress of SAFPackage while it verifies or creates a batch. Called from the thread running the
+ * package and from item worker threads, so implementations must be thread safe and quick.
+ */
+public interface PackageProgressListener {
+
+    /**
+     * @param itemsDone  Items finished so far, whether created or failed
+     * @param itemsTotal Items in the batch, 0 if not known yet
+     * @param bytesDone  Bytes of bitstreams put in items so far
+     * @param bytesTotal Bytes of bitstreams the csv refers to, 0 if not known yet
+     */
+    void progress(int itemsDone, int itemsTotal, long bytesDone, long bytesTotal);
+
+    /**
+     * A line for the report, given as soon as it is known rather than when the run ends, such as an item that
+     * could not be created.
+     *
+     * @param line Report line
+     */
+    void reportLine(String line);
+
+    /**
+     * Called when body verification and item building finish, and when the run ends, with the metrics so far.
+     *
+     * @param metrics Counters and timings of the run. Live, so they keep changing while the run goes on.
+     */
+    default void metricsUpdated(PackageMetrics metrics) {
+    }
+}
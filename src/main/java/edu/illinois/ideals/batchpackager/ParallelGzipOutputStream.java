@@ -0,0 +1,233 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output that compresses blocks of the data on several threads, as pigz does. Each block is deflated on its own,
+ * primed with the last 32K of the block before it so little is lost on ratio, and ends on a byte boundary with a sync
+ * flush, so the compressed blocks written one after the other, in order, are a single deflate stream. The result is
+ * an ordinary gzip file that gunzip, tar and java.util.zip read as usual.
+ * <p>
+ * The crc is worked out on the writing thread. With one thread every block is deflated on the writing thread too.
+ * Not safe for concurrent use.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    // Uncompressed bytes per block
+    private static final int BLOCK_SIZE = 128 * 1024;
+
+    // Deflate looks back at most this far, so this much of the block before is all a block needs to be primed with
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    // Header of a gzip member with no name, time or extra fields, as GZIPOutputStream writes it
+    private static final byte[] HEADER = {(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final OutputStream out;
+
+    private final int level;
+
+    // Deflates the blocks, null to deflate them on the writing thread
+    private final ExecutorService executor;
+
+    // Blocks being deflated, in the order they are written. At most maxPending of them.
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+    private final int maxPending;
+
+    private final CRC32 crc = new CRC32();
+
+    private long uncompressedSize;
+
+    private byte[] block = new byte[BLOCK_SIZE];
+
+    private int blockLength;
+
+    // Last full block handed over, whose end primes the next one. null before the first.
+    private byte[] previousBlock;
+
+    private boolean headerWritten;
+
+    private boolean finished;
+
+    private boolean closed;
+
+    /**
+     * @param out     Stream the gzip data is written to, closed by close()
+     * @param threads Number of threads deflating blocks
+     * @param level   Deflate level, 0-9 or Deflater.DEFAULT_COMPRESSION
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.out = out;
+        this.level = level;
+        int workers = Math.max(1, threads);
+        this.executor = (workers > 1) ? Executors.newFixedThreadPool(workers) : null;
+        this.maxPending = workers * 2;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Gzip stream already finished");
+        }
+        crc.update(b, off, len);
+        uncompressedSize += len;
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == BLOCK_SIZE) {
+                deflateBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the blocks deflated so far. What is still in the current block stays there, as it can only be deflated
+     * once it is full or the stream is finished.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+        out.flush();
+    }
+
+    /**
+     * Deflates what is left and writes the end of the gzip data. Nothing can be written afterwards.
+     *
+     * @throws IOException If the data can't be written
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        deflateBlock(true);
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+        writeIntLE((int) crc.getValue());
+        writeIntLE((int) uncompressedSize);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Hands the current block over to be deflated and starts a new one.
+     *
+     * @param last true for the block that ends the deflate stream, which may be short or empty
+     */
+    private void deflateBlock(boolean last) throws IOException {
+        if (!headerWritten) {
+            out.write(HEADER);
+            headerWritten = true;
+        }
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] dictionary = previousBlock;
+        if (executor == null) {
+            out.write(deflate(data, length, dictionary, last));
+        } else {
+            pending.add(executor.submit(() -> deflate(data, length, dictionary, last)));
+            while (pending.size() > maxPending) {
+                writeNextBlock();
+            }
+        }
+        if (!last) {
+            // The block is read by its task and the next one, so it isn't reused
+            previousBlock = data;
+            block = new byte[BLOCK_SIZE];
+        }
+        blockLength = 0;
+    }
+
+    private void writeNextBlock() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @param data       Block to deflate
+     * @param length     Number of bytes in it
+     * @param dictionary Block before it, null for the first
+     * @param last       true to end the deflate stream, false to end on a byte boundary with a sync flush
+     * @return The raw deflate data of the block
+     */
+    private byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // A sync flush that fills the buffer may have more to give
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+}
@@ -1,17 +1,8 @@
 package edu.illinois.ideals.batchpackager;
 
-import com.csvreader.CsvReader;
 import com.csvreader.CsvWriter;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.vfs.*;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.mozilla.universalchardet.UniversalDetector;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
 
 import java.io.*;
 import java.net.URL;
@@ -19,14 +10,39 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 public class SAFPackage {
-    private String seperatorRegex = "\\|\\|";   // Using double pipe || to separate multiple values in a field.
-
     private String licenseString;
 
+    // License file used instead of the bundled license, null for the bundled one
+    private File licenseFile;
+
+    // License file for the items of each collection handle
+    private final Map<String, File> collectionLicenses = new LinkedHashMap<String, File>();
+
+    // Writes the license.txt of each item, for the current run
+    private LicenseTemplates licenseTemplates;
+
+    // Columns the license of a row is chosen by, -1 if the csv doesn't have them
+    private int licenseColumn = -1;
+    private int collectionColumn = -1;
+
     private List<String> validHeaders;
 
     private List<String> requiredHeaders;
@@ -43,29 +59,156 @@ public class SAFPackage {
     // SAF Archive output directory
     private File archiveDir;
 
+    // Directory the item_N directories are created in. The archive directory, or its staging directory in single pass mode.
+    private File itemRootDir;
+
     // Storage of the csv data.
-    private CsvReader metadataCsvReader;
+    private MappedCsvReader metadataCsvReader;
 
-    //Set a a Symbolic Link for filesinstead of copying them
-    private boolean symbolicLink = false;
+    // Header row of the csv, kept so item workers don't have to share the reader
+    private String[] metadataHeaders;
+
+    // What to do with each column, worked out once from the header row
+    private ColumnPlan columnPlan;
+
+    // How bitstreams get from the source directory into the item directories
+    private TransferStrategy transferStrategy = TransferStrategy.COPY;
+
+    // transferStrategy with AUTO resolved for the current run
+    private TransferStrategy resolvedTransferStrategy;
+
+    // Copy a bitstream referred to by several rows once, and hard link the other references to that copy
+    private boolean deduplicateBitstreams;
+
+    // Transfers bitstreams for the current run when deduplicating
+    private BitstreamDeduplicator bitstreamDeduplicator;
+
+    // Number of threads building item directories. 1 builds them one at a time on the thread reading the csv.
+    private int workerThreads = 1;
+
+    // true to write the small files of items on a thread of their own
+    private boolean itemFileWriterThread;
+
+    // Writes the small files of items for the current run on one thread, null to write them on the item workers
+    private ItemWorkerPool itemFileWriter;
+
+    // Format of the archive items are streamed into, null to build item directories
+    private ArchiveFormat streamingFormat;
+
+    // Archive the items of the current run are streamed into, null when building item directories
+    private StreamingArchive streamingArchive;
+
+    // Number of threads deflating zip entries or gzip blocks in exportToZip
+    private int zipThreads = 1;
+
+    // Format exportToZip archives the archive directory in
+    private ArchiveFormat exportFormat = ArchiveFormat.ZIP;
+
+    // Number of threads verifying the body of the csv. 1 verifies the rows in order on the thread reading the csv.
+    private int verifyThreads = 1;
+
+    // Rows verified per task are at least this many, so the tasks aren't dominated by their overhead
+    private static final int MIN_VERIFY_RANGE_ROWS = 1024;
+
+    // Rows are split into about this many ranges per thread, so threads that finish early can steal work
+    private static final int VERIFY_RANGES_PER_THREAD = 8;
+
+    // Deflate level for zip entries that are compressed
+    private int zipLevel = Deflater.DEFAULT_COMPRESSION;
+
+    // Store already compressed bitstreams in the zip instead of deflating them
+    private boolean zipStoreCompressedFiles = true;
+
+    // Verify and build items in the same read of the csv, into a staging directory
+    private boolean singlePass = false;
+
+    // Set while building items in single pass mode, where verification has already counted the file hits
+    private boolean fileHitsCountedByVerification = false;
+
+    // Split the batch into parts of at most this many items, 0 for no limit
+    private int maxPartItems = 0;
+
+    // Split the batch into parts of at most this many bytes of bitstreams, 0 for no limit
+    private long maxPartBytes = 0;
+
+    // Parts of the current run by their first row, empty when the batch isn't split
+    private final ConcurrentSkipListMap<Integer, ArchivePart> partsByFirstRow = new ConcurrentSkipListMap<Integer, ArchivePart>();
+
+    // Lists the parts of a split batch in the archive directory
+    public static final String PARTS_MANIFEST = "parts.csv";
+
+    // Name of the archive of a batch that isn't split, without its extension
+    private static final String ARCHIVE_NAME = "SimpleArchiveFormat";
+
+    // Skip the items the archive directory's journal says are built from the same inputs
+    private boolean resume = true;
 
-    private static String[][] sourceFileArray;
+    // Journal of the items built in the archive directory by the current run, null when not building
+    private ItemJournal itemJournal;
 
-    private List<String> filesNotFoundInSourceDir;
+    // Items built in the staging directory in single pass mode, recorded in the journal once they are committed
+    private final SortedMap<Integer, ItemJournal.Entry> stagedJournalEntries = new ConcurrentSkipListMap<Integer, ItemJournal.Entry>();
+
+    // Rows whose items were left as they were in the archive directory, carried over when a staging directory is committed
+    private final Set<Integer> keptItems = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    // Order of the files of a filegroup in the contents file of its item
+    private AlphanumComparator.Ordering filegroupOrdering = AlphanumComparator.Ordering.DESCENDING;
+
+    // Extracts filegroup archives, remembering what is in each
+    private FilegroupExtractor filegroupExtractor = new FilegroupExtractor(filegroupOrdering);
+
+    // Files in the content source directory, and how often the CSV refers to each
+    private SourceInventory sourceInventory;
 
     private List<String> invalidHeadersFound;
 
     private List<String> requiredHeadersNotFound;
 
+    // Checks the handles in the collections column against DSpace, null to leave them unchecked
+    private CollectionResolver collectionResolver;
+
+    // Handles in the collections column, gathered by verification
+    private final Set<String> collectionHandles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private List<String> invalidCollectionsFound = new ArrayList<String>();
+
+    // Row number -> reason the item for that row could not be created
+    private SortedMap<Integer, String> itemFailures;
+
+    // Set when the last verify or process run stopped because a file could not be read or written
+    private boolean fileAccessError;
+
+    // Set when the last verify or process run stopped on an unexpected error
+    private boolean unexpectedError;
+
+    // Told about the progress of a run, may be null
+    private volatile PackageProgressListener progressListener;
+
+    // Set by cancel(). Rows not started yet are skipped, and an item being built when it is set is removed.
+    private volatile boolean cancelled = false;
+
+    // Progress of the current run. The totals are 0 until verification has read the whole csv.
+    private final AtomicInteger itemsDone = new AtomicInteger();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private volatile int itemsTotal;
+    private volatile long bytesTotal;
+
+    // Bytes of the bitstreams found by verification so far, only counted when there is a progress listener
+    private long verifiedBytes;
+
+    // Counters and timings of the current or last run
+    private volatile PackageMetrics metrics = new PackageMetrics();
+
     /**
      * Default constructor. Main method of this class is processMetaPack. The goal of this is to create a Simple Archive Format
      * package from input of files and csv metadata.
      */
     public SAFPackage() {
 
-        filesNotFoundInSourceDir = new ArrayList<String>();
         requiredHeadersNotFound = new ArrayList<String>();
         invalidHeadersFound = new ArrayList<String>();
+        itemFailures = new TreeMap<Integer, String>();
 
         buildValidHeadersList();
         buildRequiredHeadersList();
@@ -83,28 +226,267 @@ public class SAFPackage {
 
     }
 
+    //Set a a Symbolic Link for filesinstead of copying them
     public void setSymbolicLink(boolean symbolicLink) {
-        this.symbolicLink = symbolicLink;
+        this.transferStrategy = symbolicLink ? TransferStrategy.SYMBOLIC_LINK : TransferStrategy.COPY;
+    }
+
+    /**
+     * Sets how bitstreams are put into the item directories: copied, linked, or AUTO to hard link when the source and
+     * archive directories share a file system and copy with FileChannel.transferTo otherwise.
+     *
+     * @param transferStrategy Strategy for every bitstream in the batch
+     */
+    public void setTransferStrategy(TransferStrategy transferStrategy) {
+        this.transferStrategy = transferStrategy;
+    }
+
+    /**
+     * When a source file is referred to by several rows it is copied for the first one only, and the others are hard
+     * linked to that copy (or copied, if the file system won't link). Has no effect when bitstreams are linked anyway.
+     * Off by default, as the items then share those files instead of each having its own copy.
+     *
+     * @param deduplicateBitstreams true to copy repeated bitstreams once
+     */
+    public void setDeduplicateBitstreams(boolean deduplicateBitstreams) {
+        this.deduplicateBitstreams = deduplicateBitstreams;
+    }
+
+    /**
+     * Sets how many items are built concurrently by processMetaPack. The output is the same for any number of threads.
+     *
+     * @param workerThreads Number of item worker threads, 1 to build items one at a time
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = Math.max(1, workerThreads);
+    }
+
+    /**
+     * Each item's contents, collections, metadata and license files are built in memory and written with one write
+     * each. With a writer thread they are written on a dedicated I/O thread, while the item workers go on to the
+     * next rows. An item is only counted as built, and journaled, once its files are written.
+     *
+     * @param itemFileWriterThread true to write the small files of items on a thread of their own
+     */
+    public void setItemFileWriterThread(boolean itemFileWriterThread) {
+        this.itemFileWriterThread = itemFileWriterThread;
+    }
+
+    /**
+     * Streams each item straight into an archive in the archive directory instead of building item_N directories,
+     * reading every bitstream from the content source directory once and staging nothing on disk. The archive is
+     * SimpleArchiveFormat.zip (or .tar), or part_N.zip per part when the batch is split, with the same entries
+     * exportToZip would zip from the directories, so exportToZip isn't needed.
+     * Every item is written on every run, as there are no item directories for a journal to keep, and bitstreams
+     * are read into the archive whatever the transfer strategy.
+     *
+     * @param streamingFormat Format of the archive, null to build item directories
+     */
+    public void setStreamingFormat(ArchiveFormat streamingFormat) {
+        this.streamingFormat = streamingFormat;
+    }
+
+    /**
+     * Checks that the handles in the collections column are DSpace collections while verifying. Handles that aren't
+     * are critical errors. The resolver starts listing the collections as soon as a run starts, and can be shared by
+     * several runs; it is not closed by this package.
+     *
+     * @param collectionResolver Resolver for the DSpace REST API, null to leave collections unchecked
+     */
+    public void setCollectionResolver(CollectionResolver collectionResolver) {
+        this.collectionResolver = collectionResolver;
+    }
+
+    /**
+     * Sets how many threads verify the rows of the csv, in verifyMetaPack and the verification pass of processMetaPack.
+     * With more than one thread the rows are split into ranges that are verified on a fork/join pool, and the results
+     * are merged in row order, so the report is the same for any number of threads. Single pass mode verifies each
+     * row as it builds it, so it isn't affected.
+     *
+     * @param verifyThreads Number of verification threads, 1 to verify the rows one at a time
+     */
+    public void setVerifyThreads(int verifyThreads) {
+        this.verifyThreads = Math.max(1, verifyThreads);
+    }
+
+    /**
+     * Sets how many threads exportToZip deflates entries on. With more than one thread the entries are compressed
+     * concurrently and gathered into a single archive, or a .tar.gz is gzipped a block per thread at a time.
+     *
+     * @param zipThreads Number of zip threads, 1 for the single threaded zip
+     */
+    public void setZipThreads(int zipThreads) {
+        this.zipThreads = Math.max(1, zipThreads);
+    }
+
+    /**
+     * @param zipLevel Deflate level for the zip entries that exportToZip compresses, 0-9 or -1 for the default
+     * @throws IllegalArgumentException If the level is out of range
+     */
+    public void setZipLevel(int zipLevel) {
+        if (zipLevel != Deflater.DEFAULT_COMPRESSION && (zipLevel < Deflater.NO_COMPRESSION || zipLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Zip level must be 0-9, or -1 for the default, not " + zipLevel);
+        }
+        this.zipLevel = zipLevel;
+    }
+
+    /**
+     * @param zipStoreCompressedFiles true to store PDFs, images, media and archives in the zip as they are
+     */
+    public void setZipStoreCompressedFiles(boolean zipStoreCompressedFiles) {
+        this.zipStoreCompressedFiles = zipStoreCompressedFiles;
+    }
+
+    /**
+     * Sets what exportToZip writes: SimpleArchiveFormat.zip with ZipUtil, or a .tar or .tar.gz with TarUtil, and
+     * likewise for each part. The level and threads of the zip go to the gzip of a .tar.gz.
+     *
+     * @param exportFormat Format of the archive, ZIP by default
+     */
+    public void setExportFormat(ArchiveFormat exportFormat) {
+        this.exportFormat = exportFormat;
+    }
+
+    /**
+     * In single pass mode processMetaPack reads the csv and scans the source directory once, verifying each row and
+     * building its item in a staging directory next to the archive directory. The staging directory is renamed to the
+     * archive directory when verification passes, carrying over the items resume kept, and is deleted when it doesn't.
+     *
+     * @param singlePass true to verify and package in one read of the csv
+     */
+    public void setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+    }
+
+    /**
+     * Splits the batch into several SAF archives, each in a part_N directory of the archive directory with its own
+     * part_N.zip from exportToZip. Rows are put in parts in csv order, a new part starting when the next item would
+     * go over either limit. Sizes are estimated from the source files. Items keep the item_N name of their row, and
+     * parts.csv in the archive directory lists the parts and their rows.
+     *
+     * @param maxPartItems Most items in a part, 0 for no limit
+     * @param maxPartBytes Most bytes of bitstreams in a part, 0 for no limit. An item larger than this is a part on its own.
+     */
+    public void setPartLimits(int maxPartItems, long maxPartBytes) {
+        this.maxPartItems = Math.max(0, maxPartItems);
+        this.maxPartBytes = Math.max(0, maxPartBytes);
+    }
+
+    /**
+     * Order the files of a filegroup are listed in the contents file of its item, and so the order DSpace shows the
+     * bitstreams in. Reverse alphanumeric (DESCENDING) by default, see DS-749.
+     *
+     * @param filegroupOrdering ASCENDING or DESCENDING alphanumeric order of the file names, or NATURAL for the order
+     *                          the files are in the archive
+     */
+    public void setFilegroupOrdering(AlphanumComparator.Ordering filegroupOrdering) {
+        this.filegroupOrdering = filegroupOrdering;
+        this.filegroupExtractor = new FilegroupExtractor(filegroupOrdering);
+    }
+
+    /**
+     * @param licenseFile License put in every item that has no license of its own, null for the bundled license.
+     *                    It is written into items as it is in the file.
+     */
+    public void setLicenseFile(File licenseFile) {
+        this.licenseFile = licenseFile;
+    }
+
+    /**
+     * Gives the items of a collection their own license. An item belongs to the first collection in its collections
+     * column. A license file named in the license column of a row still comes first.
+     *
+     * @param handle      Collection handle, such as 2142/1234
+     * @param licenseFile License for its items, null to use the license of the batch again
+     */
+    public void setCollectionLicense(String handle, File licenseFile) {
+        if (licenseFile == null) {
+            collectionLicenses.remove(handle.trim());
+        } else {
+            collectionLicenses.put(handle.trim(), licenseFile);
+        }
+    }
+
+    private boolean isSplitting() {
+        return maxPartItems > 0 || maxPartBytes > 0;
+    }
+
+    /**
+     * processMetaPack keeps a journal of the items it has built in the archive directory. When resuming, a row whose
+     * values and source files haven't changed since its item was built is skipped, and only new, changed and
+     * unfinished items are built. Anything left in the directory of an item that is built is removed first.
+     *
+     * @param resume true to skip unchanged items, false to build every item again
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @param progressListener Told about the progress of verify and process runs, or null
+     */
+    public void setProgressListener(PackageProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Asks the current run to stop as soon as it safely can. Items that are complete are kept, an item that is
+     * being built is removed, and in single pass mode nothing is put in the archive directory at all.
+     * Can be called from any thread. A cancelled SAFPackage stays cancelled, use a new one for the next run.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return Counters and timings of the current run, or of the last one once it has finished. Also registered
+     * with JMX while a run is going.
+     */
+    public PackageMetrics getMetrics() {
+        return metrics;
     }
 
     /**
      * Gets a "handle" on the metadata file
      * <p>
      * metadata csv File object is created in constructor
+     *
+     * @throws IOException If the CSV can't be read, or its charset isn't supported
      */
-    private void openCSV() {
+    private void openCSV() throws IOException {
 
-        String absoluteFileName = metadataCsvFile.getPath().toString();
+        closeCSV();
+        if (!metadataCsvFile.isFile()) {
+            throw new FileNotFoundException("Metadata CSV " + metadataCsvFile.getPath() + " not found");
+        }
+        long start = System.nanoTime();
+        Charset charset = CharsetDetector.detect(metadataCsvFile);
+        metrics.record(PackageMetrics.Phase.CHARSET_DETECTION, start);
 
-        try {
-            InputStream csvStream = new FileInputStream(absoluteFileName);
-            metadataCsvReader = new CsvReader(csvStream, detectCharsetOfFile(absoluteFileName));
-        } catch (Exception e) {
-            System.out.println(absoluteFileName);
-            e.printStackTrace();
-            System.out.println(e.getMessage());
+        metadataCsvReader = new MappedCsvReader(metadataCsvFile, charset);
+    }
+
+    /**
+     * Goes back to the header row of the metadata file, for another pass over it.
+     *
+     * @throws IOException If the CSV can't be read
+     */
+    private void rewindCSV() throws IOException {
+        metadataCsvReader.seekToRow(0);
+    }
+
+    /**
+     * Releases the metadata file, so it can be edited and saved again while the application is open.
+     */
+    private void closeCSV() {
+        if (metadataCsvReader != null) {
+            metadataCsvReader.close();
+            metadataCsvReader = null;
         }
-//        System.out.println("Opened CSV File:" + absoluteFileName);
     }
 
     /**
@@ -115,26 +497,7 @@ public class SAFPackage {
      * @throws IOException
      */
     public static Charset detectCharsetOfFile(String filePath) throws IOException {
-        UniversalDetector detector = new UniversalDetector(null);
-
-        byte[] buf = new byte[4096];
-        FileInputStream fis = new FileInputStream(filePath);
-        int nread;
-        while ((nread = fis.read(buf)) > 0 && !detector.isDone()) {
-            detector.handleData(buf, 0, nread);
-        }
-        detector.dataEnd();
-
-        fis.close();
-
-        String charset = detector.getDetectedCharset();
-        if (charset == null) {
-            charset = "UTF-8";
-            System.out.println("Didn't properly detect the charset of file. Setting to UTF-8 as a fallback");
-        }
-        Charset detectedCharset = Charset.forName(charset);
-//        System.out.println("Detected input CSV as:" + detectedCharset.displayName());
-        return detectedCharset;
+        return CharsetDetector.detect(new File(filePath));
     }
 
 
@@ -162,6 +525,13 @@ public class SAFPackage {
             this.metadataCsvFile = new File(pathToMetadataCsvFile);
             this.sourceDir = new File(sourceDir);
             this.archiveDir = new File(archiveDir);
+            this.itemFailures = new TreeMap<Integer, String>();
+            this.bitstreamDeduplicator = null;
+            this.fileAccessError = false;
+            this.unexpectedError = false;
+            resetProgress();
+            startMetrics();
+            startCollectionValidation();
 
             openCSV();
 
@@ -171,31 +541,62 @@ public class SAFPackage {
 
             verifyHeaders();
 
-            verifyMetaBody();
+            if (singlePass) {
+                verifyAndProcessMetaBody();
+            } else {
+                verifyMetaBody();
+            }
 
-            if((invalidHeadersFound.size() == 0) && (requiredHeadersNotFound.size() == 0) && (filesNotFoundInSourceDir.size() == 0)){
-                // refresh all the pointers and readers used up by the verification process
-                openCSV();
-                scanAllFiles();
-                processMetaHeader();
-                // do the thing for real
-                processMetaBody();
+            if (cancelled) {
+                report.add("Packaging cancelled -- BATCH NOT CREATED");
+            } else if ((invalidHeadersFound.size() == 0) && (requiredHeadersNotFound.size() == 0) && (sourceInventory.getMissingFiles().size() == 0)
+                    && (invalidCollectionsFound.size() == 0)) {
+                if (!singlePass) {
+                    // refresh all the pointers and readers used up by the verification process
+                    rewindCSV();
+                    scanAllFiles();
+                    processMetaHeader();
+                    // do the thing for real
+                    itemRootDir = this.archiveDir;
+                    processMetaBody();
+                    if (!cancelled) {
+                        finishParts();
+                    }
+                }
+                if (cancelled) {
+                    report.add("Packaging cancelled -- BATCH INCOMPLETE");
+                }
             } else {
                 report.add("At least one critical error -- BATCH NOT CREATED");
             }
 
-            report.addAll(getReport());
-
-
+            if (itemFailures.size() > 0) {
+                report.add("At least one item could not be created -- BATCH INCOMPLETE");
+                if (streamingFormat != null) {
+                    report.add("Streamed archive not written, as it would be missing items");
+                }
+            }
 
-            if (exportToZip) {
+            if (exportToZip && !cancelled && streamingFormat == null) {
                 exportToZip();
             }
 
+            report.addAll(getReport());
+            report.addAll(getTransferReport());
+            report.addAll(getPartsReport());
+            report.addAll(metrics.getReport());
+
 
         } catch (IOException ex) {
+            fileAccessError = true;
             report.add("Error accessing files: " + ex.getMessage());
+        } catch (RuntimeException ex) {
+            unexpectedError = true;
+            report.add("Unexpected error -- BATCH NOT CREATED: " + ex);
+            ex.printStackTrace();
         } finally {
+            closeCSV();
+            finishMetrics();
             return report;
         }
     }
@@ -218,6 +619,12 @@ public class SAFPackage {
 
             this.metadataCsvFile = new File(pathToMetadataCsvFile);
             this.sourceDir = new File(pathToSourceDir);
+            this.itemFailures = new TreeMap<Integer, String>();
+            this.fileAccessError = false;
+            this.unexpectedError = false;
+            resetProgress();
+            startMetrics();
+            startCollectionValidation();
 
             openCSV();
 
@@ -225,230 +632,1310 @@ public class SAFPackage {
 
             processMetaHeader();
 
-            verifyHeaders();
+            verifyHeaders();
+
+            verifyMetaBody();
+
+            if (cancelled) {
+                report.add("Verification cancelled -- REPORT INCOMPLETE");
+            }
+
+            if((invalidHeadersFound.size() > 0) || (requiredHeadersNotFound.size() > 0) || (sourceInventory.getMissingFiles().size() > 0)
+                    || (invalidCollectionsFound.size() > 0)){
+
+                report.add("At least one critical error -- BATCH WOULD NOT BE CREATED");
+            }
+
+            report.addAll(getReport());
+            report.addAll(metrics.getReport());
+
+        } catch (IOException ex) {
+            fileAccessError = true;
+            report.add("Error accessing files: " + ex.getMessage());
+
+        } catch (RuntimeException ex) {
+            unexpectedError = true;
+            report.add("Unexpected error -- REPORT INCOMPLETE: " + ex);
+            ex.printStackTrace();
+        } finally {
+            closeCSV();
+            finishMetrics();
+            return report;
+        }
+
+    }
+
+    private void verifyHeaders() {
+
+        long start = System.nanoTime();
+        try {
+            String[] csvHeaders = metadataCsvReader.getHeaders();
+            List<String> csvHeadersList = Arrays.asList(csvHeaders);
+
+            for(String requiredHeader : requiredHeaders){
+                if(!csvHeadersList.contains(requiredHeader)){
+                    requiredHeadersNotFound.add(requiredHeader);
+                }
+            }
+
+            for (String headerString: csvHeaders){
+                if(!validHeaders.contains(headerString)){
+                    invalidHeadersFound.add(headerString);
+                }
+            }
+        } finally {
+            metrics.record(PackageMetrics.Phase.HEADER_VERIFICATION, start);
+        }
+
+    }
+
+    /**
+     * @return true if the last verify or process run found a critical error, so the batch was not (or would not be)
+     * created
+     */
+    public boolean hasCriticalErrors() {
+        return fileAccessError || unexpectedError || (invalidHeadersFound.size() > 0) || (requiredHeadersNotFound.size() > 0)
+                || (sourceInventory == null) || (sourceInventory.getMissingFiles().size() > 0) || (invalidCollectionsFound.size() > 0);
+    }
+
+    /**
+     * @return true if the last verify or process run stopped because a file could not be read or written
+     */
+    public boolean hasFileAccessError() {
+        return fileAccessError;
+    }
+
+    /**
+     * @return Collection handles the last run found not to be DSpace collections, or the reason they couldn't be
+     * checked. Empty if there is no collection resolver.
+     */
+    public List<String> getInvalidCollections() {
+        return invalidCollectionsFound;
+    }
+
+    /**
+     * @return Number of items the last process run could not create
+     */
+    public int getItemFailureCount() {
+        return itemFailures.size();
+    }
+
+    /**
+     * Zips an existing SAF archive directory into SimpleArchiveFormat.zip inside it, or whichever archive the export
+     * format says.
+     *
+     * @param pathToArchiveDir Path to the SAF archive directory
+     * @return true if the zip was created
+     */
+    public boolean exportToZip(String pathToArchiveDir) {
+        this.archiveDir = new File(pathToArchiveDir);
+        return exportToZip();
+    }
+
+    /**
+     * Zips the SAF archive directory into SimpleArchiveFormat.zip inside it. When the batch is split, each part_N
+     * directory is zipped into part_N.zip instead, several parts at once when there are zip threads to spare.
+     * With a tar export format they are SimpleArchiveFormat.tar or .tar.gz, and part_N.tar or .tar.gz.
+     *
+     * @return true if the zip or zips were created
+     */
+    public boolean exportToZip() {
+        File[] partDirs = getPartDirectories();
+        if (partDirs.length > 0) {
+            return exportPartsToZip(partDirs);
+        }
+
+        long start = System.nanoTime();
+        try {
+            exportDirectory(archiveDir, new File(archiveDir, ARCHIVE_NAME + exportFormat.getExtension()), zipThreads);
+            return true;
+        } catch (IOException e) {
+            System.out.println("ERROR Zipping SAF: " + e.getMessage());
+            return false;
+        } finally {
+            metrics.record(PackageMetrics.Phase.ZIP, start);
+        }
+    }
+
+
+    /**
+     * @return The part_N directories of the archive directory, in order of N, empty if the batch isn't split
+     */
+    private File[] getPartDirectories() {
+        File[] partDirs = archiveDir.listFiles(file -> file.isDirectory()
+                && file.getName().matches(Pattern.quote(ArchivePart.DIRECTORY_PREFIX) + "\\d+"));
+        if (partDirs == null) {
+            return new File[0];
+        }
+        Arrays.sort(partDirs, Comparator.comparingInt(file -> Integer.parseInt(file.getName().substring(ArchivePart.DIRECTORY_PREFIX.length()))));
+        return partDirs;
+    }
+
+    /**
+     * Zips each part into part_N.zip in the archive directory. Parts are zipped concurrently on the zip threads,
+     * each with an equal share of them.
+     *
+     * @param partDirs Parts to zip
+     * @return true if every part was zipped
+     */
+    private boolean exportPartsToZip(File[] partDirs) {
+        int concurrentParts = Math.min(zipThreads, partDirs.length);
+        int threadsPerPart = Math.max(1, zipThreads / concurrentParts);
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrentParts);
+        try {
+            List<Future<?>> zips = new ArrayList<Future<?>>();
+            for (File partDir : partDirs) {
+                zips.add(executor.submit(() -> {
+                    exportDirectory(partDir, new File(archiveDir, partDir.getName() + exportFormat.getExtension()), threadsPerPart);
+                    return null;
+                }));
+            }
+
+            boolean zipped = true;
+            for (int i = 0; i < zips.size(); i++) {
+                try {
+                    zips.get(i).get();
+                } catch (ExecutionException e) {
+                    System.out.println("ERROR Zipping " + partDirs[i].getName() + ": " + e.getCause().getMessage());
+                    zipped = false;
+                }
+            }
+            return zipped;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("ERROR Zipping SAF: interrupted");
+            return false;
+        } finally {
+            executor.shutdownNow();
+            metrics.record(PackageMetrics.Phase.ZIP, start);
+        }
+    }
+
+    /**
+     * Archives a directory in the export format, with ZipUtil or TarUtil. The journal and the archives of the archive
+     * directory itself are left out.
+     *
+     * @param directory Archive directory or part directory
+     * @param archive   Archive to write
+     * @param threads   Threads compressing it
+     * @throws IOException If the archive can't be written
+     */
+    private void exportDirectory(File directory, File archive, int threads) throws IOException {
+        Set<File> excluded = new HashSet<File>();
+        excluded.add(new File(archiveDir, ItemJournal.FILE_NAME));
+        for (ArchiveFormat format : ArchiveFormat.values()) {
+            excluded.add(new File(archiveDir, ARCHIVE_NAME + format.getExtension()));
+        }
+
+        if (exportFormat == ArchiveFormat.ZIP) {
+            ZipUtil zipUtil = new ZipUtil(threads);
+            zipUtil.setLevel(zipLevel);
+            zipUtil.setStoreCompressedFiles(zipStoreCompressedFiles);
+            for (File file : excluded) {
+                zipUtil.exclude(file);
+            }
+            zipUtil.zipDirectory(directory.getPath(), archive.getPath());
+            System.out.println("ZIP file located at: " + archive.getAbsolutePath());
+        } else {
+            TarUtil tarUtil = new TarUtil(exportFormat == ArchiveFormat.TAR_GZ, threads);
+            tarUtil.setLevel(zipLevel);
+            for (File file : excluded) {
+                tarUtil.exclude(file);
+            }
+            tarUtil.tarDirectory(directory.getPath(), archive.getPath());
+            System.out.println("Archive located at: " + archive.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Make a list of all the files in the input directory.
+     * Initialize the count for each file found to have zero usages.
+     *
+     * @throws IOException If the source directory can't be listed
+     */
+    private void scanAllFiles() throws IOException {
+        long start = System.nanoTime();
+        sourceInventory = new SourceInventory(sourceDir);
+        metrics.record(PackageMetrics.Phase.SOURCE_SCAN, start);
+    }
+
+    /**
+     * Marks that the filename being referred to is counted as being used.
+     * This method is used for scanning the files in the directory for ones that are used/unused.
+     *
+     * @param filename Name of file referred to in CSV
+     */
+    private void incrementFileHit(String filename) {
+        sourceInventory.incrementFileHit(filename);
+    }
+
+    /**
+     * Displays the files that exist in the directory that have been used the specified number of times.
+     * Used for finding files that have not been used.
+     *
+     * @param numHits The specified number of times the file should have been used. Value of 0 means unused file.
+     */
+    private List<String> getFileUsedReport(Integer numHits) {
+        List<String> report = new ArrayList<String>();
+        for (String filename : sourceInventory.getFilesUsed(numHits)) {
+            report.add("File: " + filename + " has been used " + numHits + " times.");
+        }
+
+        return report;
+    }
+
+    /**
+     * Scans the Header row of the metadata csv to usable object.
+     *
+     * @throws IOException If the CSV can't be found or read
+     */
+    private void processMetaHeader() throws IOException {
+        metadataCsvReader.readHeaders();
+        metadataHeaders = metadataCsvReader.getHeaders();
+        columnPlan = ColumnPlan.compile(metadataHeaders);
+        licenseColumn = columnPlan.indexOf(ColumnPlan.Kind.LICENSE);
+        collectionColumn = columnPlan.indexOf(ColumnPlan.Kind.COLLECTION);
+    }
+
+    /**
+     * Method to process the content/body of the metadata csv.
+     * Delegate the work of processing each row to other methods, on the item worker threads.
+     * Does not process the header.
+     *
+     * @throws IOException If the CSV can't be found or read
+     */
+    private void processMetaBody() throws IOException {
+        // The implementation of processing CSV starts counting from 0. 0 = header, 1..n = body/content
+        int rowNumber = 1;
+
+        resolveTransferStrategy();
+        openItemJournal();
+        openLicenses();
+        openStreamingArchive();
+        startItemFileWriter();
+        metrics.buildingStarted();
+        ItemWorkerPool workerPool = new ItemWorkerPool(workerThreads, this::buildItem);
+        boolean allRowsRead = false;
+        try {
+            while (!cancelled && metadataCsvReader.readRecord()) {
+                String[] currentLine = metadataCsvReader.getValues();
+                assignPart(rowNumber, currentLine);
+                workerPool.submit(rowNumber++, currentLine);
+            }
+            allRowsRead = true;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while creating items");
+        } finally {
+            try {
+                itemFailures = workerPool.finish();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finishItemFileWriter();
+            closeLicenses();
+            metrics.buildingFinished();
+            notifyMetrics();
+            closeItemJournal();
+            // An item that failed may be missing from the archive or only partly in it
+            finishStreamingArchive(allRowsRead && !cancelled && itemFailures.size() == 0);
+        }
+    }
+
+    /**
+     * Method to verify the content/body of the metadata csv.
+     * Delegate the work of processing each row to other methods.
+     * Does not process the header.
+     *
+     * @throws IOException If the CSV can't be found or read
+     */
+    private void verifyMetaBody() throws IOException {
+        // The implementation of processing CSV starts counting from 0. 0 = header, 1..n = body/content
+        int rowNumber = 1;
+
+        long start = System.nanoTime();
+        if (verifyThreads > 1) {
+            rowNumber += verifyMetaBodyInParallel();
+        } else {
+            while (!cancelled && metadataCsvReader.readRecord()) {
+                verifiedBytes += verifyMetaBodyRow(rowNumber++, metadataCsvReader.getValues(), sourceInventory.getMissingFiles());
+            }
+        }
+        metrics.record(PackageMetrics.Phase.BODY_VERIFICATION, start);
+        verifyCollections();
+        notifyMetrics();
+
+        if (!cancelled) {
+            itemsTotal = rowNumber - 1;
+            bytesTotal = verifiedBytes;
+            notifyProgress();
+        }
+    }
+
+    /**
+     * Verifies the content/body of the metadata csv and builds the items in the same read, for single pass mode.
+     * Items are built into a staging directory while no critical error has been found. Once one is found the
+     * remaining rows are only verified, so the report is complete, and the staging directory is thrown away.
+     *
+     * @throws IOException If the CSV can't be read, or the staging directory can't be created or committed
+     */
+    private void verifyAndProcessMetaBody() throws IOException {
+        boolean headersValid = (invalidHeadersFound.size() == 0) && (requiredHeadersNotFound.size() == 0);
+        if (!headersValid) {
+            verifyMetaBody();
+            return;
+        }
+
+        // Streamed items go straight into a .partial archive, which is all there is to throw away
+        File stagingDir = null;
+        if (streamingFormat == null) {
+            File absoluteArchiveDir = archiveDir.getAbsoluteFile();
+            stagingDir = Files.createTempDirectory(absoluteArchiveDir.getParentFile().toPath(), "." + absoluteArchiveDir.getName() + ".staging").toFile();
+            itemRootDir = stagingDir;
+        }
+        fileHitsCountedByVerification = true;
+        resolveTransferStrategy();
+        openItemJournal();
+        openLicenses();
+        openStreamingArchive();
+        startItemFileWriter();
+
+        boolean committed = false;
+        try {
+            // The implementation of processing CSV starts counting from 0. 0 = header, 1..n = body/content
+            int rowNumber = 1;
+
+            metrics.buildingStarted();
+            ItemWorkerPool workerPool = new ItemWorkerPool(workerThreads, this::buildItem);
+            try {
+                while (!cancelled && metadataCsvReader.readRecord()) {
+                    String[] currentLine = metadataCsvReader.getValues();
+                    long verifyStart = System.nanoTime();
+                    verifiedBytes += verifyMetaBodyRow(rowNumber, currentLine, sourceInventory.getMissingFiles());
+                    metrics.record(PackageMetrics.Phase.BODY_VERIFICATION, verifyStart);
+                    if (sourceInventory.getMissingFiles().size() == 0) {
+                        assignPart(rowNumber, currentLine);
+                        workerPool.submit(rowNumber, currentLine);
+                    }
+                    rowNumber++;
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while creating items");
+            } finally {
+                try {
+                    itemFailures = workerPool.finish();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finishItemFileWriter();
+                // Before the staging directory is committed, which would move the copies items are linked to
+                closeLicenses();
+                metrics.buildingFinished();
+                notifyMetrics();
+            }
+
+            verifyCollections();
+            // An item that failed may be missing from a streamed archive or only partly in it, so it isn't committed
+            if (!cancelled && sourceInventory.getMissingFiles().size() == 0 && invalidCollectionsFound.size() == 0
+                    && (stagingDir != null || itemFailures.size() == 0)) {
+                if (stagingDir != null) {
+                    commitStagingDir(stagingDir);
+                } else {
+                    finishStreamingArchive(true);
+                }
+                committed = true;
+                for (Map.Entry<Integer, ItemJournal.Entry> staged : stagedJournalEntries.entrySet()) {
+                    itemJournal.record(staged.getKey(), staged.getValue());
+                }
+                finishParts();
+            }
+        } finally {
+            finishItemFileWriter();
+            closeLicenses();
+            closeItemJournal();
+            fileHitsCountedByVerification = false;
+            itemRootDir = archiveDir;
+            if (!committed) {
+                finishStreamingArchive(false);
+                if (stagingDir != null) {
+                    FileUtils.deleteQuietly(stagingDir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Settles on the bitstream transfer strategy for this run, probing the file system once when it is AUTO.
+     * Streamed runs read bitstreams into the archive, so there is nothing to probe or transfer to.
+     */
+    private void resolveTransferStrategy() {
+        if (streamingFormat != null) {
+            resolvedTransferStrategy = TransferStrategy.COPY;
+            bitstreamDeduplicator = null;
+            return;
+        }
+        resolvedTransferStrategy = transferStrategy.resolve(sourceDir, itemRootDir);
+        if (transferStrategy == TransferStrategy.AUTO) {
+            System.out.println("Transferring bitstreams with " + resolvedTransferStrategy);
+        }
+        bitstreamDeduplicator = deduplicateBitstreams ? new BitstreamDeduplicator(resolvedTransferStrategy) : null;
+    }
+
+    /**
+     * Copies or links a bitstream into an item directory with the strategy resolved for this run.
+     *
+     * @param sourceFile Bitstream in the content source directory
+     * @param targetFile Path of the bitstream in the item directory
+     * @throws IOException If the file can't be copied or linked
+     */
+    private void transferBitstream(File sourceFile, File targetFile) throws IOException {
+        long start = System.nanoTime();
+        if (bitstreamDeduplicator != null) {
+            bitstreamDeduplicator.transfer(sourceFile, targetFile);
+        } else {
+            resolvedTransferStrategy.transfer(sourceFile, targetFile);
+        }
+        metrics.record(PackageMetrics.Phase.BITSTREAM_TRANSFER, start);
+
+        long bytes = sourceFile.length();
+        metrics.bytesTransferred(bytes);
+        if (progressListener != null) {
+            bytesDone.addAndGet(bytes);
+            notifyProgress();
+        }
+    }
+
+    /**
+     * Builds the item for a row on an item worker, unless the run has been cancelled.
+     * An item cancelled part way through is removed, so the archive never holds a half-written item.
+     *
+     * @param rowNumber   Row in the CSV.
+     * @param currentLine Values of the row
+     * @throws IOException If the item can't be created
+     */
+    private void buildItem(int rowNumber, String[] currentLine) throws IOException {
+        if (cancelled) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        ItemJournal.Entry journalEntry = null;
+        ItemFiles itemFiles;
+        try {
+            if (itemJournal != null) {
+                List<File> sourceFiles = getItemSourceFiles(currentLine);
+                journalEntry = ItemJournal.Entry.of(currentLine, sourceFiles);
+                if (isUnchangedItem(rowNumber, journalEntry)) {
+                    keptItems.add(rowNumber);
+                    skipItem(sourceFiles);
+                    return;
+                }
+            }
+            itemFiles = processMetaBodyRow(rowNumber, currentLine);
+        } catch (CancellationException e) {
+            FileUtils.deleteQuietly(getItemDirectory(itemRootDir, rowNumber));
+            return;
+        } catch (IOException | RuntimeException e) {
+            itemFailed(rowNumber, e);
+            throw e;
+        }
+
+        if (itemFileWriter == null) {
+            finishItem(rowNumber, itemFiles, journalEntry, start);
+            return;
+        }
+        ItemJournal.Entry builtEntry = journalEntry;
+        try {
+            itemFileWriter.submit(rowNumber, () -> finishItem(rowNumber, itemFiles, builtEntry, start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing item_" + rowNumber + " to the item file writer");
+        }
+    }
+
+    /**
+     * Writes the small files of an item built by buildItem, on the item worker or the item file writer, and counts
+     * the item as built.
+     *
+     * @param rowNumber    Row in the CSV.
+     * @param itemFiles    Small files of the item
+     * @param journalEntry Inputs of the item, null when there is no journal
+     * @param start        When building the item started
+     * @throws IOException If the files can't be written
+     */
+    private void finishItem(int rowNumber, ItemFiles itemFiles, ItemJournal.Entry journalEntry, long start) throws IOException {
+        try {
+            checkCancelled();
+            long writeStart = System.nanoTime();
+            if (streamingArchive != null) {
+                streamItem(rowNumber, itemFiles);
+            } else {
+                itemFiles.write();
+            }
+            metrics.record(PackageMetrics.Phase.ITEM_FILE_WRITING, writeStart);
+            if (journalEntry != null) {
+                recordItem(rowNumber, journalEntry);
+            }
+        } catch (CancellationException e) {
+            FileUtils.deleteQuietly(getItemDirectory(itemRootDir, rowNumber));
+            return;
+        } catch (IOException | RuntimeException e) {
+            itemFailed(rowNumber, e);
+            throw e;
+        }
+
+        metrics.itemBuilt(start);
+        itemsDone.incrementAndGet();
+        notifyProgress();
+    }
+
+    /**
+     * Writes an item into the archive of its part, or of the batch when it isn't split.
+     */
+    private void streamItem(int rowNumber, ItemFiles itemFiles) throws IOException {
+        Map.Entry<Integer, ArchivePart> part = partsByFirstRow.floorEntry(rowNumber);
+        if (part == null) {
+            streamingArchive.write(ARCHIVE_NAME, archiveDir.getAbsoluteFile().getName(), "item_" + rowNumber, itemFiles);
+        } else {
+            String partName = part.getValue().getDirectoryName();
+            streamingArchive.write(partName, partName, "item_" + rowNumber, itemFiles);
+        }
+
+        long bytes = itemFiles.getBitstreamBytes();
+        metrics.bytesTransferred(bytes);
+        if (progressListener != null) {
+            bytesDone.addAndGet(bytes);
+            notifyProgress();
+        }
+    }
+
+    private void itemFailed(int rowNumber, Exception e) {
+        metrics.itemFailed();
+        String message = (e.getMessage() != null) ? e.getMessage() : e.toString();
+        notifyReportLine("[ERROR] Row " + rowNumber + " (item_" + rowNumber + ") could not be created: " + message);
+        itemsDone.incrementAndGet();
+        notifyProgress();
+    }
+
+    /**
+     * Sets up the licenses for this run. When bitstreams are hard linked, items are linked to one copy of each
+     * license too, otherwise each license is written from the bytes read for the run.
+     */
+    private void openLicenses() {
+        File linkRoot = (resolvedTransferStrategy == TransferStrategy.HARD_LINK && streamingFormat == null) ? itemRootDir : null;
+        licenseTemplates = new LicenseTemplates(licenseString.getBytes(StandardCharsets.UTF_8), licenseFile,
+                new HashMap<String, File>(collectionLicenses), sourceDir, linkRoot);
+    }
+
+    private void openStreamingArchive() {
+        streamingArchive = (streamingFormat == null) ? null
+                : new StreamingArchive(archiveDir, streamingFormat, zipLevel, zipStoreCompressedFiles, zipThreads,
+                        filegroupExtractor);
+    }
+
+    /**
+     * Finishes the archive items were streamed into, if they were.
+     *
+     * @param commit true to give the archive its real name, false to throw it away
+     * @throws IOException If the archive can't be finished
+     */
+    private void finishStreamingArchive(boolean commit) throws IOException {
+        if (streamingArchive == null) {
+            return;
+        }
+        StreamingArchive archive = streamingArchive;
+        streamingArchive = null;
+        if (commit) {
+            archive.commit();
+        } else {
+            archive.abort();
+        }
+    }
+
+    private void startItemFileWriter() {
+        itemFileWriter = itemFileWriterThread ? new ItemWorkerPool(1, workerThreads * 4, "item-file-writer", null) : null;
+    }
+
+    /**
+     * Waits for the item file writer to write the items handed to it, adding its failures to those of the items.
+     */
+    private void finishItemFileWriter() {
+        if (itemFileWriter == null) {
+            return;
+        }
+        try {
+            itemFailures.putAll(itemFileWriter.finish());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        itemFileWriter = null;
+    }
+
+    private void closeLicenses() {
+        if (licenseTemplates != null) {
+            licenseTemplates.close();
+        }
+    }
+
+    /**
+     * Opens the journal of the archive directory for this run. Its fingerprint covers what every item depends on
+     * besides its own row and source files, so a change to the header row, the license or how bitstreams are
+     * transferred builds every item again.
+     *
+     * @throws IOException If the journal can't be read
+     */
+    private void openItemJournal() throws IOException {
+        List<String> fingerprintParts = new ArrayList<String>(Arrays.asList(metadataHeaders));
+        fingerprintParts.add((licenseFile != null) ? describeLicense(licenseFile) : licenseString);
+        for (Map.Entry<String, File> collectionLicense : collectionLicenses.entrySet()) {
+            fingerprintParts.add(collectionLicense.getKey() + "=" + describeLicense(collectionLicense.getValue()));
+        }
+        fingerprintParts.add(transferStrategy.name());
+        fingerprintParts.add(maxPartItems + "/" + maxPartBytes);
+        fingerprintParts.add(filegroupOrdering.name());
+        String fingerprint = ItemJournal.fingerprint(fingerprintParts.toArray(new String[fingerprintParts.size()]));
+
+        stagedJournalEntries.clear();
+        keptItems.clear();
+        partsByFirstRow.clear();
+        if (streamingFormat != null) {
+            itemJournal = null;
+            return;
+        }
+        itemJournal = resume ? ItemJournal.open(archiveDir, fingerprint) : ItemJournal.create(archiveDir, fingerprint);
+        if (itemJournal.size() > 0) {
+            System.out.println("Resuming: " + itemJournal.size() + " items in " + archiveDir.getPath() + " are journaled");
+        }
+    }
+
+    private static String describeLicense(File licenseFile) {
+        FileVersion version = FileVersion.of(licenseFile);
+        return version.getPath() + "\t" + version.getSize() + "\t" + version.getLastModified();
+    }
+
+    private void closeItemJournal() {
+        if (itemJournal == null) {
+            return;
+        }
+        try {
+            itemJournal.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close the item journal: " + e.getMessage());
+        }
+        itemJournal = null;
+    }
+
+    /**
+     * @param currentLine Values of a row
+     * @return The files in the source directory its item is built from, including ones that don't exist
+     */
+    private List<File> getItemSourceFiles(String[] currentLine) {
+        List<File> sourceFiles = new ArrayList<File>();
+        List<String> filenames = new ArrayList<String>();
+        int columns = Math.min(columnPlan.size(), currentLine.length);
+        for (int j = 0; j < columns; j++) {
+            if (currentLine[j].length() == 0) {
+                continue;
+            }
+            ColumnPlan.Kind kind = columnPlan.getColumn(j).getKind();
+            if (kind == ColumnPlan.Kind.FILENAME || kind == ColumnPlan.Kind.FILENAME_WITH_PARAMETERS) {
+                ValueSplitter.splitValues(currentLine[j], filenames);
+                for (int i = 0; i < filenames.size(); i++) {
+                    String filename = filenames.get(i).trim();
+                    int nameEnd = filename.indexOf(ValueSplitter.PARAMETER_SEPARATOR);
+                    sourceFiles.add(new File(sourceDir, (nameEnd < 0) ? filename : filename.substring(0, nameEnd)));
+                }
+            } else if (kind == ColumnPlan.Kind.FILEGROUP) {
+                sourceFiles.add(new File(sourceDir, currentLine[j]));
+            } else if (kind == ColumnPlan.Kind.LICENSE) {
+                sourceFiles.add(new File(sourceDir, currentLine[j].trim()));
+            }
+        }
+        return sourceFiles;
+    }
+
+    /**
+     * Checks the journal for the item of a row. An item that is going to be built again is forgotten first, so the
+     * journal never vouches for it while it is half written.
+     *
+     * @param rowNumber    Row in the CSV
+     * @param journalEntry Inputs of the item now
+     * @return true if the item in the archive directory was built from the same inputs
+     * @throws IOException If the journal can't be written
+     */
+    private boolean isUnchangedItem(int rowNumber, ItemJournal.Entry journalEntry) throws IOException {
+        if (itemJournal.isBuilt(rowNumber, journalEntry) && getItemDirectory(archiveDir, rowNumber).isDirectory()) {
+            return true;
+        }
+        // In single pass mode the archive directory isn't touched until the staging directory is committed
+        if (itemRootDir.equals(archiveDir) && itemJournal.contains(rowNumber)) {
+            itemJournal.forget(rowNumber);
+        }
+        return false;
+    }
+
+    /**
+     * Counts an unchanged item as done without building it.
+     *
+     * @param sourceFiles Files it was built from
+     */
+    private void skipItem(List<File> sourceFiles) {
+        metrics.itemSkipped();
+        itemsDone.incrementAndGet();
+        if (progressListener != null) {
+            long bytes = 0;
+            for (File sourceFile : sourceFiles) {
+                bytes += sourceFile.length();
+            }
+            bytesDone.addAndGet(bytes);
+        }
+        notifyProgress();
+    }
+
+    /**
+     * Records a built item in the journal, or in single pass mode once the staging directory is committed.
+     *
+     * @param rowNumber    Row in the CSV
+     * @param journalEntry Inputs it was built from
+     * @throws IOException If the journal can't be written
+     */
+    private void recordItem(int rowNumber, ItemJournal.Entry journalEntry) throws IOException {
+        if (itemRootDir.equals(archiveDir)) {
+            itemJournal.record(rowNumber, journalEntry);
+        } else {
+            stagedJournalEntries.put(rowNumber, journalEntry);
+        }
+    }
+
+    /**
+     * Puts the item of a row in the current part when the batch is split, starting a new part when it is full.
+     * Called on the thread reading the csv, before the row is handed to an item worker.
+     *
+     * @param rowNumber   Row in the CSV
+     * @param currentLine Values of the row
+     * @throws IOException If the directory of a new part can't be created
+     */
+    private void assignPart(int rowNumber, String[] currentLine) throws IOException {
+        if (!isSplitting()) {
+            return;
+        }
+        long rowBytes = 0;
+        for (File sourceFile : getItemSourceFiles(currentLine)) {
+            rowBytes += sourceFile.length();
+        }
+
+        Map.Entry<Integer, ArchivePart> last = partsByFirstRow.lastEntry();
+        ArchivePart part = (last == null) ? null : last.getValue();
+        if (part == null || part.isFull(rowBytes, maxPartItems, maxPartBytes)) {
+            part = new ArchivePart(partsByFirstRow.size() + 1, rowNumber);
+            if (streamingFormat == null) {
+                Files.createDirectories(new File(itemRootDir, part.getDirectoryName()).toPath());
+            }
+            partsByFirstRow.put(rowNumber, part);
+        }
+        part.add(rowNumber, rowBytes);
+    }
+
+    /**
+     * @param rootDir   Archive or staging directory
+     * @param rowNumber Row in the CSV
+     * @return Directory of the row's item, in its part when the batch is split
+     */
+    private File getItemDirectory(File rootDir, int rowNumber) {
+        Map.Entry<Integer, ArchivePart> part = partsByFirstRow.floorEntry(rowNumber);
+        File partDir = (part == null) ? rootDir : new File(rootDir, part.getValue().getDirectoryName());
+        return new File(partDir, "item_" + rowNumber);
+    }
+
+    /**
+     * Once a split batch is in the archive directory, removes what earlier runs left that is not part of it, such as
+     * items that have moved to another part, and writes the manifest of the parts. Once a batch that isn't split is
+     * in it, removes the parts of an earlier split run. When streaming there are only the archives of the parts to
+     * look after.
+     *
+     * @throws IOException If something can't be removed or the manifest can't be written
+     */
+    private void finishParts() throws IOException {
+        if (!isSplitting()) {
+            removeEarlierParts();
+            return;
+        }
+
+        Map<String, ArchivePart> partsByName = new HashMap<String, ArchivePart>();
+        for (ArchivePart part : partsByFirstRow.values()) {
+            partsByName.put(part.getDirectoryName(), part);
+        }
+        if (streamingFormat != null) {
+            removePartArchives(partsByName.keySet());
+            writePartsManifest();
+            return;
+        }
+        File[] children = archiveDir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                String name = child.getName();
+                if (!child.isDirectory()) {
+                    continue;
+                }
+                if (name.startsWith("item_")) {
+                    FileUtils.deleteDirectory(child);
+                } else if (name.startsWith(ArchivePart.DIRECTORY_PREFIX)) {
+                    ArchivePart part = partsByName.get(name);
+                    if (part == null) {
+                        FileUtils.deleteDirectory(child);
+                    } else {
+                        removeItemsOutsidePart(child, part);
+                    }
+                }
+            }
+        }
+        writePartsManifest();
+    }
+
+    /**
+     * Removes the parts, their archives and the manifest, if the manifest shows an earlier run split the batch.
+     */
+    private void removeEarlierParts() throws IOException {
+        File manifest = new File(archiveDir, PARTS_MANIFEST);
+        if (!manifest.isFile()) {
+            return;
+        }
+        for (File partDir : getPartDirectories()) {
+            FileUtils.deleteDirectory(partDir);
+            for (ArchiveFormat format : ArchiveFormat.values()) {
+                Files.deleteIfExists(new File(archiveDir, partDir.getName() + format.getExtension()).toPath());
+            }
+        }
+        if (streamingFormat != null) {
+            removePartArchives(Collections.<String>emptySet());
+        }
+        Files.delete(manifest.toPath());
+    }
+
+    /**
+     * Removes the streamed archives of parts that aren't in the current batch, such as part_7.zip when it now has
+     * six parts.
+     *
+     * @param partNames Directory names of the parts to keep, such as part_2
+     */
+    private void removePartArchives(Set<String> partNames) throws IOException {
+        String extension = streamingFormat.getExtension();
+        File[] archives = archiveDir.listFiles(file -> file.isFile()
+                && file.getName().matches(Pattern.quote(ArchivePart.DIRECTORY_PREFIX) + "\\d+" + Pattern.quote(extension)));
+        if (archives == null) {
+            return;
+        }
+        for (File archive : archives) {
+            String name = archive.getName();
+            if (!partNames.contains(name.substring(0, name.length() - extension.length()))) {
+                Files.delete(archive.toPath());
+            }
+        }
+    }
+
+    private void removeItemsOutsidePart(File partDir, ArchivePart part) throws IOException {
+        File[] items = partDir.listFiles();
+        if (items == null) {
+            return;
+        }
+        for (File item : items) {
+            String name = item.getName();
+            if (!name.startsWith("item_")) {
+                continue;
+            }
+            try {
+                if (part.contains(Integer.parseInt(name.substring("item_".length())))) {
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // not an item of ours
+                continue;
+            }
+            FileUtils.deleteDirectory(item);
+        }
+    }
+
+    /**
+     * Writes parts.csv, one line per part with its directory, zip, rows, item count and estimated size. The zip column
+     * names the archive of the part in the export format, or its streamed archive when streaming.
+     *
+     * @throws IOException If the manifest can't be written
+     */
+    private void writePartsManifest() throws IOException {
+        CsvWriter csvWriter = new CsvWriter(new File(archiveDir, PARTS_MANIFEST).getPath(), ',', StandardCharsets.UTF_8);
+        try {
+            csvWriter.writeRecord(new String[]{"part", "directory", "zip", "first_row", "last_row", "items", "bytes"});
+            for (ArchivePart part : partsByFirstRow.values()) {
+                String archiveName = part.getArchiveName((streamingFormat == null) ? exportFormat : streamingFormat);
+                csvWriter.writeRecord(new String[]{Integer.toString(part.getNumber()), part.getDirectoryName(), archiveName,
+                        Integer.toString(part.getFirstRow()), Integer.toString(part.getLastRow()),
+                        Integer.toString(part.getItemCount()), Long.toString(part.getBytes())});
+            }
+        } finally {
+            csvWriter.close();
+        }
+    }
+
+    /**
+     * @return Report lines listing the parts of a split batch, empty if it wasn't split
+     */
+    private List<String> getPartsReport() {
+        List<String> report = new ArrayList<String>();
+        if (partsByFirstRow.isEmpty()) {
+            return report;
+        }
+        report.add("\n#######\n# Parts\n#######");
+        report.add("[INFO] The batch was split into " + partsByFirstRow.size() + " part(s), listed in " + PARTS_MANIFEST + ":");
+        for (ArchivePart part : partsByFirstRow.values()) {
+            report.add("\t" + part.getDirectoryName() + ": rows " + part.getFirstRow() + " to " + part.getLastRow() + ", "
+                    + part.getItemCount() + " item(s), " + FileUtils.byteCountToDisplaySize(part.getBytes()));
+        }
+        return report;
+    }
 
-            verifyMetaBody();
+    /**
+     * Stops building the current item if the run has been cancelled.
+     *
+     * @throws CancellationException If the run has been cancelled
+     */
+    private void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Packaging cancelled");
+        }
+    }
 
-            if((invalidHeadersFound.size() > 0) || (requiredHeadersNotFound.size() > 0) || (filesNotFoundInSourceDir.size() > 0)){
+    private void resetProgress() {
+        itemsDone.set(0);
+        bytesDone.set(0);
+        itemsTotal = 0;
+        bytesTotal = 0;
+        verifiedBytes = 0;
+    }
 
-                report.add("At least one critical error -- BATCH WOULD NOT BE CREATED");
-            }
+    private void notifyProgress() {
+        PackageProgressListener listener = progressListener;
+        if (listener != null) {
+            listener.progress(itemsDone.get(), itemsTotal, bytesDone.get(), bytesTotal);
+        }
+    }
 
-            report.addAll(getReport());
+    /**
+     * Starts the metrics of a new run, and makes them available over JMX while it goes.
+     */
+    private void startMetrics() {
+        metrics = new PackageMetrics();
+        metrics.register();
+    }
 
-        } catch (IOException ex) {
-            report.add("Error accessing files: " + ex.getMessage());
+    private void finishMetrics() {
+        metrics.unregister();
+        notifyMetrics();
+    }
 
-        } finally {
-            return report;
+    private void notifyMetrics() {
+        PackageProgressListener listener = progressListener;
+        if (listener != null) {
+            listener.metricsUpdated(metrics);
         }
+    }
 
+    private void notifyReportLine(String line) {
+        PackageProgressListener listener = progressListener;
+        if (listener != null) {
+            listener.reportLine(line);
+        }
     }
 
-    private void verifyHeaders() {
+    /**
+     * Puts the items built in the staging directory in place by renaming the staging directory to the archive
+     * directory. When the archive directory has something in it, what the run keeps from it is moved into the staging
+     * directory first:
+     * <ul>
+     * <li>the items resume left as they were, into the same place in the staging directory</li>
+     * <li>everything that isn't an item or part directory and isn't in the staging directory, such as the journal,
+     * the parts manifest and archives of earlier runs</li>
+     * </ul>
+     * The archive directory is then moved aside, the staging directory renamed to it, and the old one deleted, taking
+     * with it the item directories of rows that are no longer in the csv. If anything can't be moved, what was moved
+     * is put back, so the archive directory is as it was before the run.
+     *
+     * @param stagingDir Staging directory, on the same file system as the archive directory
+     * @throws IOException If the directories can't be moved
+     */
+    private void commitStagingDir(File stagingDir) throws IOException {
+        File absoluteArchiveDir = archiveDir.getAbsoluteFile();
+        Path archivePath = absoluteArchiveDir.toPath();
+        String[] existingFiles = absoluteArchiveDir.list();
+        if (existingFiles == null || existingFiles.length == 0) {
+            Files.deleteIfExists(archivePath);
+            Files.move(stagingDir.toPath(), archivePath, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
 
+        // Each is { where it was, where it went }, to be put back if the commit fails
+        List<Path[]> moved = new ArrayList<Path[]>();
+        // The old archive directory is moved into a directory of its own, so its name can't clash with anything
+        File oldDir = Files.createTempDirectory(archivePath.getParent(), "." + absoluteArchiveDir.getName() + ".old").toFile();
         try {
-            String[] csvHeaders = metadataCsvReader.getHeaders();
-            List<String> csvHeadersList = Arrays.asList(csvHeaders);
-
-            for(String requiredHeader : requiredHeaders){
-                if(!csvHeadersList.contains(requiredHeader)){
-                    requiredHeadersNotFound.add(requiredHeader);
-                }
-            }
-
-            for (String headerString: csvHeaders){
-                if(!validHeaders.contains(headerString)){
-                    invalidHeadersFound.add(headerString);
+            carryOverKeptFiles(absoluteArchiveDir, stagingDir, moved);
+            move(archivePath, new File(oldDir, absoluteArchiveDir.getName()).toPath(), moved);
+            move(stagingDir.toPath(), archivePath, moved);
+        } catch (IOException e) {
+            for (int i = moved.size() - 1; i >= 0; i--) {
+                try {
+                    Files.move(moved.get(i)[1], moved.get(i)[0], StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException restoreError) {
+                    e.addSuppressed(restoreError);
                 }
             }
-        } catch (IOException e) {
-            invalidHeadersFound.add("error reading headers");
+            FileUtils.deleteQuietly(oldDir);
+            throw e;
         }
 
-    }
-
-    public void exportToZip() {
-        String safDirectory = archiveDir.getPath();
-        String zipDest = archiveDir + "/" + "SimpleArchiveFormat" + ".zip";
         try {
-            ZipUtil.createZip(safDirectory, zipDest);
-            System.out.println("ZIP file located at: " + new File(zipDest).getAbsolutePath());
+            FileUtils.deleteDirectory(oldDir);
         } catch (IOException e) {
-            System.out.println("ERROR Zipping SAF: " + e.getMessage());
+            System.out.println("Unable to remove " + oldDir.getPath() + ": " + e.getMessage());
         }
     }
 
-
     /**
-     * Make a list of all the files in the input directory.
-     * Initialize the count for each file found to have zero usages.
+     * Moves what a single pass run keeps from the archive directory into the staging directory, see commitStagingDir.
+     *
+     * @param oldArchiveDir Archive directory
+     * @param stagingDir    Staging directory
+     * @param moved         Each move made is added to this
+     * @throws IOException If something can't be moved
      */
-    private void scanAllFiles() {
-        String[] files = sourceDir.list();
+    private void carryOverKeptFiles(File oldArchiveDir, File stagingDir, List<Path[]> moved) throws IOException {
+        for (Integer rowNumber : keptItems) {
+            File item = getItemDirectory(oldArchiveDir, rowNumber);
+            File stagedItem = getItemDirectory(stagingDir, rowNumber);
+            if (item.isDirectory() && !stagedItem.exists()) {
+                // A part all of whose items were kept has no directory in the staging directory yet
+                Files.createDirectories(stagedItem.getParentFile().toPath());
+                move(item.toPath(), stagedItem.toPath(), moved);
+            }
+        }
 
-        sourceFileArray = new String[files.length][2];
-        for (int i = 0; i < files.length; i++) {
-            sourceFileArray[i][0] = files[i];
-            sourceFileArray[i][1] = "0";
+        File[] files = oldArchiveDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory() && (name.startsWith("item_") || name.startsWith(ArchivePart.DIRECTORY_PREFIX))) {
+                continue;
+            }
+            File stagedFile = new File(stagingDir, name);
+            if (!stagedFile.exists()) {
+                move(file.toPath(), stagedFile.toPath(), moved);
+            }
         }
     }
 
+    private static void move(Path source, Path target, List<Path[]> moved) throws IOException {
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        moved.add(new Path[]{source, target});
+    }
+
     /**
-     * Marks that the filename being referred to is counted as being used.
-     * This method is used for scanning the files in the directory for ones that are used/unused.
+     * Verifies the body of the csv on verifyThreads threads. The rows are indexed first, then split into ranges of
+     * whole records that are verified on a fork/join pool, each range with its own reader and list of missing files.
+     * File hits are counted straight into the source inventory, which is thread safe. The missing files of the
+     * ranges are merged in row order, so they are reported the same way as by a single thread.
      *
-     * @param filename Name of file referred to in CSV
+     * @return Number of rows verified
+     * @throws IOException If the CSV can't be read
      */
-    private void incrementFileHit(String filename) {
-        int i = 0;
-        boolean found = false;
-        while (!found && (i < sourceFileArray.length)) {
-            if (sourceFileArray[i][0].contentEquals(filename)) {
-                int current = Integer.parseInt(sourceFileArray[i][1]);
-                int increment = current + 1;
-                sourceFileArray[i][1] = String.valueOf(increment);
-                found = true;
-            }
+    private int verifyMetaBodyInParallel() throws IOException {
+        CsvRowIndex rowIndex = metadataCsvReader.indexAllRows();
+        int endRow = rowIndex.getRowCount();
+        int rows = endRow - 1;
+        int rangeRows = Math.max(MIN_VERIFY_RANGE_ROWS, rows / (verifyThreads * VERIFY_RANGES_PER_THREAD));
 
-            i++;
+        ForkJoinPool pool = new ForkJoinPool(verifyThreads);
+        try {
+            RowRangeVerification verification = pool.invoke(new VerifyRowRange(1, endRow, rangeRows));
+            sourceInventory.addMissingFiles(verification.missingFiles);
+            verifiedBytes += verification.bytes;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            // The ranges read the mapped csv, which is unmapped when it is closed, so no task may outlive this
+            pool.shutdown();
+            awaitTermination(pool);
         }
+
+        // Leave the reader after the last row, where reading the rows one at a time would have left it
+        metadataCsvReader.seekToRow(endRow);
+        return rows;
     }
 
     /**
-     * Displays the files that exist in the directory that have been used the specified number of times.
-     * Used for finding files that have not been used.
-     *
-     * @param numHits The specified number of times the file should have been used. Value of 0 means unused file.
+     * Waits for a pool that has been shut down to finish its tasks, even if interrupted meanwhile.
      */
-    private List<String> getFileUsedReport(Integer numHits) {
-        List<String> report = new ArrayList<String>();
-        for (int i = 0; i < sourceFileArray.length; i++) {
-            if (sourceFileArray[i][1].contentEquals(numHits.toString())) {
-                report.add("File: " + sourceFileArray[i][0] + " has been used " + numHits + " times.");
+    private static void awaitTermination(ExecutorService pool) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
-
-        return report;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
-     * Scans the Header row of the metadata csv to usable object.
-     *
-     * @throws IOException If the CSV can't be found or read
+     * Missing files and bitstream bytes found in a range of rows.
      */
-    private void processMetaHeader() throws IOException {
-        metadataCsvReader.readHeaders();
+    private static class RowRangeVerification {
+        private final List<String> missingFiles = new ArrayList<String>();
+        private long bytes;
     }
 
     /**
-     * Gets the value for a specified header column
-     *
-     * @param columnNum The integer value
-     * @return Text value for the specified header column
-     * @throws IOException If the CSV can't be found or read
+     * Verifies rows [fromRow, toRow), splitting the range in half until it is small enough.
      */
-    private String getHeaderField(int columnNum) throws IOException {
-        return metadataCsvReader.getHeader(columnNum);
-    }
+    private class VerifyRowRange extends RecursiveTask<RowRangeVerification> {
 
-    /**
-     * Method to process the content/body of the metadata csv.
-     * Delegate the work of processing each row to other methods.
-     * Does not process the header.
-     *
-     * @throws IOException If the CSV can't be found or read
-     */
-    private void processMetaBody() throws IOException {
-        // The implementation of processing CSV starts counting from 0. 0 = header, 1..n = body/content
-        int rowNumber = 1;
+        private static final long serialVersionUID = 1L;
 
-        while (metadataCsvReader.readRecord()) {
-            processMetaBodyRow(rowNumber++);
+        private final int fromRow;
+        private final int toRow;
+        private final int rangeRows;
+
+        VerifyRowRange(int fromRow, int toRow, int rangeRows) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.rangeRows = rangeRows;
         }
-    }
 
-    /**
-     * Method to verify the content/body of the metadata csv.
-     * Delegate the work of processing each row to other methods.
-     * Does not process the header.
-     *
-     * @throws IOException If the CSV can't be found or read
-     */
-    private void verifyMetaBody() throws IOException {
-        // The implementation of processing CSV starts counting from 0. 0 = header, 1..n = body/content
-        int rowNumber = 1;
+        @Override
+        protected RowRangeVerification compute() {
+            if (toRow - fromRow > rangeRows) {
+                int middleRow = (fromRow + toRow) >>> 1;
+                VerifyRowRange second = new VerifyRowRange(middleRow, toRow, rangeRows);
+                second.fork();
+                RowRangeVerification verification;
+                try {
+                    verification = new VerifyRowRange(fromRow, middleRow, rangeRows).compute();
+                } finally {
+                    // Wait for the second half even when the first fails, it reads the same mapped csv
+                    second.quietlyJoin();
+                }
+                RowRangeVerification secondVerification = second.join();
+                verification.missingFiles.addAll(secondVerification.missingFiles);
+                verification.bytes += secondVerification.bytes;
+                return verification;
+            }
 
-        while (metadataCsvReader.readRecord()) {
-            verifyMetaBodyRow(rowNumber++);
+            RowRangeVerification verification = new RowRangeVerification();
+            MappedCsvReader reader = metadataCsvReader.duplicate();
+            try {
+                reader.seekToRow(fromRow);
+                for (int rowNumber = fromRow; rowNumber < toRow && !cancelled && reader.readRecord(); rowNumber++) {
+                    verification.bytes += verifyMetaBodyRow(rowNumber, reader.getValues(), verification.missingFiles);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                reader.close();
+            }
+            return verification;
         }
     }
 
     /**
      * Verifies a row in the metadata CSV.
      * Verifying a row means checking all of the metadata fields, and checking that all of the files mentioned in the csv are in the package.
+     * Safe to call from several threads at once, as long as each has its own missing files list.
      *
-     * @param rowNumber Row in the CSV.
+     * @param rowNumber    Row in the CSV.
+     * @param currentLine  Values of the row
+     * @param missingFiles Filenames not found in the source directory are added to this
+     * @return Total size of the files found, if there is a progress listener to report it to, otherwise 0
      */
-    private void verifyMetaBodyRow(int rowNumber) throws IOException {
-        //Specify multiple alternatives for filename, to accept wider input.
-        String[] filenameColumn = {"filename", "bitstream", "bitstreams", "BUNDLE:ORIGINAL"};
-        String[] filenameWithPartsColumn = {"filename__", "bitstream__", "bitstreams__"};
-
-        String[] currentLine = metadataCsvReader.getValues();
-
-        for (int j = 0; j < metadataCsvReader.getHeaderCount(); j++) {
-            if (j >= currentLine.length) {
-                break;
-            }
+    private long verifyMetaBodyRow(int rowNumber, String[] currentLine, List<String> missingFiles) {
+        long bytes = 0;
+        int columns = Math.min(columnPlan.size(), currentLine.length);
+        for (int j = 0; j < columns; j++) {
             if (currentLine[j].length() == 0) {
                 continue;
             }
-            if (Arrays.asList(filenameColumn).contains(getHeaderField(j))) {
+            ColumnPlan.Kind kind = columnPlan.getColumn(j).getKind();
+            if (kind == ColumnPlan.Kind.FILENAME) {
                 // filename
-                verifyMetaBodyRowFile(currentLine[j]);
+                bytes += verifyMetaBodyRowFile(currentLine[j], missingFiles);
+            } else if (kind == ColumnPlan.Kind.LICENSE) {
+                sourceInventory.verifyFile(currentLine[j].trim(), missingFiles);
+            } else if (kind == ColumnPlan.Kind.COLLECTION && collectionResolver != null) {
+                verifyMetaBodyRowCollections(currentLine[j]);
             }
         }
+        return bytes;
     }
 
-    private void verifyMetaBodyRowFile(String filenames) {
-
-        filenames = removeTrailingDoublePipes(filenames);
-
-        String[] filenameArray = filenames.split(seperatorRegex);
-
-        for (String filename : filenameArray) {
-
-            int i = 0;
-            boolean found = false;
-            while (!found && (i < sourceFileArray.length)) {
-                if (sourceFileArray[i][0].contentEquals(filename)) {
-                    int current = Integer.parseInt(sourceFileArray[i][1]);
-                    int increment = current + 1;
-                    sourceFileArray[i][1] = String.valueOf(increment);
-                    found = true;
-                }
-
-                i++;
+    private void verifyMetaBodyRowCollections(String collectionsValues) {
+        List<String> collections = new ArrayList<String>();
+        ValueSplitter.splitValues(collectionsValues.trim(), collections);
+        for (String collection : collections) {
+            if (!StringUtils.isEmpty(collection)) {
+                collectionHandles.add(collection);
             }
+        }
+    }
 
-            if (!found) {
-                filesNotFoundInSourceDir.add(filename);
-            }
+    /**
+     * Starts listing the DSpace collections, so they are ready by the time verification has read the csv.
+     */
+    private void startCollectionValidation() {
+        collectionHandles.clear();
+        invalidCollectionsFound = new ArrayList<String>();
+        if (collectionResolver != null) {
+            collectionResolver.prefetch();
         }
+    }
 
+    /**
+     * Checks the collection handles gathered from the csv against DSpace, looking up the ones that aren't listed all
+     * at once.
+     */
+    private void verifyCollections() {
+        if (collectionResolver == null || collectionHandles.isEmpty() || cancelled) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            invalidCollectionsFound.addAll(collectionResolver.findUnknownHandles(collectionHandles));
+        } catch (IOException e) {
+            invalidCollectionsFound.add("error validating collections: " + e.getMessage());
+        } finally {
+            metrics.record(PackageMetrics.Phase.COLLECTION_VALIDATION, start);
+        }
     }
 
-    private List<String> getFilesNotFoundInCsv(){
-        List<String> filesNotFoundInCsv = new ArrayList<String>();
+    private long verifyMetaBodyRowFile(String filenames, List<String> missingFiles) {
+        List<String> filenameList = new ArrayList<String>();
+        ValueSplitter.splitValues(filenames, filenameList);
 
-        for (int i = 0; i < sourceFileArray.length; i++) {
-            if (sourceFileArray[i][1].contentEquals("0")) {
-                filesNotFoundInCsv.add(sourceFileArray[i][0]);
+        long bytes = 0;
+        for (int i = 0; i < filenameList.size(); i++) {
+            String filename = filenameList.get(i);
+            if (sourceInventory.verifyFile(filename, missingFiles) && progressListener != null) {
+                bytes += new File(sourceDir, filename).length();
             }
         }
+        return bytes;
+    }
 
-        return  filesNotFoundInCsv;
+    private List<String> getFilesNotFoundInCsv(){
+        return sourceInventory.getUnusedFiles();
     }
 
 
@@ -456,106 +1943,119 @@ public class SAFPackage {
     /**
      * Processes a row in the metadata CSV.
      * Processing a row means using all of the metadata fields, and adding all of the files mentioned to the package.
+     * May be called from several item worker threads at once, so it only touches state belonging to its own row.
+     * The bitstreams are put in the item directory, and the small files of the item are built in memory, to be
+     * written by ItemFiles.write. When streaming, the bitstreams are only noted, and ItemFiles.writeTo reads them.
      *
-     * @param rowNumber Row in the CSV.
+     * @param rowNumber   Row in the CSV.
+     * @param currentLine Values of the row
+     * @return The small files of the item
+     * @throws IOException If the item directory or any of its bitstreams can't be written
      */
-    private void processMetaBodyRow(int rowNumber) {
-        String currentItemDirectory = makeNewDirectory(rowNumber);
+    private ItemFiles processMetaBodyRow(int rowNumber, String[] currentLine) throws IOException {
+        // A streamed item only has a directory in the archive
+        String currentItemDirectory = (streamingArchive != null) ? getItemDirectory(itemRootDir, rowNumber).getAbsolutePath()
+                : makeNewDirectory(rowNumber);
         String dcFileName = currentItemDirectory + "/dublin_core.xml";
-        File contentsFile = new File(currentItemDirectory + "/contents");
-        File collectionFile = new File(currentItemDirectory + "/collections");
-        writeLicenseFile(currentItemDirectory);
-
-        //Specify multiple alternatives for filename, to accept wider input.
-        String[] filenameColumn = {"filename", "bitstream", "bitstreams", "BUNDLE:ORIGINAL"};
-        String[] filenameWithPartsColumn = {"filename__", "bitstream__", "bitstreams__"};
-
-        try {
-//            BufferedWriter contentsWriter = new BufferedWriter(new FileWriter(contentsFile));
-
-            //specify UTF-8 for output
-            BufferedWriter contentsWriter = new BufferedWriter
-                    (new OutputStreamWriter(new FileOutputStream(contentsFile), StandardCharsets.UTF_8));
+        ItemFiles itemFiles = new ItemFiles(new File(currentItemDirectory));
+        StringBuilder contents = itemFiles.getContents();
+        long licenseStart = System.nanoTime();
+        licenseTemplates.write(itemFiles, getRowValue(currentLine, licenseColumn), getRowValue(currentLine, collectionColumn));
+        metrics.record(PackageMetrics.Phase.LICENSE_WRITING, licenseStart);
 
-            String[] currentLine = metadataCsvReader.getValues();
+        BufferedOutputXML xmlWriter = new BufferedOutputXML(dcFileName);
+        xmlWriter.start();
+        Map<String, BufferedOutputXML> nonDCWriters = new HashMap<String, BufferedOutputXML>();
 
-            OutputXML xmlWriter = new OutputXML(dcFileName);
-            xmlWriter.start();
-            Map<String, OutputXML> nonDCWriters = new HashMap<String, OutputXML>();
+        // Scratch list for splitting multi-valued cells
+        List<String> values = new ArrayList<String>();
 
-            for (int j = 0; j < metadataCsvReader.getHeaderCount(); j++) {
-                if (j >= currentLine.length) {
-                    break;
-                }
+        try {
+            int columns = Math.min(columnPlan.size(), currentLine.length);
+            for (int j = 0; j < columns; j++) {
                 if (currentLine[j].length() == 0) {
                     continue;
                 }
 
-                if (Arrays.asList(filenameColumn).contains(getHeaderField(j))) {
-                    // filename
-                    processMetaBodyRowFile(contentsWriter, currentItemDirectory, currentLine[j], "");
-                } else if (StringUtils.indexOfAny(getHeaderField(j), filenameWithPartsColumn) >= 0) {
-                    // filename__
-                    //This file has extra parameters, such as being destined for a bundle, or specifying primary
-                    String[] filenameParts = getHeaderField(j).split("__", 2);
-                    processMetaBodyRowFile(contentsWriter, currentItemDirectory, currentLine[j], filenameParts[1]);
-                } else if (getHeaderField(j).contains("filegroup")) {
-                    String[] parameterParts = getHeaderField(j).split("__", 2);
-                    String extraParameter = (parameterParts.length == 1) ? "" : parameterParts[1];
-                    processMetaBodyRowFilegroup(contentsWriter, currentItemDirectory, currentLine[j], extraParameter);
-                } else if (getHeaderField(j).contains("collection")) {
-                    //TODO, figure out strategy for validation
-                    processMetaBodyRowCollections(collectionFile, currentLine[j]);
-                } else {
-                    //Metadata
-                    String[] dublinPieces = getHeaderField(j).split("\\.");
-                    if (dublinPieces.length < 2) {
-                        // strange field, skip
-                        continue;
-                    }
-                    String schema = dublinPieces[0];
-                    if (schema.contentEquals("dc")) {
-                        processMetaBodyRowField(getHeaderField(j), currentLine[j], xmlWriter);
-                    } else {
-                        if (!nonDCWriters.containsKey(schema)) {
-                            OutputXML schemaWriter = new OutputXML(currentItemDirectory + File.separator + "metadata_" + schema + ".xml", schema);
-                            schemaWriter.start();
-                            nonDCWriters.put(schema, schemaWriter);
+                ColumnPlan.Column column = columnPlan.getColumn(j);
+                switch (column.getKind()) {
+                    case FILENAME:
+                        processMetaBodyRowFile(itemFiles, currentLine[j], "", !fileHitsCountedByVerification, values);
+                        break;
+                    case FILENAME_WITH_PARAMETERS:
+                        //This file has extra parameters, such as being destined for a bundle, or specifying primary
+                        processMetaBodyRowFile(itemFiles, currentLine[j], column.getFileParameters(), true, values);
+                        break;
+                    case FILEGROUP:
+                        processMetaBodyRowFilegroup(itemFiles, currentLine[j], column.getFileParameters());
+                        break;
+                    case COLLECTION:
+                        processMetaBodyRowCollections(itemFiles.getCollections(), currentLine[j]);
+                        break;
+                    case LICENSE:
+                        // Written with the license.txt of the item
+                        if (!fileHitsCountedByVerification) {
+                            incrementFileHit(currentLine[j].trim());
                         }
-                        processMetaBodyRowField(getHeaderField(j), currentLine[j], nonDCWriters.get(schema));
-                    }
+                        break;
+                    case METADATA:
+                        if (column.isDublinCore()) {
+                            processMetaBodyRowField(column, currentLine[j], xmlWriter, values);
+                        } else {
+                            String schema = column.getSchema();
+                            BufferedOutputXML schemaWriter = nonDCWriters.get(schema);
+                            if (schemaWriter == null) {
+                                schemaWriter = new BufferedOutputXML(currentItemDirectory + File.separator + "metadata_" + schema + ".xml", schema);
+                                schemaWriter.start();
+                                nonDCWriters.put(schema, schemaWriter);
+                            }
+                            processMetaBodyRowField(column, currentLine[j], schemaWriter, values);
+                        }
+                        break;
+                    default:
+                        // strange field, skip
+                        break;
                 }
             }
-            contentsWriter.newLine();
-            contentsWriter.close();
-            xmlWriter.end();
-            for (String key : nonDCWriters.keySet()) {
-                nonDCWriters.get(key).end();
+            contents.append(System.lineSeparator());
+        } finally {
+            long xmlStart = System.nanoTime();
+            itemFiles.put(new File(xmlWriter.getOutputFile()), xmlWriter.endToBytes());
+            for (BufferedOutputXML schemaWriter : nonDCWriters.values()) {
+                itemFiles.put(new File(schemaWriter.getOutputFile()), schemaWriter.endToBytes());
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            metrics.record(PackageMetrics.Phase.XML_WRITING, xmlStart);
         }
+        return itemFiles;
+    }
+
+    /**
+     * @return The value of the column in the row, null if there is no such column or the row is short
+     */
+    private static String getRowValue(String[] currentLine, int column) {
+        return (column >= 0 && column < currentLine.length) ? currentLine[column] : null;
     }
 
     /**
      * Adds the values for the specific piece of metadata to the output. Accepts
      * multiple values per value so long as they are separated by the separator character
      *
-     * @param field_header Field name, such as dc.description or dc.description.abstract
+     * @param field_column Metadata column, such as dc.description or dc.description.abstract
      * @param field_value  Metadata value or values. Multiple values can be separated by a separator character.
      * @param xmlWriter    The xml file that the data is being written to
+     * @param fieldValues  Scratch list to split the values into
      */
-    private void processMetaBodyRowField(String field_header, String field_value, OutputXML xmlWriter) {
+    private void processMetaBodyRowField(ColumnPlan.Column field_column, String field_value, BufferedOutputXML xmlWriter, List<String> fieldValues) {
         // process Metadata field. Multiple entries can be specified with separator character
-        field_value = removeTrailingDoublePipes(field_value);
-        String[] fieldValues = field_value.split(seperatorRegex);
-        for (int valueNum = 0; valueNum < fieldValues.length; valueNum++) {
-            if (fieldValues[valueNum].trim().length() > 0) {
-                xmlWriter.writeOneDC(field_header, fieldValues[valueNum].trim());
-            } else {
-                continue;
+        long start = System.nanoTime();
+        ValueSplitter.splitValues(field_value, fieldValues);
+        for (int valueNum = 0; valueNum < fieldValues.size(); valueNum++) {
+            String fieldValue = fieldValues.get(valueNum).trim();
+            if (fieldValue.length() > 0) {
+                xmlWriter.writeOneDC(field_column, fieldValue);
             }
         }
+        metrics.record(PackageMetrics.Phase.XML_WRITING, start);
         //TODO test that this works in both cases of single value and multiple value
     }
 
@@ -566,61 +2066,64 @@ public class SAFPackage {
      * copy file into directory
      * add file to contents
      *
-     * @param contentsWriter       Writer to the contents file which tracks the files to ingest for item
-     * @param itemDirectory        Absolute path to the directory to put the files in
+     * @param itemFiles            Files of the item, whose contents file tracks the files to ingest
      * @param filenames            String with filename / filenames separated by separator.
      * @param globalFileParameters Parameters for these files. Blank value means nothing special needs to happen.
+     * @param countFileHits        false if verification has already counted these files as used
+     * @param files                Scratch list to split the filenames into
+     * @throws IOException If a file can't be found, copied or linked
      */
-    private void processMetaBodyRowFile(BufferedWriter contentsWriter, String itemDirectory, String filenames, String globalFileParameters) {
-
-        filenames = removeTrailingDoublePipes(filenames);
-        String[] files = filenames.split(seperatorRegex);
-
-        for (int j = 0; j < files.length; j++) {
-            /* Trim whitespace and add a __ at the end to avoid array out of bounds exception
-             * on the filenameParts[1] reference. (Could have also done if.. else..)
-             * filenameParts[0] = the actual file name
-             * filenameParts[1] = the remaining SAF parameters, still delimited by "__"
+    private void processMetaBodyRowFile(ItemFiles itemFiles, String filenames, String globalFileParameters, boolean countFileHits, List<String> files) throws IOException {
+        StringBuilder contents = itemFiles.getContents();
+        File itemDirectory = itemFiles.getItemDirectory();
+        ValueSplitter.splitValues(filenames, files);
+        List<String> parameters = new ArrayList<String>();
+
+        for (int j = 0; j < files.size(); j++) {
+            /* Trim whitespace and add a __ at the end so there is always a separator to split on.
+             * The actual file name is before the first "__", the remaining SAF parameters,
+             * still delimited by "__", are after it
              */
-            String[] filenameParts = (files[j].trim() + "__").split("__", 2);
-            String currentFile = filenameParts[0];
+            String paddedFile = files.get(j).trim() + ValueSplitter.PARAMETER_SEPARATOR;
+            int nameEnd = paddedFile.indexOf(ValueSplitter.PARAMETER_SEPARATOR);
+            String currentFile = paddedFile.substring(0, nameEnd);
 
             /* This takes the parameters as specified at the header row and adds them to the
              * parameters for this individual file. The order is important here: by taking
              * the local parameters first, they are able to override the global params.
              */
-            String fileParameters = filenameParts[1] + "__" + globalFileParameters;
+            String fileParameters = paddedFile.substring(nameEnd + ValueSplitter.PARAMETER_SEPARATOR.length()) + ValueSplitter.PARAMETER_SEPARATOR + globalFileParameters;
 
             try {
 
-                //copying files
-                if (!symbolicLink) {
-                    FileUtils.copyFileToDirectory(new File(sourceDir.getPath() + "/" + currentFile), new File(itemDirectory));
+                File sourceFile = new File(sourceDir.getPath() + "/" + currentFile);
+                if (!sourceFile.isFile()) {
+                    throw new FileNotFoundException(sourceFile.getPath());
+                }
+                //copying files, or linking them
+                checkCancelled();
+                if (streamingArchive != null) {
+                    itemFiles.addBitstream(sourceFile.getName(), sourceFile);
+                } else {
+                    transferBitstream(sourceFile, new File(itemDirectory, sourceFile.getName()));
                 }
-                //instead of copying them, set a symbolicLink
-                else {
-                    Path pathLink = (new File(sourceDir.getPath() + "/" + currentFile)).toPath();
-                    Path pathTarget = (new File(itemDirectory + "/" + currentFile)).toPath();
-                    Files.createSymbolicLink(pathTarget, pathLink);
+                if (countFileHits) {
+                    incrementFileHit(currentFile); //TODO fix file counter to deal with multifiles
                 }
-                incrementFileHit(currentFile); //TODO fix file counter to deal with multifiles
 
-                String contentsRow = getFilenameName(currentFile);
+                StringBuilder contentsRow = new StringBuilder(getFilenameName(currentFile));
                 if (fileParameters.length() > 0) {
                     // bundle:SOMETHING, primary:TRUE or description:Something, or any combination with "__" in between
-                    String[] parameters = fileParameters.split("__");
-                    for (String parameter : parameters) {
-                        contentsRow = contentsRow.concat("\t" + parameter.trim());
+                    ValueSplitter.split(fileParameters, ValueSplitter.PARAMETER_SEPARATOR, parameters);
+                    for (int i = 0; i < parameters.size(); i++) {
+                        contentsRow.append('\t').append(parameters.get(i).trim());
                     }
                 }
-                contentsRow = contentsRow.concat("\nlicense.txt" + "\t" + "BUNDLE:LICENSE");
-                contentsWriter.append(contentsRow);
-
-                contentsWriter.newLine();
+                contentsRow.append("\nlicense.txt" + "\t" + "BUNDLE:LICENSE");
+                contents.append(contentsRow).append(System.lineSeparator());
             } catch (FileNotFoundException fnf) {
                 System.out.println("There is no file named " + currentFile + " in " + sourceDir.getPath() + " while making " + itemDirectory);
-            } catch (IOException e) {
-                e.printStackTrace();
+                throw new FileNotFoundException("There is no file named " + currentFile + " in " + sourceDir.getPath());
             }
         }
     }
@@ -647,125 +2150,97 @@ public class SAFPackage {
     /**
      * Makes a new directory for the item being processed
      * /path/to/input/SimpleArchiveFormat/item_27/
+     * A directory left there by an earlier run, which may be unfinished or built from other inputs, is removed first.
      *
      * @param itemNumber Iterator for the item being processed, Starts from zero.
      * @return Absolute path to the newly created directory
+     * @throws IOException If the directory can't be removed or created
      */
-    private String makeNewDirectory(int itemNumber) {
-        File newDirectory = new File(archiveDir.getPath() + "/item_" + itemNumber);
-        newDirectory.mkdir();
+    private String makeNewDirectory(int itemNumber) throws IOException {
+        File newDirectory = getItemDirectory(itemRootDir, itemNumber);
+        if (newDirectory.exists()) {
+            FileUtils.deleteDirectory(newDirectory);
+        }
+        if (!newDirectory.mkdir()) {
+            throw new IOException("Unable to create " + newDirectory.getPath());
+        }
         return newDirectory.getAbsolutePath();
     }
 
     /**
-     * Reads a .tar.gz file that would contain the files for the metadata row.
+     * Extracts the files of a filegroup archive (.tar.gz, .tar or .zip) into the item directory, and lists them in
+     * the contents file.
      *
-     * @param itemDirectory
-     * @param filename
-     * @param fileParameters
-     * @throws FileSystemException
-     */
-    @SuppressWarnings("unchecked")
-    private void processMetaBodyRowFilegroup(BufferedWriter contentsWriter, String itemDirectory, String filename, String fileParameters) throws FileSystemException {
-        ArrayList<FileObject> filesCollection = new ArrayList<FileObject>();
-
-        FileSystemManager fileSystemManager = VFS.getManager();
-        FileObject tarGZFile = fileSystemManager.resolveFile("tgz://" + sourceDir.getPath() + "/" + filename);
-        // List the children of the Jar file
-        FileObject[] children = tarGZFile.getChildren();
-        for (int i = 0; i < children.length; i++) {
-            FileObject[] grandChildren = children[i].getChildren();
-
-            for (int j = 0; j < grandChildren.length; j++) {
-                FileObject grandChild = grandChildren[j];
-                if (grandChild.getName().getBaseName().equals(".htaccess") || grandChild.getType() != FileType.FILE) {
-                    continue;
-                }
-                filesCollection.add(grandChildren[j]);
-            }
+     * @param itemFiles      Files of the item, whose contents file tracks the files to ingest
+     * @param filename       Name of the archive in the source directory
+     * @param fileParameters Parameters for every file in the archive. Blank value means nothing special needs to happen.
+     * @throws IOException If the archive can't be read or its files can't be written
+     */
+    private void processMetaBodyRowFilegroup(ItemFiles itemFiles, String filename, String fileParameters) throws IOException {
+        checkCancelled();
+        List<String> parameters = new ArrayList<String>();
+        if (fileParameters.length() > 0) {
+            // BUNDLE:SOMETHING or BUNDLE:SOMETHING__PRIMARY:TRUE or PRIMARY:TRUE
+            ValueSplitter.split(fileParameters, ValueSplitter.PARAMETER_SEPARATOR, parameters);
         }
 
-        Collections.sort(filesCollection, new FileObjectComparator());
-
-        // Using reverse depend on your stance on which order to sort bitstreams from DS-749
-        // TODO allow for custom sorting/ordering/reversing
-        Collections.reverse(filesCollection);
-
-        // TODO This method needs to be tested. Processing file groups in general needs to be tested.
-        for (FileObject fileObject : filesCollection) {
-            addFileObjectToItem(contentsWriter, fileObject, fileSystemManager.resolveFile("file://" + itemDirectory), fileParameters);
+        File archive = new File(sourceDir, filename);
+        if (streamingArchive != null) {
+            // Read when the item is written; fail the item now rather than halfway through the archive
+            if (!archive.isFile()) {
+                throw new IOException("There is no filegroup archive " + archive.getPath());
+            }
+            itemFiles.addFilegroup(archive, parameters);
+        } else {
+            long start = System.nanoTime();
+            List<String> files = filegroupExtractor.extract(archive, itemFiles.getItemDirectory());
+            metrics.record(PackageMetrics.Phase.BITSTREAM_TRANSFER, start);
+            ItemFiles.appendFilegroupContents(itemFiles.getContents(), files, parameters);
         }
+        incrementFileHit(filename);
     }
 
-    public void processMetaBodyRowCollections(File collectionFile, String collectionsValues) throws IOException {
+    /**
+     * Adds the handles in the collections column of a row to the collections file of its item, one per line.
+     *
+     * @param collectionsFile   Collections file of the item
+     * @param collectionsValues Value of the collections column
+     */
+    public void processMetaBodyRowCollections(StringBuilder collectionsFile, String collectionsValues) {
         collectionsValues = collectionsValues.trim();
 
-        collectionsValues = removeTrailingDoublePipes(collectionsValues);
-        String[] collections = collectionsValues.split(seperatorRegex);
-
-        //TODO Validating collections is alpha, so leave disabled...
-        boolean validateCollection = false;
+        List<String> collections = new ArrayList<String>();
+        ValueSplitter.splitValues(collectionsValues, collections);
 
+        // Handles are checked during verification, when there is a collection resolver
         for (String collection : collections) {
             if (StringUtils.isEmpty(collection)) {
                 continue;
             }
 
-            if (validateCollection) {
-                validateCollection(collection);
-            }
-
-            FileUtils.writeStringToFile(collectionFile, collection, true);
-            FileUtils.writeStringToFile(collectionFile, System.getProperty("line.separator"), true);
-        }
-    }
-
-    static HashSet<String> handleSet;
-
-    public void initializeCollectionsSet() throws IOException {
-        String restAPI = "http://localhost:8080/rest/collections";
-        handleSet = new HashSet<String>();
-
-
-        HttpGet request = new HttpGet(restAPI);
-        request.setHeader("Accept", "application/json");
-        request.addHeader("Content-Type", "application/json");
-        //request.addHeader("rest-dspace-token", token);
-        HttpClient httpClient = new DefaultHttpClient();
-        HttpResponse httpResponse = httpClient.execute(request);
-
-        if (httpResponse.getStatusLine().getStatusCode() == 200) {
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode collNodes = mapper.readValue(httpResponse.getEntity().getContent(), JsonNode.class);
-            for (JsonNode collNode : collNodes) {
-                String handle = collNode.get("handle").asText();
-                handleSet.add(handle);
-            }
-
-        } else {
-            throw new IOException("REST API not available");
-        }
-    }
-
-    public void validateCollection(String collectionHandle) throws IOException {
-        if (handleSet == null) {
-            initializeCollectionsSet();
+            collectionsFile.append(collection).append(System.lineSeparator());
         }
-
-        if (!handleSet.contains(collectionHandle)) {
-            throw new IOException("Handle did not exist in handleset:" + collectionHandle);
-        }
-
-
     }
 
-    public void generateManifest(String pathToCSV) {
-        File csvFile = new File(pathToCSV);
+    /**
+     * Writes a starting metadata CSV listing every file in the directory the CSV is written to, in alphanumeric order.
+     *
+     * @param pathToCSV Path of the CSV to write. The files next to it are listed.
+     * @return true if the manifest was written
+     */
+    public boolean generateManifest(String pathToCSV) {
+        File csvFile = new File(pathToCSV).getAbsoluteFile();
         File directory = csvFile.getParentFile();
         System.out.println("Creating manifest of files in directory:" + directory + " will output results to: " + csvFile);
 
-        //TODO, if CSV doesn't exist, errors get reported
-        openCSV();
+        String[] listing = directory.list();
+        if (listing == null) {
+            System.out.println("Error: Unable to list the files in " + directory);
+            return false;
+        }
+        List<String> fileList = new ArrayList<String>(Arrays.asList(listing));
+        AlphanumComparator.sort(fileList, AlphanumComparator.Ordering.ASCENDING);
+        String[] files = fileList.toArray(new String[fileList.size()]);
 
         CsvWriter csvWriter = new CsvWriter(pathToCSV);
         String[] header = new String[]{"filename", "dc.title", "dc.contributor.author", "dc.date.issued", "dc.description.abstract", "dc.subject"};
@@ -773,8 +2248,6 @@ public class SAFPackage {
             csvWriter.writeRecord(header);
             csvWriter.endRecord();
 
-            String[] files = sourceDir.list();
-
             System.out.print("Building manifest:");
             for (int i = 0; i < files.length; i++) {
                 //Skip dot files, blanks, and the current CSV file.
@@ -789,96 +2262,27 @@ public class SAFPackage {
             }
 
             System.out.println(" - " + files.length + " files were added to manifest.");
+            return true;
 
         } catch (IOException e) {
             System.out.println("Error: " + e.getMessage());
             System.err.println(e.getMessage());
+            return false;
         } finally {
             csvWriter.close();
         }
     }
 
     /**
-     * A comparator for the FileObject which does an alphanum sort of the filename (baseName) of the FileObject
-     */
-    class FileObjectComparator implements Comparator<FileObject> {
-        public int compare(FileObject a, FileObject b) {
-            AlphanumComparator alphanumComparator = new AlphanumComparator();
-
-            try {
-
-                return alphanumComparator.compare(a.getName().getBaseName(), b.getName().getBaseName());
-            } catch (Exception e) {
-                System.out.println("ERROR IN COMPARISON");
-                return 0;
-            }
-
-        }
-    }
-
-    /**
-     * Move the commons "FileObject" to the item's directory.
-     *
-     * @param contentsWriter
-     * @param destinationDirectory
+     * @return Report lines about how bitstreams were transferred, empty if nothing was deduplicated
      */
-    private void addFileObjectToItem(BufferedWriter contentsWriter, FileObject fileObject, FileObject destinationDirectory, String fileParameters) {
-        try {
-            if (fileObject.canRenameTo(destinationDirectory)) {
-                fileObject.moveTo(destinationDirectory);
-            } else {
-                // Can't move the file, have to copy it.
-                // Have to create an end-point file which will absorb the contents we are writing.
-                FileSystemManager fsManager = VFS.getManager();
-                FileObject localDestFile = fsManager.resolveFile(destinationDirectory.getName().getPath() + "/" + fileObject.getName().getBaseName());
-                localDestFile.createFile();
-                localDestFile.copyFrom(fileObject, Selectors.SELECT_ALL);
-            }
-            incrementFileHit(fileObject.getName().getBaseName()); //TODO Don't know if this file would exist
-
-            String contentsRow = fileObject.getName().getBaseName();
-            if (fileParameters.length() > 0) {
-                // BUNDLE:SOMETHING or BUNDLE:SOMETHING__PRIMARY:TRUE or PRIMARY:TRUE
-                String[] parameters = fileParameters.split("__");
-                for (String parameter : parameters) {
-                    contentsRow = contentsRow.concat("\t" + parameter.trim());
-                }
-            }
-            contentsWriter.append(contentsRow);
-
-            contentsWriter.newLine();
-        } catch (FileNotFoundException fnf) {
-            System.out.println("There is no file named " + fileObject.getName().getBaseName() + " while making " + destinationDirectory.getName().getBaseName());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void writeLicenseFile(String itemDirectory) {
-
-        try {
-
-            File file = new File(itemDirectory + File.separator + "license.txt");
-            FileWriter fileWriter = new FileWriter(file);
-            fileWriter.write(licenseString);
-            fileWriter.flush();
-            fileWriter.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-    }
-
-    private String removeTrailingDoublePipes(String str) {
-        String last2chars = str.substring(Math.max(str.length() - 2, 0));
-
-        if (last2chars.matches(seperatorRegex)) {
-            return str.substring(0, str.length() - 2);
-        } else {
-            return str;
+    private List<String> getTransferReport() {
+        List<String> report = new ArrayList<String>();
+        if (bitstreamDeduplicator != null && bitstreamDeduplicator.getLinkedReferences() > 0) {
+            report.add("[INFO] " + bitstreamDeduplicator.getLinkedReferences() + " repeated bitstream reference(s) were hard linked to an earlier copy instead of copied, saving "
+                    + bitstreamDeduplicator.getBytesSaved() + " bytes (" + FileUtils.byteCountToDisplaySize(bitstreamDeduplicator.getBytesSaved()) + ").");
         }
-
+        return report;
     }
 
     private List<String> getValidFields(){
@@ -891,6 +2295,8 @@ public class SAFPackage {
 
         validHeaders.add("filename");
         validHeaders.add("BUNDLE:ORIGINAL");
+        validHeaders.add("license");
+        validHeaders.add("collections");
         validHeaders.add("dc.relation.hasPart");
         validHeaders.add("dc.contributor.author");
         validHeaders.add("dc.description.version");
@@ -1068,6 +2474,14 @@ public class SAFPackage {
 
         List<String> report = new ArrayList<String>();
 
+        if (itemFailures.size() > 0) {
+            report.add("\n#######\n# Items\n#######");
+            report.add("[ERROR] The following " + Integer.toString(itemFailures.size()) + " item(s) could not be created:");
+            for (Map.Entry<Integer, String> itemFailure : itemFailures.entrySet()) {
+                report.add("\tRow " + itemFailure.getKey() + " (item_" + itemFailure.getKey() + "): " + itemFailure.getValue());
+            }
+        }
+
         // headers - valid and required present
         report.add("\n#######\n# Headers\n#######");
 
@@ -1089,8 +2503,21 @@ public class SAFPackage {
             }
         }
 
+        if (collectionResolver != null) {
+            report.add("\n#######\n# Collections\n#######");
+            if (invalidCollectionsFound.size() == 0) {
+                report.add("[OK] All " + collectionHandles.size() + " collection handle(s) in the metadata csv are DSpace collections.");
+            } else {
+                report.add("[CRITICAL ERROR] The following " + invalidCollectionsFound.size() + " collection handle(s) are not DSpace collections:");
+                for (String invalidCollection : invalidCollectionsFound) {
+                    report.add("\t" + invalidCollection);
+                }
+            }
+        }
+
         // files csv <-> source dir match
         report.add("\n#######\n# Files\n#######");
+        List<String> filesNotFoundInSourceDir = sourceInventory.getMissingFiles();
         if (filesNotFoundInSourceDir.size() == 0) {
             report.add("[OK] All filenames found in the metadata csv were found in content source directory.");
         } else {
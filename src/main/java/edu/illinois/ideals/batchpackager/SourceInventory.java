@@ -0,0 +1,151 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Index of the files in a content source directory, along with the number of times each file has been referred to
+ * by the metadata CSV. Lookups are hashed, so checking every filename in a batch is linear in the number of rows
+ * rather than rows x files.
+ * Hit counts may be incremented from several item worker threads at once.
+ */
+public class SourceInventory {
+
+    // File names in the order the directory listing returned them
+    private final String[] fileNames;
+
+    // Position of each file name in fileNames / fileHits
+    private final Map<String, Integer> fileIndex;
+
+    private final AtomicIntegerArray fileHits;
+
+    // Filenames referred to in the CSV that are not in the source directory, in the order they were found
+    private final List<String> missingFiles = new ArrayList<String>();
+
+    /**
+     * Make a list of all the files in the source directory.
+     * Initialize the count for each file found to have zero usages.
+     *
+     * @param sourceDir Content source directory
+     * @throws IOException If the directory can't be listed
+     */
+    public SourceInventory(File sourceDir) throws IOException {
+        String[] files = sourceDir.list();
+        if (files == null) {
+            throw new IOException("Unable to list content source directory " + sourceDir.getPath());
+        }
+
+        fileNames = files;
+        fileHits = new AtomicIntegerArray(files.length);
+        fileIndex = new HashMap<String, Integer>(files.length * 2);
+        for (int i = 0; i < files.length; i++) {
+            fileIndex.put(files[i], i);
+        }
+    }
+
+    /**
+     * @param filename Name of file referred to in CSV
+     * @return true if the file exists in the source directory
+     */
+    public boolean contains(String filename) {
+        return fileIndex.containsKey(filename);
+    }
+
+    /**
+     * Marks that the filename being referred to is counted as being used.
+     *
+     * @param filename Name of file referred to in CSV
+     * @return true if the file exists in the source directory
+     */
+    public boolean incrementFileHit(String filename) {
+        Integer index = fileIndex.get(filename);
+        if (index == null) {
+            return false;
+        }
+        fileHits.incrementAndGet(index);
+        return true;
+    }
+
+    /**
+     * Counts a reference to the filename, remembering it as missing if it isn't in the source directory.
+     *
+     * @param filename Name of file referred to in CSV
+     * @return true if the file exists in the source directory
+     */
+    public boolean verifyFile(String filename) {
+        return verifyFile(filename, missingFiles);
+    }
+
+    /**
+     * Counts a reference to the filename, adding it to the given list if it isn't in the source directory.
+     * Safe to call from several threads at once, as long as each has its own list.
+     *
+     * @param filename     Name of file referred to in CSV
+     * @param missingFiles Missing filenames of the rows being verified, see addMissingFiles
+     * @return true if the file exists in the source directory
+     */
+    public boolean verifyFile(String filename, List<String> missingFiles) {
+        if (incrementFileHit(filename)) {
+            return true;
+        }
+        missingFiles.add(filename);
+        return false;
+    }
+
+    /**
+     * Remembers filenames found missing by verifyFile(filename, missingFiles), after the ones already found.
+     *
+     * @param files Missing filenames, in the order they were found
+     */
+    public void addMissingFiles(List<String> files) {
+        missingFiles.addAll(files);
+    }
+
+    /**
+     * @param filename Name of file in the source directory
+     * @return Number of times the file has been used, 0 if it is unused or not in the source directory
+     */
+    public int getFileHits(String filename) {
+        Integer index = fileIndex.get(filename);
+        return (index == null) ? 0 : fileHits.get(index);
+    }
+
+    /**
+     * Files that exist in the directory that have been used the specified number of times.
+     *
+     * @param numHits The specified number of times the file should have been used. Value of 0 means unused file.
+     * @return File names, in directory listing order
+     */
+    public List<String> getFilesUsed(int numHits) {
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < fileNames.length; i++) {
+            if (fileHits.get(i) == numHits) {
+                files.add(fileNames[i]);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return Files in the source directory that were never referred to, in directory listing order
+     */
+    public List<String> getUnusedFiles() {
+        return getFilesUsed(0);
+    }
+
+    /**
+     * @return Filenames referred to by verifyFile that are not in the source directory
+     */
+    public List<String> getMissingFiles() {
+        return missingFiles;
+    }
+
+    public int size() {
+        return fileNames.length;
+    }
+}
@@ -0,0 +1,149 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The archives processMetaPack writes items straight into when streaming, instead of building item directories and
+ * zipping them afterwards. Each item is written once, reading its bitstreams from the content source directory, and
+ * nothing is staged on disk. The entries are laid out as exportToZip lays out a zip of the directories.
+ * <p>
+ * Each archive is written to a hidden .partial file next to it that commit() renames, so an archive with the real
+ * name is always complete. Once an item fails to be written, nothing is committed. Items may be written from several
+ * threads, one item at a time.
+ */
+public class StreamingArchive {
+
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    /**
+     * One archive being written.
+     */
+    private static final class Output {
+        final File file;
+        final File partialFile;
+        final ArchiveStream stream;
+
+        Output(File file, File partialFile, ArchiveStream stream) {
+            this.file = file;
+            this.partialFile = partialFile;
+            this.stream = stream;
+        }
+    }
+
+    private final File archiveDir;
+
+    private final ArchiveFormat format;
+
+    private final int zipLevel;
+
+    private final boolean storeCompressedFiles;
+
+    private final int threads;
+
+    private final FilegroupExtractor filegroupExtractor;
+
+    // Archives opened so far, by file name
+    private final Map<String, Output> outputs = new LinkedHashMap<String, Output>();
+
+    // An item failed part way, so its archive may hold some of its entries
+    private boolean itemFailed;
+
+    /**
+     * @param archiveDir           Directory the archives are written in
+     * @param format               Format of the archives
+     * @param zipLevel             Deflate level for compressed zip entries, 0-9 or -1 for the default
+     * @param storeCompressedFiles true to store already compressed files in a zip instead of deflating them
+     * @param threads              Number of threads gzipping each .tar.gz
+     * @param filegroupExtractor   Reads the filegroups of items
+     */
+    public StreamingArchive(File archiveDir, ArchiveFormat format, int zipLevel, boolean storeCompressedFiles,
+                            int threads, FilegroupExtractor filegroupExtractor) {
+        this.archiveDir = archiveDir;
+        this.format = format;
+        this.zipLevel = zipLevel;
+        this.storeCompressedFiles = storeCompressedFiles;
+        this.threads = threads;
+        this.filegroupExtractor = filegroupExtractor;
+    }
+
+    public ArchiveFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Writes an item into an archive, starting the archive with its top directory if it is the first item in it.
+     *
+     * @param baseName  Name of the archive without its extension, such as SimpleArchiveFormat or part_2
+     * @param rootName  Top directory in the archive, such as the name of the archive directory or part_2
+     * @param itemName  Directory of the item, such as item_12
+     * @param itemFiles Files of the item
+     * @throws IOException If the item can't be read or written
+     */
+    public synchronized void write(String baseName, String rootName, String itemName, ItemFiles itemFiles) throws IOException {
+        String fileName = baseName + format.getExtension();
+        Output output = outputs.get(fileName);
+        long now = System.currentTimeMillis();
+        if (output == null) {
+            File partialFile = new File(archiveDir, "." + fileName + PARTIAL_SUFFIX);
+            output = new Output(new File(archiveDir, fileName), partialFile, format.open(partialFile, zipLevel, storeCompressedFiles, threads));
+            outputs.put(fileName, output);
+            output.stream.putDirectory(rootName + "/", now);
+        }
+
+        String prefix = rootName + "/" + itemName + "/";
+        try {
+            output.stream.putDirectory(prefix, now);
+            itemFiles.writeTo(output.stream, prefix, filegroupExtractor);
+        } catch (IOException | RuntimeException e) {
+            itemFailed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Finishes every archive and gives it its real name, replacing any archive of that name.
+     *
+     * @throws IOException If an item failed to be written, or an archive can't be finished or renamed
+     */
+    public synchronized void commit() throws IOException {
+        try {
+            if (itemFailed) {
+                throw new IOException("An item could not be written, so the archive is incomplete");
+            }
+            for (Output output : outputs.values()) {
+                output.stream.finish();
+                output.stream.close();
+            }
+            for (Output output : outputs.values()) {
+                Files.move(output.partialFile.toPath(), output.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("Archive located at: " + output.file.getAbsolutePath());
+            }
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Stops writing and removes the archives that haven't been committed.
+     */
+    public synchronized void abort() {
+        for (Output output : outputs.values()) {
+            try {
+                output.stream.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close " + output.partialFile.getPath() + ": " + e.getMessage());
+            }
+            try {
+                Files.deleteIfExists(output.partialFile.toPath());
+            } catch (IOException e) {
+                System.out.println("Unable to remove " + output.partialFile.getPath() + ": " + e.getMessage());
+            }
+        }
+        outputs.clear();
+    }
+}
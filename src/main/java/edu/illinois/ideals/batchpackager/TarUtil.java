@@ -0,0 +1,108 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Utility to tar nested directories recursively, the tar counterpart of ZipUtil. Entries are laid out as ZipUtil
+ * lays them out, starting with the directory itself. A .tar.gz is gzipped with ParallelGzipOutputStream, on several
+ * threads when there are any.
+ */
+public class TarUtil {
+
+    // Gzip the tar
+    private final boolean gzip;
+
+    // Number of threads gzipping. 1 gzips on the thread writing the tar.
+    private int threads = 1;
+
+    // Gzip level, 0-9 or Deflater.DEFAULT_COMPRESSION
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    // Files under the directory that are left out of the archive, absolute
+    private final Set<File> excludedFiles = new HashSet<File>();
+
+    /**
+     * @param gzip    true to write a .tar.gz, false for a plain .tar
+     * @param threads Number of threads to gzip on
+     */
+    public TarUtil(boolean gzip, int threads) {
+        this.gzip = gzip;
+        setThreads(threads);
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param level Gzip level, 0-9 or Deflater.DEFAULT_COMPRESSION
+     */
+    public void setLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * Leaves a file under the directory being archived out of the archive, such as bookkeeping that isn't part of it.
+     *
+     * @param file File to leave out
+     */
+    public void exclude(File file) {
+        excludedFiles.add(file.getAbsoluteFile());
+    }
+
+    /**
+     * Creates a tar file at the specified path with the contents of the specified directory.
+     * If the tar file is inside the directory it is left out of the archive.
+     *
+     * @param directoryPath The path of the directory to archive. eg. c:/temp/saf
+     * @param tarPath The full path of the archive to create. eg. c:/temp/archive.tar.gz
+     * @throws IOException If anything goes wrong
+     */
+    public void tarDirectory(String directoryPath, String tarPath) throws IOException {
+        File tarFile = new File(tarPath).getAbsoluteFile();
+        ArchiveFormat format = gzip ? ArchiveFormat.TAR_GZ : ArchiveFormat.TAR;
+        ArchiveStream out = format.open(tarFile, level, false, threads);
+        try {
+            addFileToTar(out, new File(directoryPath), "", tarFile);
+            out.finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Adds a file, or a directory and everything under it, to the archive.
+     *
+     * @param out The archive being written
+     * @param f The file or directory being added
+     * @param base The prefix for the name of its entry
+     * @param tarFile The archive being written, which is skipped
+     * @throws IOException If anything goes wrong
+     */
+    private void addFileToTar(ArchiveStream out, File f, String base, File tarFile) throws IOException {
+        File absoluteFile = f.getAbsoluteFile();
+        if (absoluteFile.equals(tarFile) || excludedFiles.contains(absoluteFile)) {
+            return;
+        }
+        String entryName = base + f.getName();
+        if (f.isFile()) {
+            out.putFile(entryName, f);
+            return;
+        }
+
+        out.putDirectory(entryName + "/", f.lastModified());
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                addFileToTar(out, child, entryName + "/", tarFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package edu.illinois.ideals.batchpackager;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Ways of putting a bitstream from the content source directory into an item directory.
+ */
+public enum TransferStrategy {
+
+    /**
+     * Buffered stream copy through commons-io. Works everywhere.
+     */
+    COPY {
+        @Override
+        public void transfer(File source, File target) throws IOException {
+            FileUtils.copyFile(source, target);
+        }
+    },
+
+    /**
+     * Copy with FileChannel.transferTo, which lets the kernel move the bytes without passing them through the JVM.
+     * Falls back to COPY if the file system doesn't support it.
+     */
+    CHANNEL_COPY {
+        @Override
+        public void transfer(File source, File target) throws IOException {
+            boolean copied;
+            try {
+                copied = transferChannel(source.toPath(), target.toPath());
+            } catch (IOException e) {
+                copied = false;
+            }
+
+            if (copied) {
+                target.setLastModified(source.lastModified());
+            } else {
+                COPY.transfer(source, target);
+            }
+        }
+    },
+
+    /**
+     * Hard link to the source file. Only possible when the source and archive directories share a file system.
+     */
+    HARD_LINK {
+        @Override
+        public void transfer(File source, File target) throws IOException {
+            Files.deleteIfExists(target.toPath());
+            Files.createLink(target.toPath(), source.toPath());
+        }
+    },
+
+    /**
+     * Symbolic link to the source file. The archive is only usable while the source directory is in place.
+     */
+    SYMBOLIC_LINK {
+        @Override
+        public void transfer(File source, File target) throws IOException {
+            Files.deleteIfExists(target.toPath());
+            Files.createSymbolicLink(target.toPath(), source.getAbsoluteFile().toPath());
+        }
+    },
+
+    /**
+     * Chosen once per run by resolve(): HARD_LINK if the file system allows it, otherwise CHANNEL_COPY.
+     */
+    AUTO {
+        @Override
+        public void transfer(File source, File target) throws IOException {
+            throw new IllegalStateException("AUTO must be resolved before transferring files");
+        }
+    };
+
+    /**
+     * Puts the source file in place at the target path.
+     *
+     * @param source Bitstream in the content source directory
+     * @param target Path of the bitstream in the item directory
+     * @throws IOException If the file can't be copied or linked
+     */
+    public abstract void transfer(File source, File target) throws IOException;
+
+    /**
+     * Picks the fastest safe strategy for AUTO by hard linking a file from the source directory into the target
+     * directory once. Other strategies are returned as they are.
+     *
+     * @param sourceDir Content source directory
+     * @param targetDir Directory the items will be created in
+     * @return The strategy to use for the run
+     */
+    public TransferStrategy resolve(File sourceDir, File targetDir) {
+        if (this != AUTO) {
+            return this;
+        }
+
+        File sample = null;
+        String[] files = sourceDir.list();
+        if (files != null) {
+            for (String file : files) {
+                File candidate = new File(sourceDir, file);
+                if (candidate.isFile()) {
+                    sample = candidate;
+                    break;
+                }
+            }
+        }
+        if (sample == null || !targetDir.isDirectory()) {
+            return CHANNEL_COPY;
+        }
+
+        Path probe = new File(targetDir, ".link-probe-" + System.nanoTime()).toPath();
+        try {
+            Files.createLink(probe, sample.toPath());
+            return HARD_LINK;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            return CHANNEL_COPY;
+        } finally {
+            try {
+                Files.deleteIfExists(probe);
+            } catch (IOException e) {
+                System.out.println("Unable to remove " + probe + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if all of the source was transferred, false if the channel stopped making progress
+     */
+    private static boolean transferChannel(Path source, Path target) throws IOException {
+        FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long transferred = in.transferTo(position, size - position, out);
+                    if (transferred <= 0) {
+                        return false;
+                    }
+                    position += transferred;
+                }
+                return true;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
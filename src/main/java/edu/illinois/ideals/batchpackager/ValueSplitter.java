@@ -0,0 +1,73 @@
+package edu.illinois.ideals.batchpackager;
+
+import java.util.List;
+
+/**
+ * Regex-free splitting of CSV cell values. Gives exactly the same pieces as the String.split calls it replaces,
+ * including dropping trailing empty pieces, without compiling a pattern or allocating an array per call.
+ */
+public final class ValueSplitter {
+
+    // Using double pipe || to separate multiple values in a field.
+    public static final String VALUE_SEPARATOR = "||";
+
+    // Separates a filename from its SAF parameters, and the parameters from each other
+    public static final String PARAMETER_SEPARATOR = "__";
+
+    private ValueSplitter() {
+    }
+
+    /**
+     * Splits a multi-valued field on ||, after dropping one trailing ||.
+     * Same as removeTrailingDoublePipes(value).split("\\|\\|").
+     *
+     * @param value  Cell value
+     * @param tokens Cleared, then filled with the values
+     */
+    public static void splitValues(String value, List<String> tokens) {
+        int end = value.length();
+        if (value.endsWith(VALUE_SEPARATOR)) {
+            end -= VALUE_SEPARATOR.length();
+        }
+        split(value, end, VALUE_SEPARATOR, tokens);
+    }
+
+    /**
+     * Splits on a literal separator. Same as value.split(Pattern.quote(separator)).
+     *
+     * @param value     String to split
+     * @param separator Literal separator
+     * @param tokens    Cleared, then filled with the pieces
+     */
+    public static void split(String value, String separator, List<String> tokens) {
+        split(value, value.length(), separator, tokens);
+    }
+
+    private static void split(String value, int end, String separator, List<String> tokens) {
+        tokens.clear();
+
+        int start = 0;
+        int match = value.indexOf(separator);
+        if (match < 0 || match + separator.length() > end) {
+            tokens.add(end == value.length() ? value : value.substring(0, end));
+            return;
+        }
+
+        while (match >= 0 && match + separator.length() <= end) {
+            tokens.add(substring(value, start, match));
+            start = match + separator.length();
+            match = value.indexOf(separator, start);
+        }
+        tokens.add(substring(value, start, end));
+
+        // String.split drops trailing empty strings
+        int size = tokens.size();
+        while (size > 0 && tokens.get(size - 1).isEmpty()) {
+            tokens.remove(--size);
+        }
+    }
+
+    private static String substring(String value, int start, int end) {
+        return (start == end) ? "" : value.substring(start, end);
+    }
+}
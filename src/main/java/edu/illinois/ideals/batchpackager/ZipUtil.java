@@ -1,18 +1,75 @@
 package edu.illinois.ideals.batchpackager;
+import org.apache.commons.compress.archivers.zip.ParallelScatterZipCreator;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.InputStreamSupplier;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStoreSupplier;
 import org.apache.commons.compress.utils.IOUtils;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
 
 /**
  * Utility to Zip and Unzip nested directories recursively.
+ * With more than one thread, entries are deflated concurrently into scatter files and then gathered into the archive.
+ * Files that are already compressed (PDFs, images, media, archives) are stored as they are instead of deflated.
  * @author Robin Spark
  */
 public class ZipUtil {
 
+    // Number of threads deflating entries. 1 writes each entry straight into the archive.
+    private int threads = 1;
+
+    // Deflate level for the entries that are compressed, 0-9 or Deflater.DEFAULT_COMPRESSION
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    // Store entries that CompressedFormats recognizes instead of deflating them again
+    private boolean storeCompressedFiles = true;
+
+    // Files under the directory that are left out of the archive, absolute
+    private final Set<File> excludedFiles = new HashSet<File>();
+
+    public ZipUtil() {
+    }
+
     /**
-     * Creates a zip file at the specified path with the contents of the specified directory.
+     * @param threads Number of threads to deflate entries on
+     */
+    public ZipUtil(int threads) {
+        setThreads(threads);
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param level Deflate level for entries that are compressed, 0-9 or Deflater.DEFAULT_COMPRESSION
+     */
+    public void setLevel(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * @param storeCompressedFiles true to store already compressed files, false to deflate every file
+     */
+    public void setStoreCompressedFiles(boolean storeCompressedFiles) {
+        this.storeCompressedFiles = storeCompressedFiles;
+    }
+
+    /**
+     * Creates a zip file at the specified path with the contents of the specified directory, on a single thread.
      * NB:
      *
      * @param directoryPath The path of the directory where the archive will be created. eg. c:/temp
@@ -20,22 +77,41 @@ public class ZipUtil {
      * @throws IOException If anything goes wrong
      */
     public static void createZip(String directoryPath, String zipPath) throws IOException {
-        FileOutputStream fOut = null;
-        BufferedOutputStream bOut = null;
-        ZipArchiveOutputStream tOut = null;
+        new ZipUtil().zipDirectory(directoryPath, zipPath);
+    }
+
+    /**
+     * Creates a zip file at the specified path with the contents of the specified directory.
+     * If the zip file is inside the directory it is left out of the archive.
+     *
+     * @param directoryPath The path of the directory where the archive will be created. eg. c:/temp
+     * @param zipPath The full path of the archive to create. eg. c:/temp/archive.zip
+     * @throws IOException If anything goes wrong
+     */
+    public void zipDirectory(String directoryPath, String zipPath) throws IOException {
+        File zipFile = new File(zipPath).getAbsoluteFile();
+        ZipArchiveOutputStream tOut = new ZipArchiveOutputStream(zipFile);
+        tOut.setLevel(level);
 
         try {
-            fOut = new FileOutputStream(new File(zipPath));
-            bOut = new BufferedOutputStream(fOut);
-            tOut = new ZipArchiveOutputStream(bOut);
-            addFileToZip(tOut, directoryPath, "");
-        } finally {
+            if (threads > 1) {
+                addDirectoryToZipInParallel(tOut, new File(directoryPath), zipFile);
+            } else {
+                addFileToZip(tOut, directoryPath, "", zipFile);
+            }
             tOut.finish();
+        } finally {
             tOut.close();
-            bOut.close();
-            fOut.close();
         }
+    }
 
+    /**
+     * Leaves a file under the directory being zipped out of the archive, such as bookkeeping that isn't part of it.
+     *
+     * @param file File to leave out
+     */
+    public void exclude(File file) {
+        excludedFiles.add(file.getAbsoluteFile());
     }
 
     /**
@@ -45,13 +121,21 @@ public class ZipUtil {
      * @param zOut The zip file's output stream
      * @param path The filesystem path of the file/directory being added
      * @param base The base prefix to for the name of the zip file entry
+     * @param zipFile The archive being written, which is skipped
      *
      * @throws IOException If anything goes wrong
      */
-    private static void addFileToZip(ZipArchiveOutputStream zOut, String path, String base) throws IOException {
+    private void addFileToZip(ZipArchiveOutputStream zOut, String path, String base, File zipFile) throws IOException {
         File f = new File(path);
+        if (isExcluded(f, zipFile)) {
+            return;
+        }
         String entryName = base + f.getName();
         ZipArchiveEntry zipEntry = new ZipArchiveEntry(f, entryName);
+        if (f.isFile()) {
+            // The archive is seekable, so stored entries don't need their size and crc up front
+            zipEntry.setMethod(compressionMethod(f));
+        }
 
         zOut.putArchiveEntry(zipEntry);
 
@@ -71,9 +155,109 @@ public class ZipUtil {
 
             if (children != null) {
                 for (File child : children) {
-                    addFileToZip(zOut, child.getAbsolutePath(), entryName + "/");
+                    addFileToZip(zOut, child.getAbsolutePath(), entryName + "/", zipFile);
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Deflates every entry under the directory on the worker threads, then gathers the compressed entries into the
+     * archive in the same order the single threaded walk would have written them.
+     * The scatter files holding compressed entries are kept next to the archive rather than in the system temp
+     * directory, which is often too small for a whole batch.
+     *
+     * @param zOut The zip file's output stream
+     * @param directory The directory being added
+     * @param zipFile The archive being written, which is skipped
+     * @throws IOException If anything goes wrong
+     */
+    private void addDirectoryToZipInParallel(ZipArchiveOutputStream zOut, File directory, File zipFile) throws IOException {
+        // Scatter files are created while the directory is walked, and the zip is often inside it. Keep them in a
+        // directory of their own that the walk skips.
+        final File scatterDir = Files.createTempDirectory(zipFile.getParentFile().toPath(), ".scatter").toFile().getAbsoluteFile();
+        excludedFiles.add(scatterDir);
+        ScatterGatherBackingStoreSupplier backingStoreSupplier = () -> {
+            File scatterFile = File.createTempFile("parallelscatter", "", scatterDir);
+            scatterFile.deleteOnExit();
+            return new FileBasedScatterGatherBackingStore(scatterFile);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ParallelScatterZipCreator zipCreator = new ParallelScatterZipCreator(executor, backingStoreSupplier, level);
+        try {
+            addFileToScatter(zipCreator, directory, "", zipFile);
+            zipCreator.writeTo(zOut);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while creating zip");
+        } catch (ExecutionException e) {
+            Throwable cause = (e.getCause() instanceof UncheckedIOException) ? e.getCause().getCause() : e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+            excludedFiles.remove(scatterDir);
+            deleteScatterDir(scatterDir);
+        }
+    }
+
+    private static void deleteScatterDir(File scatterDir) {
+        File[] scatterFiles = scatterDir.listFiles();
+        if (scatterFiles != null) {
+            for (File scatterFile : scatterFiles) {
+                scatterFile.delete();
+            }
+        }
+        scatterDir.delete();
+    }
+
+    private void addFileToScatter(ParallelScatterZipCreator zipCreator, File f, String base, File zipFile) {
+        if (isExcluded(f, zipFile)) {
+            return;
+        }
+        String entryName = base + f.getName();
+
+        if (f.isFile()) {
+            ZipArchiveEntry zipEntry = new ZipArchiveEntry(f, entryName);
+            zipEntry.setMethod(compressionMethod(f));
+            zipCreator.addArchiveEntry(zipEntry, fileSupplier(f));
+        } else {
+            ZipArchiveEntry zipEntry = new ZipArchiveEntry(f, entryName);
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipCreator.addArchiveEntry(zipEntry, () -> new ByteArrayInputStream(new byte[0]));
+
+            File[] children = f.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    addFileToScatter(zipCreator, child, entryName + "/", zipFile);
+                }
+            }
+        }
+    }
+
+    private boolean isExcluded(File f, File zipFile) {
+        File absoluteFile = f.getAbsoluteFile();
+        return absoluteFile.equals(zipFile) || excludedFiles.contains(absoluteFile);
+    }
+
+    /**
+     * @param f A file about to be added to the archive
+     * @return ZipEntry.STORED for files that are already compressed, ZipEntry.DEFLATED for everything else
+     */
+    private int compressionMethod(File f) {
+        if (storeCompressedFiles && CompressedFormats.isCompressed(f)) {
+            return ZipEntry.STORED;
+        }
+        return ZipEntry.DEFLATED;
+    }
+
+    private static InputStreamSupplier fileSupplier(final File f) {
+        return () -> {
+            try {
+                return new FileInputStream(f);
+            } catch (FileNotFoundException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+}
@@ -0,0 +1,111 @@
+package edu.illinois.ideals.batchpackager;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipFile;
+
+public class BatchPackagerCliTest extends TestCase {
+
+    private File archiveDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        archiveDir = Files.createTempDirectory("batchpackagercli").toFile();
+        File itemDir = new File(archiveDir, "item_1");
+        itemDir.mkdirs();
+        Files.write(new File(itemDir, "contents").toPath(), "a.pdf\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteQuietly(archiveDir);
+    }
+
+    public void testZipLevelOutOfRangeIsUsageError() {
+        assertEquals(BatchPackagerCli.EXIT_USAGE,
+                BatchPackagerCli.run(new String[]{"zip", "--archive", archiveDir.getPath(), "--zip-level", "12"}));
+        assertEquals(BatchPackagerCli.EXIT_USAGE,
+                BatchPackagerCli.run(new String[]{"zip", "--archive", archiveDir.getPath(), "--zip-level", "-2"}));
+        assertEquals(BatchPackagerCli.EXIT_USAGE,
+                BatchPackagerCli.run(new String[]{"zip", "--archive", archiveDir.getPath(), "--format", "tar.gz", "--zip-level", "10"}));
+    }
+
+    public void testZipLevelIsCheckedBeforeProcessing() throws Exception {
+        File batchDir = writeBatch();
+        File sourceDir = new File(batchDir, "content");
+        File csvFile = new File(batchDir, "metadata.csv");
+        File newArchiveDir = new File(batchDir, "archive");
+
+        assertEquals(BatchPackagerCli.EXIT_USAGE, BatchPackagerCli.run(new String[]{"process", "--csv", csvFile.getPath(),
+                "--source", sourceDir.getPath(), "--archive", newArchiveDir.getPath(), "--zip", "--zip-level", "12"}));
+        assertFalse("Nothing is built with a bad zip level", newArchiveDir.exists());
+    }
+
+    public void testZipLevelInRange() {
+        assertEquals(BatchPackagerCli.EXIT_OK,
+                BatchPackagerCli.run(new String[]{"zip", "--archive", archiveDir.getPath(), "--zip-level", "9"}));
+        assertEquals(BatchPackagerCli.EXIT_OK,
+                BatchPackagerCli.run(new String[]{"zip", "--archive", archiveDir.getPath(), "--zip-level", "-1"}));
+    }
+
+    public void testMissingCsvIsFileAccessError() throws Exception {
+        File batchDir = writeBatch();
+        String missingCsv = new File(batchDir, "nonexistent.csv").getPath();
+        String sourceDir = new File(batchDir, "content").getPath();
+
+        assertEquals(BatchPackagerCli.EXIT_IO_ERROR,
+                BatchPackagerCli.run(new String[]{"verify", "--csv", missingCsv, "--source", sourceDir}));
+        assertEquals(BatchPackagerCli.EXIT_IO_ERROR, BatchPackagerCli.run(new String[]{"process", "--csv", missingCsv,
+                "--source", sourceDir, "--archive", new File(batchDir, "archive").getPath()}));
+    }
+
+    public void testCollectionLicense() throws Exception {
+        File batchDir = writeBatch();
+        Files.write(new File(batchDir, "metadata.csv").toPath(), ("filename,dc.title,dc.date.issued,dc.type,dc.subject,collections\n"
+                + "a.pdf,First,2020,Text,soil,2142/7\n").getBytes(StandardCharsets.UTF_8));
+        File license = new File(batchDir, "license-7.txt");
+        Files.write(license.toPath(), "license of 2142/7".getBytes(StandardCharsets.UTF_8));
+        File newArchiveDir = new File(batchDir, "archive");
+        newArchiveDir.mkdirs();
+
+        assertEquals(BatchPackagerCli.EXIT_OK, BatchPackagerCli.run(new String[]{"process",
+                "--csv", new File(batchDir, "metadata.csv").getPath(), "--source", new File(batchDir, "content").getPath(),
+                "--archive", newArchiveDir.getPath(), "--collection-license", "2142/7=" + license.getPath()}));
+        assertEquals("license of 2142/7", new String(Files.readAllBytes(new File(newArchiveDir, "item_1/license.txt").toPath()),
+                StandardCharsets.UTF_8));
+    }
+
+    public void testSinglePassStreamWithAutoTransfer() throws Exception {
+        File batchDir = writeBatch();
+        File newArchiveDir = new File(batchDir, "archive");
+        newArchiveDir.mkdirs();
+
+        assertEquals(BatchPackagerCli.EXIT_OK, BatchPackagerCli.run(new String[]{"process",
+                "--csv", new File(batchDir, "metadata.csv").getPath(), "--source", new File(batchDir, "content").getPath(),
+                "--archive", newArchiveDir.getPath(), "--single-pass", "--stream", "zip", "--transfer", "auto"}));
+        ZipFile zipFile = new ZipFile(new File(newArchiveDir, "SimpleArchiveFormat.zip"));
+        try {
+            assertNotNull(zipFile.getEntry("archive/item_1/a.pdf"));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * @return Directory with a one row metadata.csv and its content directory
+     */
+    private File writeBatch() throws IOException {
+        File batchDir = new File(archiveDir, "batch");
+        File sourceDir = new File(batchDir, "content");
+        sourceDir.mkdirs();
+        Files.write(new File(sourceDir, "a.pdf").toPath(), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(batchDir, "metadata.csv").toPath(), ("filename,dc.title,dc.date.issued,dc.type,dc.subject\n"
+                + "a.pdf,First,2020,Text,soil\n").getBytes(StandardCharsets.UTF_8));
+        return batchDir;
+    }
+}
@@ -0,0 +1,239 @@
+package edu.illinois.ideals.batchpackager;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class CollectionResolverTest extends TestCase {
+
+    private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private File workDir;
+    private File cacheFile;
+    private StubDSpaceRest server;
+
+    @Override
+    protected void setUp() throws Exception {
+        workDir = Files.createTempDirectory("collectionresolver").toFile();
+        cacheFile = new File(workDir, "collections.json");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+        FileUtils.deleteQuietly(workDir);
+    }
+
+    public void testUnlistedHandlesAreLookedUp() throws IOException {
+        server = new StubDSpaceRest(5, 8);
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), null, TTL_MILLIS);
+        try {
+            assertEquals(Arrays.asList("2142/9", "2142/x"),
+                    unknown(resolver, "2142/1", "2142/6", "2142/7", "2142/9", "2142/x"));
+            int requests = server.getRequests();
+
+            // The ones found by looking them up are known from then on
+            assertEquals(Collections.emptyList(), unknown(resolver, "2142/6", "2142/7"));
+            assertEquals(requests, server.getRequests());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    public void testListingPagesPastOneHundred() throws IOException {
+        server = new StubDSpaceRest(250, 250);
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), null, TTL_MILLIS);
+        try {
+            assertEquals(Collections.emptyList(), unknown(resolver, "2142/0", "2142/99", "2142/100", "2142/249"));
+            assertEquals("Three pages and no lookups", 3, server.getRequests());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    public void testListingOfWholePages() throws IOException {
+        server = new StubDSpaceRest(200, 200);
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), null, TTL_MILLIS);
+        try {
+            assertEquals(Collections.emptyList(), unknown(resolver, "2142/199"));
+            assertEquals("Two full pages, then an empty one", 3, server.getRequests());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    public void testSavedCacheFileIsUsed() throws IOException {
+        server = new StubDSpaceRest(5, 5);
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), cacheFile, TTL_MILLIS);
+        try {
+            assertEquals(Collections.emptyList(), unknown(resolver, "2142/4"));
+        } finally {
+            resolver.close();
+        }
+        assertTrue(cacheFile.isFile());
+        int requests = server.getRequests();
+
+        resolver = new CollectionResolver(server.getRestUrl(), cacheFile, TTL_MILLIS);
+        try {
+            assertEquals(Collections.emptyList(), unknown(resolver, "2142/0", "2142/4"));
+            assertEquals("A fresh cache file is used as is", requests, server.getRequests());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    public void testFreshCacheFileIsTrusted() throws IOException {
+        server = new StubDSpaceRest(5, 5);
+        // 2142/900 was a collection when the cache file was written
+        writeCacheFile(server.getRestUrl(), System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(30), "2142/900");
+
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), cacheFile, TTL_MILLIS);
+        try {
+            assertEquals(Collections.emptyList(), unknown(resolver, "2142/900"));
+            assertEquals(0, server.getRequests());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    public void testExpiredCacheFileIsListedAgain() throws IOException {
+        server = new StubDSpaceRest(5, 5);
+        writeCacheFile(server.getRestUrl(), System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2), "2142/900");
+
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), cacheFile, TTL_MILLIS);
+        try {
+            assertEquals(Collections.singletonList("2142/900"), unknown(resolver, "2142/0", "2142/900"));
+            assertTrue(server.getRequests() > 0);
+        } finally {
+            resolver.close();
+        }
+        String cache = new String(Files.readAllBytes(cacheFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(cache, cache.contains("2142/0"));
+        assertFalse("The listing replaces the expired handles", cache.contains("2142/900"));
+    }
+
+    public void testCacheFileOfAnotherServerIsNotUsed() throws IOException {
+        server = new StubDSpaceRest(5, 5);
+        writeCacheFile("http://elsewhere.example.org/rest", System.currentTimeMillis(), "2142/900");
+
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), cacheFile, TTL_MILLIS);
+        try {
+            assertEquals(Collections.singletonList("2142/900"), unknown(resolver, "2142/900"));
+        } finally {
+            resolver.close();
+        }
+    }
+
+    public void testUnreachableServerFails() throws IOException {
+        server = new StubDSpaceRest(5, 5);
+        String restUrl = server.getRestUrl();
+        server.close();
+        server = null;
+
+        CollectionResolver resolver = new CollectionResolver(restUrl, cacheFile, TTL_MILLIS);
+        try {
+            resolver.findUnknownHandles(Collections.singletonList("2142/1"));
+            fail("Handles can't be checked without the REST API");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            resolver.close();
+        }
+        assertFalse("Nothing is cached from a failed listing", cacheFile.exists());
+    }
+
+    public void testKnownCollectionsPassVerification() throws IOException {
+        server = new StubDSpaceRest(5, 8);
+        writeBatch("2142/1||2142/6");
+        File archiveDir = new File(workDir, "archive");
+        archiveDir.mkdirs();
+
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), null, TTL_MILLIS);
+        try {
+            SAFPackage safPackage = new SAFPackage();
+            safPackage.setCollectionResolver(resolver);
+            List<String> report = safPackage.processMetaPack(csvFile().getPath(), sourceDir().getPath(), archiveDir.getPath(), false);
+            assertFalse(report.toString(), safPackage.hasCriticalErrors());
+            assertEquals(Collections.emptyList(), safPackage.getInvalidCollections());
+            assertTrue(report.toString(), report.contains("[OK] All 2 collection handle(s) in the metadata csv are DSpace collections."));
+            assertTrue(new File(archiveDir, "item_1/collections").isFile());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    public void testUnknownCollectionIsCriticalError() throws IOException {
+        server = new StubDSpaceRest(5, 8);
+        writeBatch("2142/1||2142/900");
+
+        CollectionResolver resolver = new CollectionResolver(server.getRestUrl(), null, TTL_MILLIS);
+        try {
+            SAFPackage safPackage = new SAFPackage();
+            safPackage.setCollectionResolver(resolver);
+            safPackage.verifyMetaPack(csvFile().getPath(), sourceDir().getPath());
+            assertTrue(safPackage.hasCriticalErrors());
+            assertEquals(Collections.singletonList("2142/900"), safPackage.getInvalidCollections());
+        } finally {
+            resolver.close();
+        }
+    }
+
+    public void testUnreachableServerIsCriticalError() throws IOException {
+        server = new StubDSpaceRest(5, 5);
+        String restUrl = server.getRestUrl();
+        server.close();
+        server = null;
+        writeBatch("2142/1");
+
+        CollectionResolver resolver = new CollectionResolver(restUrl, null, TTL_MILLIS);
+        try {
+            SAFPackage safPackage = new SAFPackage();
+            safPackage.setCollectionResolver(resolver);
+            List<String> report = safPackage.verifyMetaPack(csvFile().getPath(), sourceDir().getPath());
+            assertTrue(safPackage.hasCriticalErrors());
+            List<String> invalidCollections = safPackage.getInvalidCollections();
+            assertEquals(report.toString(), 1, invalidCollections.size());
+            assertTrue(invalidCollections.get(0), invalidCollections.get(0).startsWith("error validating collections: "));
+        } finally {
+            resolver.close();
+        }
+    }
+
+    private static List<String> unknown(CollectionResolver resolver, String... handles) throws IOException {
+        return new ArrayList<String>(resolver.findUnknownHandles(Arrays.asList(handles)));
+    }
+
+    private void writeCacheFile(String restUrl, long fetched, String handle) throws IOException {
+        String cache = "{\"restUrl\":\"" + restUrl + "\",\"fetched\":" + fetched + ",\"handles\":[\"" + handle + "\"]}";
+        Files.write(cacheFile.toPath(), cache.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a one row batch, valid apart from the collections, which only a resolver checks.
+     */
+    private void writeBatch(String collections) throws IOException {
+        sourceDir().mkdirs();
+        Files.write(new File(sourceDir(), "a.pdf").toPath(), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(csvFile().toPath(), ("filename,dc.title,dc.date.issued,dc.type,dc.subject,collections\n"
+                + "a.pdf,First,2020,Text,soil," + collections + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File sourceDir() {
+        return new File(workDir, "content");
+    }
+
+    private File csvFile() {
+        return new File(workDir, "metadata.csv");
+    }
+}
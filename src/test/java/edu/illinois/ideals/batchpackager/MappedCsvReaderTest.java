@@ -0,0 +1,158 @@
+package edu.illinois.ideals.batchpackager;
+
+import com.csvreader.CsvReader;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Reads the same CSVs with MappedCsvReader and javacsv's CsvReader and expects the same records from both.
+ * CsvReader is given the text, as it doesn't skip a byte order mark itself.
+ */
+public class MappedCsvReaderTest extends TestCase {
+
+    private static final byte[] UTF_8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final byte[] UTF_16LE_BOM = {(byte) 0xFF, (byte) 0xFE};
+    private static final byte[] UTF_16BE_BOM = {(byte) 0xFE, (byte) 0xFF};
+
+    private File workDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        workDir = Files.createTempDirectory("mappedcsvreader").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteQuietly(workDir);
+    }
+
+    public void testQuotedLineBreaks() throws IOException {
+        String csv = "filename,dc.description\n"
+                + "a.pdf,\"line one\nline two\"\r\n"
+                + "b.pdf,\"windows\r\nline\",after\n"
+                + "c.pdf,\"\n\"\n";
+        assertSameAsCsvReader(csv);
+        assertEquals(Arrays.asList("a.pdf", "line one\nline two"), Arrays.asList(readAll(csv)[1]));
+    }
+
+    public void testDoubledQualifiers() throws IOException {
+        assertSameAsCsvReader("\"say \"\"hi\"\"\",b\n"
+                + "\"\"\"\",\"\",\"\"\"\"\"\"\n"
+                + "plain \"\"inside\"\" unquoted,c\n");
+    }
+
+    public void testTextAfterClosingQuote() throws IOException {
+        assertSameAsCsvReader("\"abc\"def,g\n"
+                + "\"x\"  ,y\n"
+                + "\"quoted\" trailing \"more\",z\n"
+                + "\"last\"tail\n");
+    }
+
+    public void testBlankLines() throws IOException {
+        assertSameAsCsvReader("\n\r\na,b\n\n\r\n\rc,d\r\r\n\ne,f\n\n");
+    }
+
+    public void testTrimmedAndEmptyValues() throws IOException {
+        assertSameAsCsvReader("  a  , b\t,\" c \", \"d\"\n"
+                + "e,,\n"
+                + ",\n");
+    }
+
+    public void testLineEndings() throws IOException {
+        assertSameAsCsvReader("a,b\rc,d\r\ne,f\ng,h");
+    }
+
+    public void testUtf8ByteOrderMark() throws IOException {
+        String csv = "filename,dc.title\nà.pdf,données Größe ✓\n";
+        assertSameAsCsvReader(csv, concat(UTF_8_BOM, csv.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+    }
+
+    public void testUtf16() throws IOException {
+        String csv = "filename,dc.title\nà.pdf,\"données\nGröße\"\r\nb.pdf,\"\"\"\"x ✓\n";
+        assertSameAsCsvReader(csv, concat(UTF_16LE_BOM, csv.getBytes(StandardCharsets.UTF_16LE)), StandardCharsets.UTF_16);
+        assertSameAsCsvReader(csv, concat(UTF_16BE_BOM, csv.getBytes(StandardCharsets.UTF_16BE)), StandardCharsets.UTF_16);
+        assertSameAsCsvReader(csv, csv.getBytes(StandardCharsets.UTF_16LE), StandardCharsets.UTF_16LE);
+    }
+
+    public void testInvalidBytesFailTheRead() throws IOException {
+        File csvFile = writeCsv(concat("filename,dc.title\na.pdf,ok\nb.pdf,caf".getBytes(StandardCharsets.UTF_8),
+                new byte[]{(byte) 0xE9, '\n'}));
+        MappedCsvReader reader = new MappedCsvReader(csvFile, StandardCharsets.UTF_8);
+        try {
+            assertTrue(reader.readHeaders());
+            assertTrue(reader.readRecord());
+            reader.readRecord();
+            fail("A value that isn't valid UTF-8 should not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Row 2"));
+            assertTrue(e.getMessage(), e.getMessage().contains("save the CSV as UTF-8"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void assertSameAsCsvReader(String csv) throws IOException {
+        assertSameAsCsvReader(csv, csv.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param csv     Text of the CSV, as CsvReader reads it
+     * @param bytes   The file MappedCsvReader reads
+     * @param charset Charset MappedCsvReader is given
+     */
+    private void assertSameAsCsvReader(String csv, byte[] bytes, Charset charset) throws IOException {
+        CsvReader expected = new CsvReader(new StringReader(csv));
+        MappedCsvReader actual = new MappedCsvReader(writeCsv(bytes), charset);
+        try {
+            int records = 0;
+            while (true) {
+                boolean expectedRecord = expected.readRecord();
+                assertEquals("record " + records, expectedRecord, actual.readRecord());
+                if (!expectedRecord) {
+                    break;
+                }
+                assertEquals("record " + records, Arrays.asList(expected.getValues()), Arrays.asList(actual.getValues()));
+                records++;
+            }
+            assertTrue(records > 0);
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    private String[][] readAll(String csv) throws IOException {
+        MappedCsvReader reader = new MappedCsvReader(writeCsv(csv.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+        try {
+            java.util.List<String[]> records = new java.util.ArrayList<String[]>();
+            while (reader.readRecord()) {
+                records.add(reader.getValues());
+            }
+            return records.toArray(new String[records.size()][]);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private File writeCsv(byte[] bytes) throws IOException {
+        File csvFile = File.createTempFile("metadata", ".csv", workDir);
+        Files.write(csvFile.toPath(), bytes);
+        return csvFile;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(first, 0, first.length);
+        bytes.write(second, 0, second.length);
+        return bytes.toByteArray();
+    }
+}
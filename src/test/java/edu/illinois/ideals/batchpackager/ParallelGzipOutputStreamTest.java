@@ -0,0 +1,107 @@
+package edu.illinois.ideals.batchpackager;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compresses data with ParallelGzipOutputStream and expects GZIPInputStream to give it back, around the 128 KB
+ * block size and with one or several threads.
+ */
+public class ParallelGzipOutputStreamTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 128 * 1024;
+
+    private static final int THREADS = 4;
+
+    public void testEmpty() throws IOException {
+        assertRoundTrip(0);
+    }
+
+    public void testOneBlock() throws IOException {
+        assertRoundTrip(BLOCK_SIZE);
+    }
+
+    public void testOneBlockAndOneByte() throws IOException {
+        assertRoundTrip(BLOCK_SIZE + 1);
+    }
+
+    public void testSeveralMegabytes() throws IOException {
+        assertRoundTrip(5 * 1000 * 1000);
+    }
+
+    public void testByteAtATime() throws IOException {
+        byte[] data = data(BLOCK_SIZE + 1);
+        for (int threads : new int[]{1, THREADS}) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, threads, Deflater.DEFAULT_COMPRESSION);
+            for (byte b : data) {
+                out.write(b);
+            }
+            out.close();
+            assertTrue(threads + " threads", Arrays.equals(data, gunzip(compressed.toByteArray())));
+        }
+    }
+
+    public void testNoCompression() throws IOException {
+        byte[] data = data(BLOCK_SIZE * 2 + 1);
+        assertTrue(Arrays.equals(data, gunzip(gzip(data, THREADS, Deflater.NO_COMPRESSION))));
+    }
+
+    private static void assertRoundTrip(int size) throws IOException {
+        byte[] data = data(size);
+        for (int threads : new int[]{1, THREADS}) {
+            for (int level : new int[]{Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION}) {
+                byte[] compressed = gzip(data, threads, level);
+                assertTrue(size + " bytes, " + threads + " threads, level " + level, Arrays.equals(data, gunzip(compressed)));
+            }
+        }
+    }
+
+    /**
+     * @return Text like, compressible data with some random bytes, so both stored and matched runs cross the blocks
+     */
+    private static byte[] data(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (i / 1000) % 3 == 0 ? (byte) random.nextInt() : (byte) ('a' + (i * 7 + i / 64) % 26);
+        }
+        return data;
+    }
+
+    /**
+     * Writes in uneven chunks, so writes straddle the block boundaries.
+     */
+    private static byte[] gzip(byte[] data, int threads, int level) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, threads, level);
+        for (int off = 0, chunk = 1; off < data.length; off += chunk, chunk = chunk * 3 % 70001 + 1) {
+            out.write(data, off, Math.min(chunk, data.length - off));
+        }
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                data.write(buffer, 0, n);
+            }
+            return data.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package edu.illinois.ideals.batchpackager;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SAFPackageTest extends TestCase {
+
+    // Headers every batch needs
+    private static final String REQUIRED_HEADERS = "filename,dc.title,dc.date.issued,dc.type,dc.subject";
+
+    private File workDir;
+    private File sourceDir;
+    private File csvFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        workDir = Files.createTempDirectory("safpackage").toFile();
+        sourceDir = new File(workDir, "content");
+        sourceDir.mkdirs();
+        csvFile = new File(workDir, "metadata.csv");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteQuietly(workDir);
+    }
+
+    public void testValidBatchVerifies() throws IOException {
+        writeSourceFiles("a.pdf", "b.pdf");
+        writeCsv(REQUIRED_HEADERS + "\n"
+                + "a.pdf,First,2020,Text,soil\n"
+                + "b.pdf,Second,2021,Text,corn\n");
+
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.verifyMetaPack(csvFile.getPath(), sourceDir.getPath());
+        assertFalse(safPackage.hasCriticalErrors());
+    }
+
+    public void testFilenameWithParametersHeaderIsInvalid() throws IOException {
+        writeSourceFiles("a.pdf");
+        writeCsv(REQUIRED_HEADERS + ",filename__bundle:EXTRA\n"
+                + "a.pdf,First,2020,Text,soil,missing.pdf\n");
+
+        SAFPackage safPackage = new SAFPackage();
+        List<String> report = safPackage.verifyMetaPack(csvFile.getPath(), sourceDir.getPath());
+        assertTrue(safPackage.hasCriticalErrors());
+        assertInvalidHeader(report, "filename__bundle:EXTRA");
+    }
+
+    public void testCollectionsColumnIsWritten() throws IOException {
+        writeSourceFiles("a.pdf", "b.pdf");
+        writeCsv(REQUIRED_HEADERS + ",collections\n"
+                + "a.pdf,First,2020,Text,soil,2142/100||2142/101\n"
+                + "b.pdf,Second,2021,Text,corn,\n");
+        File archiveDir = new File(workDir, "archive");
+        archiveDir.mkdirs();
+
+        SAFPackage safPackage = new SAFPackage();
+        List<String> report = safPackage.processMetaPack(csvFile.getPath(), sourceDir.getPath(), archiveDir.getPath(), false);
+        assertFalse(report.toString(), safPackage.hasCriticalErrors());
+        String collections = new String(Files.readAllBytes(new File(archiveDir, "item_1/collections").toPath()), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("2142/100", "2142/101"), Arrays.asList(collections.trim().split("\\s+")));
+        assertFalse(new File(archiveDir, "item_2/collections").exists());
+    }
+
+    public void testLicenseColumnFilesAreUsed() throws IOException {
+        assertLicenseColumnFilesAreUsed(false);
+    }
+
+    public void testLicenseColumnFilesAreUsedInSinglePass() throws IOException {
+        assertLicenseColumnFilesAreUsed(true);
+    }
+
+    private void assertLicenseColumnFilesAreUsed(boolean singlePass) throws IOException {
+        writeSourceFiles("a.pdf", "b.pdf", "embargo-license.txt");
+        writeCsv(REQUIRED_HEADERS + ",license\n"
+                + "a.pdf,First,2020,Text,soil,embargo-license.txt\n"
+                + "b.pdf,Second,2021,Text,corn,\n");
+        File archiveDir = new File(workDir, "archive");
+        archiveDir.mkdirs();
+
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setSinglePass(singlePass);
+        List<String> report = safPackage.processMetaPack(csvFile.getPath(), sourceDir.getPath(), archiveDir.getPath(), false);
+        assertFalse(report.toString(), safPackage.hasCriticalErrors());
+        assertEquals(0, safPackage.getItemFailureCount());
+        assertTrue(report.toString(), containsLineStartingWith(report, "[OK] All filenames found in content source directory"));
+        String license = new String(Files.readAllBytes(new File(archiveDir, "item_1/license.txt").toPath()), StandardCharsets.UTF_8);
+        assertTrue(license, license.startsWith("content of embargo-license.txt"));
+    }
+
+    public void testCollectionLicenseIsWritten() throws IOException {
+        writeSourceFiles("a.pdf", "b.pdf", "c.pdf", "row-license.txt");
+        writeCsv(REQUIRED_HEADERS + ",collections,license\n"
+                + "a.pdf,First,2020,Text,soil,2142/7||2142/8,\n"
+                + "b.pdf,Second,2021,Text,corn,2142/8||2142/7,\n"
+                + "c.pdf,Third,2022,Text,yield,2142/7,row-license.txt\n");
+        File collectionLicense = new File(workDir, "collection-license.txt");
+        Files.write(collectionLicense.toPath(), "license of 2142/7".getBytes(StandardCharsets.UTF_8));
+        File archiveDir = new File(workDir, "archive");
+        archiveDir.mkdirs();
+
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setCollectionLicense("2142/7", collectionLicense);
+        List<String> report = safPackage.processMetaPack(csvFile.getPath(), sourceDir.getPath(), archiveDir.getPath(), false);
+        assertFalse(report.toString(), safPackage.hasCriticalErrors());
+        assertEquals(0, safPackage.getItemFailureCount());
+
+        assertEquals("license of 2142/7", readLicense(archiveDir, "item_1"));
+        String batchLicense = readLicense(archiveDir, "item_2");
+        assertFalse("The owning collection is the first one", batchLicense.equals("license of 2142/7"));
+        assertTrue(batchLicense.length() > 0);
+        assertEquals("The license column comes first", "content of row-license.txt", readLicense(archiveDir, "item_3"));
+    }
+
+    private static String readLicense(File archiveDir, String item) throws IOException {
+        return new String(Files.readAllBytes(new File(archiveDir, item + "/license.txt").toPath()), StandardCharsets.UTF_8);
+    }
+
+    public void testSinglePassCommitReplacesArchiveDirectory() throws IOException {
+        writeSourceFiles("a.pdf", "b.pdf", "c.pdf");
+        writeCsv(REQUIRED_HEADERS + "\n"
+                + "a.pdf,First,2020,Text,soil\n"
+                + "b.pdf,Second,2021,Text,corn\n"
+                + "c.pdf,Third,2022,Text,yield\n");
+        File archiveDir = new File(workDir, "archive");
+        packageInSinglePass(archiveDir);
+        File item1 = new File(archiveDir, "item_1");
+        File item2 = new File(archiveDir, "item_2");
+        File item3 = new File(archiveDir, "item_3");
+        assertTrue(item1.isDirectory() && item2.isDirectory() && item3.isDirectory());
+
+        // Marks the items, to tell the kept ones from the rebuilt ones
+        Files.write(new File(item1, "marker").toPath(), new byte[0]);
+        Files.write(new File(item2, "marker").toPath(), new byte[0]);
+        Files.write(new File(archiveDir, "notes.txt").toPath(), new byte[0]);
+
+        writeCsv(REQUIRED_HEADERS + "\n"
+                + "a.pdf,First,2020,Text,soil\n"
+                + "b.pdf,Second edition,2021,Text,corn\n");
+        packageInSinglePass(archiveDir);
+
+        assertTrue("Resume keeps the unchanged item", new File(item1, "marker").isFile());
+        assertTrue(item2.isDirectory());
+        assertFalse("The changed item is built again", new File(item2, "marker").exists());
+        assertFalse("The item of a row no longer in the csv goes", item3.exists());
+        assertTrue(new File(archiveDir, "notes.txt").isFile());
+        assertTrue(new File(archiveDir, ItemJournal.FILE_NAME).isFile());
+        assertEquals("Only the archive directory is left", Arrays.asList("archive", "content", "metadata.csv"),
+                sortedNames(workDir));
+    }
+
+    public void testSinglePassCommitKeepsItemsOfParts() throws IOException {
+        writeSourceFiles("a.pdf", "b.pdf", "c.pdf");
+        writeCsv(REQUIRED_HEADERS + "\n"
+                + "a.pdf,First,2020,Text,soil\n"
+                + "b.pdf,Second,2021,Text,corn\n"
+                + "c.pdf,Third,2022,Text,yield\n");
+        File archiveDir = new File(workDir, "archive");
+        packageInSinglePass(archiveDir, 2);
+        File item3 = new File(archiveDir, "part_2/item_3");
+        assertTrue(item3.isDirectory());
+        Files.write(new File(item3, "marker").toPath(), new byte[0]);
+
+        // Nothing changed, so every item is kept and no part is in the staging directory
+        packageInSinglePass(archiveDir, 2);
+        assertTrue(new File(archiveDir, "part_1/item_1").isDirectory());
+        assertTrue(new File(archiveDir, "part_1/item_2").isDirectory());
+        assertTrue(new File(item3, "marker").isFile());
+        assertTrue(new File(archiveDir, "parts.csv").isFile());
+    }
+
+    public void testSharedBitstreamsAreCopiedForEachItem() throws IOException {
+        assertFalse(sharedBitstreamIsOneFile(false));
+    }
+
+    public void testSharedBitstreamsAreDeduplicatedWhenAsked() throws IOException {
+        assertTrue(sharedBitstreamIsOneFile(true));
+    }
+
+    private boolean sharedBitstreamIsOneFile(boolean deduplicate) throws IOException {
+        writeSourceFiles("a.pdf");
+        writeCsv(REQUIRED_HEADERS + "\n"
+                + "a.pdf,First,2020,Text,soil\n"
+                + "a.pdf,Second,2021,Text,corn\n");
+        File archiveDir = new File(workDir, "archive");
+        archiveDir.mkdirs();
+
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setDeduplicateBitstreams(deduplicate);
+        List<String> report = safPackage.processMetaPack(csvFile.getPath(), sourceDir.getPath(), archiveDir.getPath(), false);
+        assertFalse(report.toString(), safPackage.hasCriticalErrors());
+        File first = new File(archiveDir, "item_1/a.pdf");
+        File second = new File(archiveDir, "item_2/a.pdf");
+        assertTrue(first.isFile() && second.isFile());
+        return Files.isSameFile(first.toPath(), second.toPath());
+    }
+
+    public void testUnsupportedCharsetIsReported() throws IOException {
+        writeSourceFiles("a.pdf");
+        Files.write(csvFile.toPath(), (REQUIRED_HEADERS + "\n"
+                + "a.pdf,\u65e5\u672c\u8a9e,2020,Text,soil\n").getBytes(Charset.forName("ISO-2022-JP")));
+
+        SAFPackage safPackage = new SAFPackage();
+        List<String> report = safPackage.verifyMetaPack(csvFile.getPath(), sourceDir.getPath());
+        assertTrue(safPackage.hasCriticalErrors());
+        assertTrue(safPackage.hasFileAccessError());
+        assertTrue(report.toString(), containsLineStartingWith(report,
+                "Error accessing files: CSV charset ISO-2022-JP is not supported, save the CSV as UTF-8"));
+    }
+
+    public void testRowNotValidInItsCharsetIsReported() throws IOException {
+        writeSourceFiles("a.pdf");
+        StringBuilder csv = new StringBuilder(REQUIRED_HEADERS + "\n");
+        for (int row = 1; row <= 3000; row++) {
+            // A lone surrogate isn't valid UTF-16
+            csv.append("a.pdf,Row ").append(row == 2500 ? "\ud800" : "").append(row).append(",2020,Text,soil\n");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(0xFF);
+        bytes.write(0xFE);
+        for (int i = 0; i < csv.length(); i++) {
+            bytes.write(csv.charAt(i));
+            bytes.write(csv.charAt(i) >>> 8);
+        }
+        Files.write(csvFile.toPath(), bytes.toByteArray());
+
+        for (int verifyThreads : new int[]{1, 4}) {
+            SAFPackage safPackage = new SAFPackage();
+            safPackage.setVerifyThreads(verifyThreads);
+            List<String> report = safPackage.verifyMetaPack(csvFile.getPath(), sourceDir.getPath());
+            assertTrue(safPackage.hasCriticalErrors());
+            assertTrue(safPackage.hasFileAccessError());
+            assertTrue(report.toString(), containsLineStartingWith(report,
+                    "Error accessing files: Row 2500 of the CSV isn't valid UTF-16LE, save the CSV as UTF-8"));
+        }
+
+        File archiveDir = new File(workDir, "archive");
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setSinglePass(true);
+        List<String> report = safPackage.processMetaPack(csvFile.getPath(), sourceDir.getPath(), archiveDir.getPath(), false);
+        assertTrue(safPackage.hasFileAccessError());
+        assertTrue(report.toString(), containsLineStartingWith(report, "Error accessing files: Row 2500 of the CSV"));
+    }
+
+    public void testItemFilesWrittenOnWriterThread() throws IOException {
+        StringBuilder csv = new StringBuilder(REQUIRED_HEADERS + "\n");
+        for (int row = 1; row <= 50; row++) {
+            writeSourceFiles("file" + row + ".pdf");
+            csv.append("file").append(row).append(".pdf,Title ").append(row).append(",2020,Text,soil\n");
+        }
+        writeCsv(csv.toString());
+        File archiveDir = new File(workDir, "archive");
+        archiveDir.mkdirs();
+
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setWorkerThreads(4);
+        safPackage.setItemFileWriterThread(true);
+        List<String> report = safPackage.processMetaPack(csvFile.getPath(), sourceDir.getPath(), archiveDir.getPath(), false);
+        assertFalse(report.toString(), safPackage.hasCriticalErrors());
+        assertEquals(0, safPackage.getItemFailureCount());
+        for (int row = 1; row <= 50; row++) {
+            File item = new File(archiveDir, "item_" + row);
+            String contents = new String(Files.readAllBytes(new File(item, "contents").toPath()), StandardCharsets.UTF_8);
+            assertTrue(contents, contents.startsWith("file" + row + ".pdf"));
+            assertTrue(new File(item, "dublin_core.xml").isFile());
+            assertTrue(new File(item, "license.txt").isFile());
+        }
+    }
+
+    public void testZipLevelIsChecked() {
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setZipLevel(0);
+        safPackage.setZipLevel(9);
+        safPackage.setZipLevel(-1);
+        try {
+            safPackage.setZipLevel(10);
+            fail("10 is not a deflate level");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void packageInSinglePass(File archiveDir) {
+        packageInSinglePass(archiveDir, 0);
+    }
+
+    private void packageInSinglePass(File archiveDir, int maxPartItems) {
+        SAFPackage safPackage = new SAFPackage();
+        safPackage.setSinglePass(true);
+        safPackage.setPartLimits(maxPartItems, 0);
+        List<String> report = safPackage.processMetaPack(csvFile.getPath(), sourceDir.getPath(), archiveDir.getPath(), false);
+        assertFalse(report.toString(), safPackage.hasCriticalErrors());
+        assertEquals(0, safPackage.getItemFailureCount());
+    }
+
+    private static List<String> sortedNames(File dir) {
+        List<String> names = new ArrayList<String>(Arrays.asList(dir.list()));
+        Collections.sort(names);
+        return names;
+    }
+
+    private static boolean containsLineStartingWith(List<String> report, String start) {
+        for (String line : report) {
+            if (line.startsWith(start)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void assertInvalidHeader(List<String> report, String header) {
+        int start = -1;
+        for (int i = 0; i < report.size(); i++) {
+            if (report.get(i).contains("invalid header(s) found")) {
+                start = i;
+            } else if (start >= 0 && report.get(i).contains(header)) {
+                return;
+            }
+        }
+        fail(header + " not reported as an invalid header in " + report);
+    }
+
+    private void writeSourceFiles(String... names) throws IOException {
+        for (String name : names) {
+            Files.write(new File(sourceDir, name).toPath(), ("content of " + name).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void writeCsv(String csv) throws IOException {
+        Files.write(csvFile.toPath(), csv.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,96 @@
+package edu.illinois.ideals.batchpackager;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipFile;
+
+public class StreamingArchiveTest extends TestCase {
+
+    private File workDir;
+    private File sourceDir;
+    private File archiveDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        workDir = Files.createTempDirectory("streamingarchive").toFile();
+        sourceDir = new File(workDir, "content");
+        archiveDir = new File(workDir, "archive");
+        sourceDir.mkdirs();
+        archiveDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteQuietly(workDir);
+    }
+
+    public void testCommitGivesArchiveItsName() throws IOException {
+        StreamingArchive archive = newArchive();
+        archive.write("SimpleArchiveFormat", "archive", "item_1", item(1, "a.txt"));
+        archive.write("SimpleArchiveFormat", "archive", "item_2", item(2, "b.txt"));
+        archive.commit();
+
+        File zip = new File(archiveDir, "SimpleArchiveFormat.zip");
+        assertTrue(zip.isFile());
+        assertFalse(new File(archiveDir, ".SimpleArchiveFormat.zip.partial").exists());
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertNotNull(zipFile.getEntry("archive/item_1/a.txt"));
+            assertNotNull(zipFile.getEntry("archive/item_2/b.txt"));
+            assertNotNull(zipFile.getEntry("archive/item_2/contents"));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testItemThatFailsIsNotCommitted() throws IOException {
+        StreamingArchive archive = newArchive();
+        archive.write("SimpleArchiveFormat", "archive", "item_1", item(1, "a.txt"));
+
+        ItemFiles broken = item(2, "b.txt");
+        broken.addBitstream("gone.txt", new File(sourceDir, "gone.txt"));
+        try {
+            archive.write("SimpleArchiveFormat", "archive", "item_2", broken);
+            fail("A missing bitstream should fail the item");
+        } catch (IOException e) {
+            // expected
+        }
+
+        try {
+            archive.commit();
+            fail("An archive with a failed item should not be committed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(new File(archiveDir, "SimpleArchiveFormat.zip").exists());
+        assertFalse(new File(archiveDir, ".SimpleArchiveFormat.zip.partial").exists());
+    }
+
+    public void testAbortRemovesPartialArchive() throws IOException {
+        StreamingArchive archive = newArchive();
+        archive.write("part_1", "part_1", "item_1", item(1, "a.txt"));
+        assertTrue(new File(archiveDir, ".part_1.zip.partial").isFile());
+
+        archive.abort();
+        assertFalse(new File(archiveDir, ".part_1.zip.partial").exists());
+        assertFalse(new File(archiveDir, "part_1.zip").exists());
+    }
+
+    private StreamingArchive newArchive() {
+        return new StreamingArchive(archiveDir, ArchiveFormat.ZIP, -1, true, 1, new FilegroupExtractor());
+    }
+
+    private ItemFiles item(int rowNumber, String bitstreamName) throws IOException {
+        File source = new File(sourceDir, bitstreamName);
+        Files.write(source.toPath(), ("bitstream of row " + rowNumber).getBytes(StandardCharsets.UTF_8));
+        ItemFiles itemFiles = new ItemFiles(new File(archiveDir, "item_" + rowNumber));
+        itemFiles.addBitstream(bitstreamName, source);
+        itemFiles.getContents().append(bitstreamName).append('\n');
+        return itemFiles;
+    }
+}
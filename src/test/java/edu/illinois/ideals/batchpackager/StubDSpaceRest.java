@@ -0,0 +1,110 @@
+package edu.illinois.ideals.batchpackager;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal stand-in for the DSpace REST API on localhost, enough for CollectionResolver: a paged /collections listing
+ * and /handle lookups. Collections 2142/0 to 2142/(listed - 1) are listed, and lookups also find the ones up to
+ * 2142/(existing - 1), like collections created after the listing was cached. Used by the tests and the
+ * benchmarks.
+ */
+public final class StubDSpaceRest implements AutoCloseable {
+
+    public static final String HANDLE_PREFIX = "2142/";
+
+    private final HttpServer server;
+
+    private final int listed;
+
+    private final int existing;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    public StubDSpaceRest(int listed, int existing) throws IOException {
+        this.listed = listed;
+        this.existing = existing;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/rest/collections", this::listCollections);
+        server.createContext("/rest/handle/", this::lookUpHandle);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+    }
+
+    public String getRestUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/rest";
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void listCollections(HttpExchange exchange) throws IOException {
+        int limit = queryParameter(exchange.getRequestURI(), "limit", 100);
+        int offset = queryParameter(exchange.getRequestURI(), "offset", 0);
+        StringBuilder json = new StringBuilder("[");
+        for (int i = offset; i < Math.min(listed, offset + limit); i++) {
+            if (i > offset) {
+                json.append(',');
+            }
+            json.append("{\"handle\":\"").append(HANDLE_PREFIX).append(i).append("\",\"type\":\"collection\"}");
+        }
+        respond(exchange, 200, json.append(']').toString());
+    }
+
+    private void lookUpHandle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String handle = path.substring("/rest/handle/".length());
+        int number = -1;
+        if (handle.startsWith(HANDLE_PREFIX)) {
+            try {
+                number = Integer.parseInt(handle.substring(HANDLE_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                number = -1;
+            }
+        }
+        if (number >= 0 && number < existing) {
+            respond(exchange, 200, "{\"handle\":\"" + handle + "\",\"type\":\"collection\"}");
+        } else {
+            respond(exchange, 404, "");
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        requests.incrementAndGet();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int queryParameter(URI uri, String name, int defaultValue) {
+        String query = uri.getQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith(name + "=")) {
+                    return Integer.parseInt(parameter.substring(name.length() + 1));
+                }
+            }
+        }
+        return defaultValue;
+    }
+}